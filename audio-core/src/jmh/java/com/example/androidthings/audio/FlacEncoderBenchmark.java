@@ -0,0 +1,135 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.audio;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Encoding of one uplink chunk, 512 samples of 16 kHz PCM, on a few seconds of synthetic
+ * input. The stream starts over at the end of the input, the way each request starts one.
+ *
+ * <p>The score is the encode time per chunk. The pcmBytes and flacBytes counters add up what
+ * went in and came out, so flacBytes / pcmBytes is the compression ratio; it is also printed
+ * at the end of each run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FlacEncoderBenchmark {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int CHUNK_BYTES = 1024;
+    private static final int SIGNAL_SECONDS = 3;
+
+    /**
+     * speech: a voiced utterance between pauses over room noise. silence: room noise only.
+     * noise: loud white noise, the worst case, which falls back to verbatim frames.
+     */
+    @Param({"speech", "silence", "noise"})
+    public String signal;
+
+    private byte[] mPcm;
+    private FlacEncoder mEncoder;
+    private int mOffset;
+
+    /** Bytes encoded in one iteration, reported next to the score. */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long pcmBytes;
+        public long flacBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            pcmBytes = 0;
+            flacBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(2018);
+        final int samples = SIGNAL_SECONDS * SAMPLE_RATE;
+        mPcm = new byte[2 * samples];
+        double phase = 0;
+        for (int i = 0; i < samples; i++) {
+            final double t = i / (double) SAMPLE_RATE;
+            double sample;
+            switch (signal) {
+                case "speech":
+                    sample = 60 * random.nextGaussian();
+                    if (t >= 1.0 && t < 2.0) {
+                        // Eight harmonics of a rising pitch, with a 4 Hz syllable envelope.
+                        phase += 2 * Math.PI * (120 + 40 * (t - 1.0)) / SAMPLE_RATE;
+                        double voiced = 0;
+                        for (int k = 1; k <= 8; k++) {
+                            voiced += Math.sin(k * phase) / k;
+                        }
+                        sample += 3000 * (0.65 + 0.35 * Math.cos(2 * Math.PI * 4 * (t - 1.0)))
+                                * voiced;
+                    }
+                    break;
+                case "silence":
+                    sample = 60 * random.nextGaussian();
+                    break;
+                case "noise":
+                    sample = 8000 * random.nextGaussian();
+                    break;
+                default:
+                    throw new IllegalArgumentException(signal);
+            }
+            final int clipped = (int) Math.max(Short.MIN_VALUE,
+                    Math.min(Short.MAX_VALUE, Math.round(sample)));
+            mPcm[2 * i] = (byte) clipped;
+            mPcm[2 * i + 1] = (byte) (clipped >> 8);
+        }
+        mEncoder = new FlacEncoder(SAMPLE_RATE, CHUNK_BYTES / 2);
+        mOffset = 0;
+    }
+
+    @TearDown
+    public void printRatio() {
+        System.out.printf("%s: %d PCM bytes to %d FLAC bytes, compression ratio %.3f%n",
+                signal, mEncoder.getBytesIn(), mEncoder.getBytesOut(),
+                mEncoder.getBytesOut() / (double) mEncoder.getBytesIn());
+    }
+
+    @Benchmark
+    public int encodeChunk(Bytes bytes) {
+        if (mOffset + CHUNK_BYTES > mPcm.length) {
+            mOffset = 0;
+            mEncoder.reset();
+        }
+        final int length = mEncoder.encode(mPcm, mOffset, CHUNK_BYTES);
+        mOffset += CHUNK_BYTES;
+        bytes.pcmBytes += CHUNK_BYTES;
+        bytes.flacBytes += length;
+        return length;
+    }
+}
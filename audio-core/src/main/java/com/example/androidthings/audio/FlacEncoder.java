@@ -0,0 +1,433 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.audio;
+
+/**
+ * Streaming FLAC encoder for 16-bit little-endian mono PCM.
+ *
+ * <p>Every call to {@link #encode} turns one block of PCM into one complete FLAC frame, so the
+ * added latency is bounded by the block size. The first frame of a stream is preceded by the
+ * "fLaC" marker and a STREAMINFO block. Frames use the fixed polynomial predictors of order 0-4
+ * with partitioned Rice coding of the residual, and fall back to verbatim samples when that is
+ * not smaller. Frames carry their first sample number (variable block size strategy), so blocks
+ * shorter than the maximum are valid anywhere in the stream.
+ *
+ * <p>All buffers are allocated up front; encoding does not allocate.
+ */
+public class FlacEncoder {
+    private static final int BITS_PER_SAMPLE = 16;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 4;
+    // Largest parameter the 4-bit Rice coding method can express; 15 is the escape code.
+    private static final int MAX_RICE_PARAMETER = 14;
+    private static final int STREAMINFO_LENGTH = 34;
+    private static final int MAX_FRAME_HEADER_BYTES = 16;
+
+    private final int mSampleRate;
+    private final int mMaxBlockSamples;
+    private final int[] mSamples;
+    private final int[] mResidual;
+    private final BitWriter mWriter;
+
+    private boolean mHeaderWritten;
+    private long mNextSampleNumber;
+
+    // Running totals for measuring the encoder's cost and benefit.
+    private long mBytesIn;
+    private long mBytesOut;
+    private long mEncodeNanos;
+
+    /**
+     * @param sampleRate sample rate of the PCM, written into every frame header.
+     * @param maxBlockSamples largest block that will be passed to {@link #encode}.
+     */
+    public FlacEncoder(int sampleRate, int maxBlockSamples) {
+        if (maxBlockSamples < 16 || maxBlockSamples > 65535) {
+            throw new IllegalArgumentException("Block size must be within 16..65535 samples");
+        }
+        mSampleRate = sampleRate;
+        mMaxBlockSamples = maxBlockSamples;
+        mSamples = new int[maxBlockSamples];
+        mResidual = new int[maxBlockSamples];
+        // A verbatim frame plus headers is the worst case; STREAMINFO may precede it.
+        mWriter = new BitWriter(4 + 4 + STREAMINFO_LENGTH + MAX_FRAME_HEADER_BYTES
+                + 1 + maxBlockSamples * BITS_PER_SAMPLE / 8 + 2);
+    }
+
+    /**
+     * Starts a new stream; the next frame is preceded by the stream header again.
+     */
+    public void reset() {
+        mHeaderWritten = false;
+        mNextSampleNumber = 0;
+    }
+
+    /**
+     * Encodes a block of PCM into the output buffer.
+     *
+     * @return the number of bytes written to {@link #getOutput()}.
+     */
+    public int encode(byte[] pcm, int offset, int length) {
+        final long start = System.nanoTime();
+        final int blockSize = length / 2;
+        if (blockSize > mMaxBlockSamples) {
+            throw new IllegalArgumentException("Block of " + blockSize + " samples exceeds "
+                    + mMaxBlockSamples);
+        }
+        for (int i = 0, p = offset; i < blockSize; i++, p += 2) {
+            mSamples[i] = (short) ((pcm[p] & 0xff) | (pcm[p + 1] << 8));
+        }
+
+        final BitWriter w = mWriter;
+        w.reset();
+        if (!mHeaderWritten) {
+            writeStreamHeader(w);
+            mHeaderWritten = true;
+        }
+        if (blockSize > 0) {
+            writeFrame(w, blockSize);
+            mNextSampleNumber += blockSize;
+        }
+
+        mBytesIn += length;
+        mBytesOut += w.length();
+        mEncodeNanos += System.nanoTime() - start;
+        return w.length();
+    }
+
+    /** Buffer holding the bytes produced by the last {@link #encode} call. */
+    public byte[] getOutput() {
+        return mWriter.buffer();
+    }
+
+    public long getBytesIn() {
+        return mBytesIn;
+    }
+
+    public long getBytesOut() {
+        return mBytesOut;
+    }
+
+    public long getEncodeNanos() {
+        return mEncodeNanos;
+    }
+
+    private void writeStreamHeader(BitWriter w) {
+        w.write('f', 8);
+        w.write('L', 8);
+        w.write('a', 8);
+        w.write('C', 8);
+        // Metadata block header: last block, type STREAMINFO.
+        w.write(1, 1);
+        w.write(0, 7);
+        w.write(STREAMINFO_LENGTH, 24);
+        w.write(16, 16);                      // minimum block size
+        w.write(mMaxBlockSamples, 16);        // maximum block size
+        w.write(0, 24);                       // minimum frame size, unknown
+        w.write(0, 24);                       // maximum frame size, unknown
+        w.write(mSampleRate, 20);
+        w.write(0, 3);                        // channels - 1
+        w.write(BITS_PER_SAMPLE - 1, 5);
+        w.write(0, 4);                        // total samples, unknown for a live stream
+        w.write(0, 32);
+        for (int i = 0; i < 4; i++) {
+            w.write(0, 32);                   // MD5 signature, not computed
+        }
+    }
+
+    private void writeFrame(BitWriter w, int blockSize) {
+        final int frameStart = w.length();
+
+        // Frame header: sync code, variable block size strategy.
+        w.write(0x3ffe, 14);
+        w.write(0, 1);
+        w.write(1, 1);
+        w.write(0x7, 4);                      // block size - 1 follows as 16 bits
+        w.write(sampleRateCode(mSampleRate), 4);
+        w.write(0, 4);                        // mono
+        w.write(0x4, 3);                      // 16 bits per sample
+        w.write(0, 1);
+        writeUtf8Number(w, mNextSampleNumber);
+        w.write(blockSize - 1, 16);
+        w.write(Crc.crc8(w.buffer(), frameStart, w.length()), 8);
+
+        writeSubframe(w, blockSize);
+
+        w.alignToByte();
+        w.write(Crc.crc16(w.buffer(), frameStart, w.length()), 16);
+    }
+
+    private void writeSubframe(BitWriter w, int blockSize) {
+        final int[] x = mSamples;
+        boolean constant = true;
+        for (int i = 1; i < blockSize && constant; i++) {
+            constant = x[i] == x[0];
+        }
+        if (constant) {
+            w.write(0, 8);                    // SUBFRAME_CONSTANT
+            w.write(x[0], BITS_PER_SAMPLE);
+            return;
+        }
+
+        // Pick the fixed predictor with the smallest residual magnitude.
+        int bestOrder = 0;
+        long bestSum = Long.MAX_VALUE;
+        final int maxOrder = Math.min(MAX_FIXED_ORDER, blockSize - 1);
+        for (int order = 0; order <= maxOrder; order++) {
+            long sum = 0;
+            for (int i = order; i < blockSize; i++) {
+                sum += Math.abs(fixedResidual(x, i, order));
+            }
+            if (sum < bestSum) {
+                bestSum = sum;
+                bestOrder = order;
+            }
+        }
+        for (int i = bestOrder; i < blockSize; i++) {
+            mResidual[i] = fold(fixedResidual(x, i, bestOrder));
+        }
+
+        // Pick the partition order with the fewest residual bits.
+        int bestPartitionOrder = 0;
+        long bestBits = Long.MAX_VALUE;
+        for (int partitionOrder = 0; partitionOrder <= MAX_PARTITION_ORDER; partitionOrder++) {
+            if ((blockSize & ((1 << partitionOrder) - 1)) != 0
+                    || (blockSize >> partitionOrder) <= bestOrder) {
+                break;
+            }
+            final long bits = residualBits(blockSize, bestOrder, partitionOrder);
+            if (bits < bestBits) {
+                bestBits = bits;
+                bestPartitionOrder = partitionOrder;
+            }
+        }
+
+        final long fixedBits = 8 + (long) bestOrder * BITS_PER_SAMPLE + bestBits;
+        final long verbatimBits = 8 + (long) blockSize * BITS_PER_SAMPLE;
+        if (fixedBits >= verbatimBits) {
+            w.write(0x02, 8);                 // SUBFRAME_VERBATIM
+            for (int i = 0; i < blockSize; i++) {
+                w.write(x[i], BITS_PER_SAMPLE);
+            }
+            return;
+        }
+
+        w.write((0x08 | bestOrder) << 1, 8);  // SUBFRAME_FIXED, no wasted bits
+        for (int i = 0; i < bestOrder; i++) {
+            w.write(x[i], BITS_PER_SAMPLE);
+        }
+        w.write(0, 2);                        // Rice coding with 4-bit parameters
+        w.write(bestPartitionOrder, 4);
+        final int partitions = 1 << bestPartitionOrder;
+        final int partitionSamples = blockSize >> bestPartitionOrder;
+        for (int p = 0, start = bestOrder; p < partitions; p++) {
+            final int end = (p + 1) * partitionSamples;
+            final int k = riceParameter(start, end);
+            w.write(k, 4);
+            for (int i = start; i < end; i++) {
+                final int u = mResidual[i];
+                w.writeUnary(u >>> k);
+                if (k > 0) {
+                    w.write(u & ((1 << k) - 1), k);
+                }
+            }
+            start = end;
+        }
+    }
+
+    private long residualBits(int blockSize, int order, int partitionOrder) {
+        final int partitions = 1 << partitionOrder;
+        final int partitionSamples = blockSize >> partitionOrder;
+        long bits = 2 + 4;
+        for (int p = 0, start = order; p < partitions; p++) {
+            final int end = (p + 1) * partitionSamples;
+            final int k = riceParameter(start, end);
+            bits += 4 + (long) (end - start) * (k + 1);
+            for (int i = start; i < end; i++) {
+                bits += mResidual[i] >>> k;
+            }
+            start = end;
+        }
+        return bits;
+    }
+
+    /** Rice parameter close to log2 of the mean folded residual of [start, end). */
+    private int riceParameter(int start, int end) {
+        final int n = end - start;
+        if (n <= 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = start; i < end; i++) {
+            sum += mResidual[i];
+        }
+        int k = 0;
+        while (k < MAX_RICE_PARAMETER && ((long) n << (k + 1)) <= sum) {
+            k++;
+        }
+        return k;
+    }
+
+    private static int fixedResidual(int[] x, int i, int order) {
+        switch (order) {
+            case 0:
+                return x[i];
+            case 1:
+                return x[i] - x[i - 1];
+            case 2:
+                return x[i] - 2 * x[i - 1] + x[i - 2];
+            case 3:
+                return x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+            default:
+                return x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+        }
+    }
+
+    /** Maps signed residuals onto unsigned values: 0, -1, 1, -2, ... become 0, 1, 2, 3, ... */
+    private static int fold(int residual) {
+        return (residual << 1) ^ (residual >> 31);
+    }
+
+    private static int sampleRateCode(int sampleRate) {
+        switch (sampleRate) {
+            case 8000:
+                return 0x4;
+            case 16000:
+                return 0x5;
+            case 22050:
+                return 0x6;
+            case 24000:
+                return 0x7;
+            case 32000:
+                return 0x8;
+            case 44100:
+                return 0x9;
+            case 48000:
+                return 0xa;
+            case 96000:
+                return 0xb;
+            default:
+                // Taken from STREAMINFO.
+                return 0x0;
+        }
+    }
+
+    /** Writes a sample number in the UTF-8 style variable-length coding FLAC frames use. */
+    private static void writeUtf8Number(BitWriter w, long value) {
+        if (value < 0x80) {
+            w.write((int) value, 8);
+            return;
+        }
+        int continuationBytes = 1;
+        while (continuationBytes < 6 && value >= (1L << (5 * continuationBytes + 6))) {
+            continuationBytes++;
+        }
+        final int firstBits = 6 - continuationBytes;
+        final int lead = (0xff << (7 - continuationBytes)) & 0xff;
+        w.write(lead | (int) (value >>> (6 * continuationBytes)) & ((1 << firstBits) - 1), 8);
+        for (int i = continuationBytes - 1; i >= 0; i--) {
+            w.write(0x80 | (int) ((value >>> (6 * i)) & 0x3f), 8);
+        }
+    }
+
+    /** Big-endian bit writer over a fixed buffer. */
+    private static final class BitWriter {
+        private final byte[] mBuffer;
+        private int mBytes;
+        private long mAccumulator;
+        private int mBits;
+
+        BitWriter(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        void reset() {
+            mBytes = 0;
+            mAccumulator = 0;
+            mBits = 0;
+        }
+
+        /** Writes the low {@code bits} bits of value, 0 < bits <= 32. */
+        void write(int value, int bits) {
+            mAccumulator = (mAccumulator << bits) | (value & (0xffffffffL >>> (32 - bits)));
+            mBits += bits;
+            while (mBits >= 8) {
+                mBits -= 8;
+                mBuffer[mBytes++] = (byte) (mAccumulator >>> mBits);
+            }
+        }
+
+        /** Writes {@code zeros} zero bits followed by a one. */
+        void writeUnary(int zeros) {
+            while (zeros >= 32) {
+                write(0, 32);
+                zeros -= 32;
+            }
+            write(1, zeros + 1);
+        }
+
+        void alignToByte() {
+            if (mBits > 0) {
+                write(0, 8 - mBits);
+            }
+        }
+
+        /** Whole bytes written so far. */
+        int length() {
+            return mBytes;
+        }
+
+        byte[] buffer() {
+            return mBuffer;
+        }
+    }
+
+    /** CRC checks used in FLAC frames. */
+    private static final class Crc {
+        private static final int[] CRC8_TABLE = new int[256];
+        private static final int[] CRC16_TABLE = new int[256];
+
+        static {
+            for (int i = 0; i < 256; i++) {
+                int crc8 = i;
+                int crc16 = i << 8;
+                for (int bit = 0; bit < 8; bit++) {
+                    crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                    crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+                }
+                CRC8_TABLE[i] = crc8 & 0xff;
+                CRC16_TABLE[i] = crc16 & 0xffff;
+            }
+        }
+
+        static int crc8(byte[] data, int start, int end) {
+            int crc = 0;
+            for (int i = start; i < end; i++) {
+                crc = CRC8_TABLE[(crc ^ data[i]) & 0xff];
+            }
+            return crc;
+        }
+
+        static int crc16(byte[] data, int start, int end) {
+            int crc = 0;
+            for (int i = start; i < end; i++) {
+                crc = ((crc << 8) & 0xffff) ^ CRC16_TABLE[((crc >> 8) ^ data[i]) & 0xff];
+            }
+            return crc;
+        }
+    }
+}
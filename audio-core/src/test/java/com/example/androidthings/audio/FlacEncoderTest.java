@@ -0,0 +1,449 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.audio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Decodes what the encoder writes with a small FLAC decoder of its own, which checks every
+ * field the encoder sets and computes the CRCs bit by bit, independently of the encoder's tables.
+ */
+public class FlacEncoderTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int BLOCK_SAMPLES = 512;
+
+    private static final int SUBFRAME_CONSTANT = 0;
+    private static final int SUBFRAME_VERBATIM = 1;
+    private static final int SUBFRAME_FIXED = 8;
+
+    @Test
+    public void streamStartsWithMarkerAndStreaminfo() {
+        final byte[] stream = encode(new FlacEncoder(SAMPLE_RATE, BLOCK_SAMPLES), new short[16]);
+        final BitReader r = new BitReader(stream);
+        assertEquals('f', r.read(8));
+        assertEquals('L', r.read(8));
+        assertEquals('a', r.read(8));
+        assertEquals('C', r.read(8));
+        assertEquals("last metadata block", 1, r.read(1));
+        assertEquals("STREAMINFO", 0, r.read(7));
+        assertEquals(34, r.read(24));
+        assertEquals("minimum block size", 16, r.read(16));
+        assertEquals("maximum block size", BLOCK_SAMPLES, r.read(16));
+        assertEquals("minimum frame size", 0, r.read(24));
+        assertEquals("maximum frame size", 0, r.read(24));
+        assertEquals(SAMPLE_RATE, r.read(20));
+        assertEquals("channels - 1", 0, r.read(3));
+        assertEquals("bits per sample - 1", 15, r.read(5));
+        assertEquals("total samples", 0L, r.readLong(36));
+        for (int i = 0; i < 16; i++) {
+            assertEquals("MD5", 0, r.read(8));
+        }
+        // The first frame follows directly.
+        assertEquals(0x3ffe, r.read(14));
+    }
+
+    @Test
+    public void silenceIsLosslessInConstantSubframes() {
+        final Decoded decoded = roundTrip(new short[BLOCK_SAMPLES * 4]);
+        assertEquals(Arrays.asList(SUBFRAME_CONSTANT, SUBFRAME_CONSTANT, SUBFRAME_CONSTANT,
+                SUBFRAME_CONSTANT), decoded.subframeTypes);
+    }
+
+    @Test
+    public void fullScaleIsLossless() {
+        final short[] pcm = new short[BLOCK_SAMPLES * 4];
+        for (int i = 0; i < pcm.length; i++) {
+            switch (i / BLOCK_SAMPLES) {
+                case 0:
+                    pcm[i] = Short.MAX_VALUE;
+                    break;
+                case 1:
+                    pcm[i] = Short.MIN_VALUE;
+                    break;
+                case 2:
+                    // The largest residuals any predictor can see.
+                    pcm[i] = (i & 1) == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+                    break;
+                default:
+                    pcm[i] = (short) Math.round(32767 * Math.sin(2 * Math.PI * 440 * i
+                            / (double) SAMPLE_RATE));
+                    break;
+            }
+        }
+        roundTrip(pcm);
+    }
+
+    @Test
+    public void randomPcmIsLosslessInVerbatimSubframes() {
+        final short[] pcm = new short[BLOCK_SAMPLES * 3];
+        final Random random = new Random(2018);
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short) random.nextInt();
+        }
+        final Decoded decoded = roundTrip(pcm);
+        assertEquals(Arrays.asList(SUBFRAME_VERBATIM, SUBFRAME_VERBATIM, SUBFRAME_VERBATIM),
+                decoded.subframeTypes);
+    }
+
+    @Test
+    public void smoothSignalsUseFixedPredictors() {
+        final short[] pcm = new short[BLOCK_SAMPLES * 5];
+        final Random random = new Random(7);
+        for (int i = 0; i < pcm.length; i++) {
+            final int order = i / BLOCK_SAMPLES;
+            final double t = (i % BLOCK_SAMPLES) / (double) BLOCK_SAMPLES;
+            // A polynomial of the block's order, which that predictor cancels, plus a little
+            // noise so the higher orders do not win by amplifying nothing.
+            final double polynomial = 20000 * Math.pow(2 * t - 1, order);
+            pcm[i] = (short) Math.round(polynomial + random.nextInt(3) - 1);
+        }
+        final Decoded decoded = roundTrip(pcm);
+        for (int type : decoded.subframeTypes) {
+            assertTrue("subframe type " + type, type >= SUBFRAME_FIXED);
+        }
+        assertTrue(decoded.subframeTypes.toString(),
+                decoded.subframeTypes.contains(SUBFRAME_FIXED + 2));
+    }
+
+    @Test
+    public void speechLikeSignalIsLosslessAndCompressed() {
+        final short[] pcm = new short[SAMPLE_RATE];
+        final Random random = new Random(3);
+        double phase = 0;
+        for (int i = 0; i < pcm.length; i++) {
+            phase += 2 * Math.PI * (120 + 40 * i / (double) pcm.length) / SAMPLE_RATE;
+            double voiced = 0;
+            for (int k = 1; k <= 8; k++) {
+                voiced += Math.sin(k * phase) / k;
+            }
+            pcm[i] = (short) Math.round(3000 * voiced + 60 * random.nextGaussian());
+        }
+        final FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE, BLOCK_SAMPLES);
+        assertArrayEquals(pcm, decode(encode(encoder, pcm)).samples);
+        assertTrue("compression ratio " + encoder.getBytesOut() / (double) encoder.getBytesIn(),
+                encoder.getBytesOut() < encoder.getBytesIn() * 0.7);
+    }
+
+    @Test
+    public void shortAndOddBlocksAreLossless() {
+        final FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE, BLOCK_SAMPLES);
+        final Random random = new Random(5);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final List<Short> expected = new ArrayList<>();
+        // Blocks that do not split into Rice partitions, and blocks shorter than the minimum.
+        for (int blockSize : new int[] {BLOCK_SAMPLES, 1, 2, 5, 17, 100, 511, 3}) {
+            final short[] block = new short[blockSize];
+            for (int i = 0; i < blockSize; i++) {
+                block[i] = (short) (i * 37 + random.nextInt(5));
+                expected.add(block[i]);
+            }
+            appendEncoded(encoder, block, stream);
+        }
+        final short[] decoded = decode(stream.toByteArray()).samples;
+        assertEquals(expected.size(), decoded.length);
+        for (int i = 0; i < decoded.length; i++) {
+            assertEquals("sample " + i, (short) expected.get(i), decoded[i]);
+        }
+    }
+
+    @Test
+    public void frameHeadersCountSamples() {
+        final FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE, BLOCK_SAMPLES);
+        // Enough blocks for sample numbers that take two and three bytes to code.
+        final Decoded decoded = decode(encode(encoder, new short[BLOCK_SAMPLES * 300]));
+        assertEquals(300, decoded.firstSamples.size());
+        for (int i = 0; i < 300; i++) {
+            assertEquals((long) i * BLOCK_SAMPLES, (long) decoded.firstSamples.get(i));
+        }
+    }
+
+    @Test
+    public void resetStartsANewStream() {
+        final FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE, BLOCK_SAMPLES);
+        final short[] pcm = new short[BLOCK_SAMPLES * 2];
+        Arrays.fill(pcm, (short) 100);
+        encode(encoder, pcm);
+        encoder.reset();
+        final Decoded decoded = decode(encode(encoder, pcm));
+        assertEquals(Arrays.asList(0L, (long) BLOCK_SAMPLES), decoded.firstSamples);
+    }
+
+    @Test
+    public void emptyBlockWritesOnlyTheHeader() {
+        final FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE, BLOCK_SAMPLES);
+        assertEquals(4 + 4 + 34, encoder.encode(new byte[0], 0, 0));
+        assertEquals(0, encoder.encode(new byte[0], 0, 0));
+    }
+
+    @Test
+    public void corruptedFramesFailTheCrcChecks() {
+        final short[] pcm = new short[BLOCK_SAMPLES];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short) (1000 * Math.sin(i / 10.0));
+        }
+        final byte[] stream = encode(new FlacEncoder(SAMPLE_RATE, BLOCK_SAMPLES), pcm);
+        final int frameStart = 4 + 4 + 34;
+        // A flipped bit in the header, in the subframe and in the footer.
+        for (int offset : new int[] {frameStart + 4, frameStart + 20, stream.length - 1}) {
+            final byte[] corrupted = stream.clone();
+            corrupted[offset] ^= 0x10;
+            try {
+                decode(corrupted);
+                fail("corruption at " + offset + " went unnoticed");
+            } catch (AssertionError expected) {
+                assertTrue(expected.getMessage(), expected.getMessage().contains("CRC"));
+            }
+        }
+    }
+
+    private static Decoded roundTrip(short[] pcm) {
+        final Decoded decoded = decode(encode(new FlacEncoder(SAMPLE_RATE, BLOCK_SAMPLES), pcm));
+        assertArrayEquals(pcm, decoded.samples);
+        return decoded;
+    }
+
+    /** Encodes the samples in blocks of BLOCK_SAMPLES, the way the uplink feeds the encoder. */
+    private static byte[] encode(FlacEncoder encoder, short[] pcm) {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int start = 0; start < pcm.length; start += BLOCK_SAMPLES) {
+            appendEncoded(encoder,
+                    Arrays.copyOfRange(pcm, start, Math.min(pcm.length, start + BLOCK_SAMPLES)),
+                    stream);
+        }
+        return stream.toByteArray();
+    }
+
+    private static void appendEncoded(FlacEncoder encoder, short[] block,
+                                      ByteArrayOutputStream stream) {
+        final byte[] bytes = new byte[2 * block.length];
+        for (int i = 0; i < block.length; i++) {
+            bytes[2 * i] = (byte) block[i];
+            bytes[2 * i + 1] = (byte) (block[i] >> 8);
+        }
+        final int length = encoder.encode(bytes, 0, bytes.length);
+        stream.write(encoder.getOutput(), 0, length);
+    }
+
+    /** What the decoder found in a stream. */
+    private static final class Decoded {
+        short[] samples;
+        final List<Integer> subframeTypes = new ArrayList<>();
+        final List<Long> firstSamples = new ArrayList<>();
+    }
+
+    /**
+     * Decodes a mono 16-bit stream as the encoder writes it, failing on anything else.
+     */
+    private static Decoded decode(byte[] stream) {
+        final Decoded decoded = new Decoded();
+        final BitReader r = new BitReader(stream);
+        assertEquals("fLaC", new String(stream, 0, 4));
+        r.skipBytes(4 + 4 + 34);
+
+        final List<Integer> samples = new ArrayList<>();
+        while (r.bytePosition() < stream.length) {
+            final int frameStart = r.bytePosition();
+            assertEquals("sync code", 0x3ffe, r.read(14));
+            assertEquals("reserved", 0, r.read(1));
+            assertEquals("variable block size strategy", 1, r.read(1));
+            assertEquals("block size code", 0x7, r.read(4));
+            assertEquals("sample rate code", 0x5, r.read(4));
+            assertEquals("mono", 0, r.read(4));
+            assertEquals("16 bits per sample", 0x4, r.read(3));
+            assertEquals("reserved", 0, r.read(1));
+            decoded.firstSamples.add(r.readUtf8Number());
+            final int blockSize = r.read(16) + 1;
+            final int headerCrc = crc8(stream, frameStart, r.bytePosition());
+            assertEquals("header CRC-8", headerCrc, r.read(8));
+
+            final int[] block = decodeSubframe(r, blockSize, decoded);
+            r.alignToByte();
+            final int frameCrc = crc16(stream, frameStart, r.bytePosition());
+            assertEquals("frame CRC-16", frameCrc, r.read(16));
+            for (int sample : block) {
+                samples.add(sample);
+            }
+        }
+
+        decoded.samples = new short[samples.size()];
+        for (int i = 0; i < samples.size(); i++) {
+            final int sample = samples.get(i);
+            assertTrue("sample " + sample + " out of range",
+                    sample >= Short.MIN_VALUE && sample <= Short.MAX_VALUE);
+            decoded.samples[i] = (short) sample;
+        }
+        return decoded;
+    }
+
+    private static int[] decodeSubframe(BitReader r, int blockSize, Decoded decoded) {
+        assertEquals("subframe padding", 0, r.read(1));
+        final int type = r.read(6);
+        assertEquals("wasted bits", 0, r.read(1));
+        decoded.subframeTypes.add(type);
+        final int[] x = new int[blockSize];
+        if (type == SUBFRAME_CONSTANT) {
+            Arrays.fill(x, r.readSigned(16));
+            return x;
+        }
+        if (type == SUBFRAME_VERBATIM) {
+            for (int i = 0; i < blockSize; i++) {
+                x[i] = r.readSigned(16);
+            }
+            return x;
+        }
+        assertTrue("subframe type " + type, type >= SUBFRAME_FIXED && type <= SUBFRAME_FIXED + 4);
+        final int order = type - SUBFRAME_FIXED;
+        for (int i = 0; i < order; i++) {
+            x[i] = r.readSigned(16);
+        }
+        assertEquals("Rice coding method", 0, r.read(2));
+        final int partitionOrder = r.read(4);
+        final int partitions = 1 << partitionOrder;
+        assertEquals("partitions split the block", 0, blockSize % partitions);
+        final int partitionSamples = blockSize / partitions;
+        int i = order;
+        for (int p = 0; p < partitions; p++) {
+            final int k = r.read(4);
+            assertTrue("escape code", k != 15);
+            for (final int end = (p + 1) * partitionSamples; i < end; i++) {
+                final int folded = (r.readUnary() << k) | (k > 0 ? r.read(k) : 0);
+                final int residual = (folded >>> 1) ^ -(folded & 1);
+                x[i] = residual + predict(x, i, order);
+            }
+        }
+        return x;
+    }
+
+    private static int predict(int[] x, int i, int order) {
+        switch (order) {
+            case 0:
+                return 0;
+            case 1:
+                return x[i - 1];
+            case 2:
+                return 2 * x[i - 1] - x[i - 2];
+            case 3:
+                return 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+            default:
+                return 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4];
+        }
+    }
+
+    /** CRC-8, polynomial x^8 + x^2 + x + 1, computed one bit at a time. */
+    private static int crc8(byte[] data, int start, int end) {
+        int crc = 0;
+        for (int i = start; i < end; i++) {
+            crc ^= data[i] & 0xff;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xff : (crc << 1) & 0xff;
+            }
+        }
+        return crc;
+    }
+
+    /** CRC-16, polynomial x^16 + x^15 + x^2 + 1, computed one bit at a time. */
+    private static int crc16(byte[] data, int start, int end) {
+        int crc = 0;
+        for (int i = start; i < end; i++) {
+            crc ^= (data[i] & 0xff) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? ((crc << 1) ^ 0x8005) & 0xffff : (crc << 1) & 0xffff;
+            }
+        }
+        return crc;
+    }
+
+    /** Big-endian bit reader. */
+    private static final class BitReader {
+        private final byte[] mData;
+        private long mBit;
+
+        BitReader(byte[] data) {
+            mData = data;
+        }
+
+        int read(int bits) {
+            return (int) readLong(bits);
+        }
+
+        long readLong(int bits) {
+            long value = 0;
+            for (int i = 0; i < bits; i++) {
+                final int index = (int) (mBit >> 3);
+                if (index >= mData.length) {
+                    throw new AssertionError("Frame truncated, CRC never reached");
+                }
+                value = (value << 1) | ((mData[index] >> (7 - (mBit & 7))) & 1);
+                mBit++;
+            }
+            return value;
+        }
+
+        int readSigned(int bits) {
+            return (read(bits) << (32 - bits)) >> (32 - bits);
+        }
+
+        int readUnary() {
+            int zeros = 0;
+            while (read(1) == 0) {
+                zeros++;
+            }
+            return zeros;
+        }
+
+        long readUtf8Number() {
+            final int lead = read(8);
+            if ((lead & 0x80) == 0) {
+                return lead;
+            }
+            int continuationBytes = 0;
+            while (((lead << (continuationBytes + 1)) & 0x80) != 0) {
+                continuationBytes++;
+            }
+            long value = lead & (0x3f >> continuationBytes);
+            for (int i = 0; i < continuationBytes; i++) {
+                final int next = read(8);
+                assertEquals("continuation byte", 0x80, next & 0xc0);
+                value = (value << 6) | (next & 0x3f);
+            }
+            return value;
+        }
+
+        void skipBytes(int bytes) {
+            mBit += 8L * bytes;
+        }
+
+        void alignToByte() {
+            mBit = (mBit + 7) & ~7L;
+        }
+
+        int bytePosition() {
+            return (int) (mBit >> 3);
+        }
+    }
+}
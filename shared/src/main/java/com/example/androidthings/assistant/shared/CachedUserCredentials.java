@@ -0,0 +1,170 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.UserCredentials;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * User credentials that keep the last access token in app-private storage and renew it ahead of
+ * its expiry. After a restart the cached token is used while it is still valid, and once
+ * {@link #startRefreshing()} has been called a background thread refreshes it ten minutes
+ * before it runs out, ahead of the library's own refresh, so no request has to wait for the
+ * token exchange.
+ */
+public class CachedUserCredentials extends UserCredentials {
+    private static final String TAG = CachedUserCredentials.class.getSimpleName();
+
+    private static final String PREFERENCES_NAME = "assistant_credentials";
+    private static final String KEY_ACCESS_TOKEN = "access_token";
+    private static final String KEY_EXPIRATION_TIME = "expiration_time";
+    // Identifies the refresh token the cached access token was issued for.
+    private static final String KEY_REFRESH_TOKEN_HASH = "refresh_token_hash";
+
+    // google-auth refreshes synchronously, inside a request, once the token has less than five
+    // minutes left. Refreshing well before that keeps the exchange off the request path, with
+    // room for a few retries.
+    private static final long REFRESH_MARGIN_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final long RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private final SharedPreferences mPreferences;
+    private final String mRefreshTokenHash;
+    private ScheduledExecutorService mRefreshExecutor;
+    private ScheduledFuture<?> mScheduledRefresh;
+
+    public CachedUserCredentials(Context context, String clientId, String clientSecret,
+                                 String refreshToken) {
+        this(context, clientId, clientSecret, refreshToken, null);
+    }
+
+    /**
+     * @param tokenServerUri OAuth token endpoint, or null for Google's. Lets a local stand-in
+     *                       endpoint take its place.
+     */
+    public CachedUserCredentials(Context context, String clientId, String clientSecret,
+                                 String refreshToken, URI tokenServerUri) {
+        this(preferences(context), clientId, clientSecret, refreshToken, tokenServerUri);
+    }
+
+    CachedUserCredentials(SharedPreferences preferences, String clientId, String clientSecret,
+                          String refreshToken, URI tokenServerUri) {
+        super(clientId, clientSecret, refreshToken,
+                loadAccessToken(preferences, hash(refreshToken)), null, tokenServerUri);
+        mPreferences = preferences;
+        mRefreshTokenHash = hash(refreshToken);
+    }
+
+    /**
+     * Refreshes the access token shortly before each expiry from now on. The first refresh
+     * runs immediately when there is no usable cached token.
+     */
+    public synchronized void startRefreshing() {
+        if (mRefreshExecutor != null) {
+            return;
+        }
+        mRefreshExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "tokenRefresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AccessToken token = getAccessToken();
+        scheduleRefresh(token != null ? token.getExpirationTime() : null);
+    }
+
+    public synchronized void stopRefreshing() {
+        if (mRefreshExecutor != null) {
+            mRefreshExecutor.shutdownNow();
+            mRefreshExecutor = null;
+            mScheduledRefresh = null;
+        }
+    }
+
+    /**
+     * Exchanges the refresh token for a new access token and saves it before returning it.
+     */
+    @Override
+    public AccessToken refreshAccessToken() throws IOException {
+        AccessToken token = super.refreshAccessToken();
+        mPreferences.edit()
+                .putString(KEY_ACCESS_TOKEN, token.getTokenValue())
+                .putLong(KEY_EXPIRATION_TIME, token.getExpirationTime() != null
+                        ? token.getExpirationTime().getTime() : 0)
+                .putString(KEY_REFRESH_TOKEN_HASH, mRefreshTokenHash)
+                .apply();
+        scheduleRefresh(token.getExpirationTime());
+        return token;
+    }
+
+    private synchronized void scheduleRefresh(Date expirationTime) {
+        long delayMs = expirationTime != null
+                ? expirationTime.getTime() - System.currentTimeMillis() - REFRESH_MARGIN_MS
+                : 0;
+        schedule(Math.max(0, delayMs));
+    }
+
+    private synchronized void schedule(long delayMs) {
+        if (mRefreshExecutor == null) {
+            return;
+        }
+        if (mScheduledRefresh != null) {
+            mScheduledRefresh.cancel(false);
+        }
+        mScheduledRefresh = mRefreshExecutor.schedule(() -> {
+            try {
+                // Updates the token used by requests, and reschedules through
+                // refreshAccessToken().
+                refresh();
+                Log.i(TAG, "access token refreshed");
+            } catch (IOException e) {
+                Log.w(TAG, "access token refresh failed, retrying", e);
+                schedule(RETRY_DELAY_MS);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static SharedPreferences preferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static AccessToken loadAccessToken(SharedPreferences preferences,
+                                               String refreshTokenHash) {
+        String value = preferences.getString(KEY_ACCESS_TOKEN, null);
+        long expirationTime = preferences.getLong(KEY_EXPIRATION_TIME, 0);
+        if (value == null || expirationTime <= System.currentTimeMillis()
+                || !refreshTokenHash.equals(
+                        preferences.getString(KEY_REFRESH_TOKEN_HASH, null))) {
+            return null;
+        }
+        return new AccessToken(value, new Date(expirationTime));
+    }
+
+    private static String hash(String refreshToken) {
+        return Integer.toHexString(refreshToken.hashCode());
+    }
+}
@@ -29,14 +29,34 @@ import java.io.InputStream;
 public class Credentials {
     public static UserCredentials fromResource(Context context, int resourceId)
             throws IOException, JSONException {
-        InputStream is = context.getResources().openRawResource(resourceId);
-        byte[] bytes = new byte[is.available()];
-        is.read(bytes);
-        JSONObject json = new JSONObject(new String(bytes, "UTF-8"));
+        JSONObject json = readJson(context, resourceId);
         return new UserCredentials(
                 json.getString("client_id"),
                 json.getString("client_secret"),
                 json.getString("refresh_token")
         );
     }
+
+    /**
+     * Like {@link #fromResource}, but reuses the access token across restarts and can renew it
+     * in the background; see {@link CachedUserCredentials}.
+     */
+    public static CachedUserCredentials cachedFromResource(Context context, int resourceId)
+            throws IOException, JSONException {
+        JSONObject json = readJson(context, resourceId);
+        return new CachedUserCredentials(
+                context,
+                json.getString("client_id"),
+                json.getString("client_secret"),
+                json.getString("refresh_token")
+        );
+    }
+
+    private static JSONObject readJson(Context context, int resourceId)
+            throws IOException, JSONException {
+        InputStream is = context.getResources().openRawResource(resourceId);
+        byte[] bytes = new byte[is.available()];
+        is.read(bytes);
+        return new JSONObject(new String(bytes, "UTF-8"));
+    }
 }
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.shared;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.SharedPreferences;
+
+import com.google.auth.oauth2.AccessToken;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the credentials against a local stand-in for the OAuth token endpoint, which hands out
+ * "token-1", "token-2", ... valid for an hour and counts the exchanges.
+ */
+public class CachedUserCredentialsTest {
+    private static final String CLIENT_ID = "client-id";
+    private static final String CLIENT_SECRET = "client-secret";
+    private static final String REFRESH_TOKEN = "refresh-token";
+    private static final long TOKEN_LIFETIME_SECONDS = 3600;
+    // Where google-auth 0.6.0 starts refreshing synchronously inside a request.
+    private static final long LIBRARY_REFRESH_THRESHOLD_MS = TimeUnit.MINUTES.toMillis(5);
+    private static final long TIMEOUT_MS = 5000;
+
+    private HttpServer mServer;
+    private URI mTokenServerUri;
+    private final AtomicInteger mExchanges = new AtomicInteger();
+    private volatile String mLastRequestBody;
+    private InMemoryPreferences mPreferences;
+    private CachedUserCredentials mCredentials;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/token", exchange -> {
+            mLastRequestBody = readFully(exchange.getRequestBody());
+            final byte[] response = ("{\"access_token\": \"token-" + mExchanges.incrementAndGet()
+                    + "\", \"expires_in\": " + TOKEN_LIFETIME_SECONDS
+                    + ", \"token_type\": \"Bearer\"}").getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(response);
+            }
+        });
+        mServer.start();
+        mTokenServerUri = URI.create(
+                "http://127.0.0.1:" + mServer.getAddress().getPort() + "/token");
+        mPreferences = new InMemoryPreferences();
+    }
+
+    @After
+    public void tearDown() {
+        if (mCredentials != null) {
+            mCredentials.stopRefreshing();
+        }
+        mServer.stop(0);
+    }
+
+    @Test
+    public void refreshExchangesRefreshTokenAndSavesAccessToken() throws IOException {
+        mCredentials = newCredentials(REFRESH_TOKEN);
+        assertNull(mCredentials.getAccessToken());
+
+        final long before = System.currentTimeMillis();
+        final AccessToken token = mCredentials.refreshAccessToken();
+        assertEquals("token-1", token.getTokenValue());
+        assertEquals(1, mExchanges.get());
+        assertTrue(mLastRequestBody, mLastRequestBody.contains("grant_type=refresh_token"));
+        assertTrue(mLastRequestBody, mLastRequestBody.contains("refresh_token=" + REFRESH_TOKEN));
+
+        final CachedUserCredentials restarted = newCredentials(REFRESH_TOKEN);
+        assertNotNull(restarted.getAccessToken());
+        assertEquals("token-1", restarted.getAccessToken().getTokenValue());
+        final long expiration = restarted.getAccessToken().getExpirationTime().getTime();
+        assertTrue(expiration >= before + TimeUnit.SECONDS.toMillis(TOKEN_LIFETIME_SECONDS));
+    }
+
+    @Test
+    public void cachedTokenServesRequestsWithoutAnExchange() throws IOException {
+        newCredentials(REFRESH_TOKEN).refreshAccessToken();
+
+        mCredentials = newCredentials(REFRESH_TOKEN);
+        final Map<String, List<String>> metadata =
+                mCredentials.getRequestMetadata(URI.create("https://example.com"));
+        assertEquals(Collections.singletonList("Bearer token-1"), metadata.get("Authorization"));
+        assertEquals(1, mExchanges.get());
+    }
+
+    @Test
+    public void cacheOfAnotherRefreshTokenIsIgnored() throws IOException {
+        newCredentials(REFRESH_TOKEN).refreshAccessToken();
+        assertNull(newCredentials("another-refresh-token").getAccessToken());
+    }
+
+    @Test
+    public void expiredCacheIsIgnored() {
+        saveToken("stale", System.currentTimeMillis() - 1000);
+        assertNull(newCredentials(REFRESH_TOKEN).getAccessToken());
+    }
+
+    @Test
+    public void backgroundRefreshRunsBeforeTheLibraryWouldRefreshInARequest()
+            throws InterruptedException {
+        // Still good enough for the library, which would not refresh it for two more minutes.
+        saveToken("cached", System.currentTimeMillis()
+                + LIBRARY_REFRESH_THRESHOLD_MS + TimeUnit.MINUTES.toMillis(2));
+        mCredentials = newCredentials(REFRESH_TOKEN);
+        assertEquals("cached", mCredentials.getAccessToken().getTokenValue());
+
+        mCredentials.startRefreshing();
+        awaitToken("token-1");
+        assertEquals(1, mExchanges.get());
+        assertEquals("token-1", mPreferences.getString("access_token", null));
+    }
+
+    @Test
+    public void freshTokenIsNotRefreshedEarly() throws InterruptedException {
+        saveToken("cached", System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(30));
+        mCredentials = newCredentials(REFRESH_TOKEN);
+        mCredentials.startRefreshing();
+        Thread.sleep(200);
+        assertEquals(0, mExchanges.get());
+        assertEquals("cached", mCredentials.getAccessToken().getTokenValue());
+    }
+
+    private CachedUserCredentials newCredentials(String refreshToken) {
+        return new CachedUserCredentials(mPreferences, CLIENT_ID, CLIENT_SECRET, refreshToken,
+                mTokenServerUri);
+    }
+
+    /**
+     * Leaves a token in the cache the way a previous run would have.
+     */
+    private void saveToken(String value, long expirationTime) {
+        final CachedUserCredentials previous = newCredentials(REFRESH_TOKEN);
+        try {
+            previous.refreshAccessToken();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        mExchanges.set(0);
+        mPreferences.edit()
+                .putString("access_token", value)
+                .putLong("expiration_time", expirationTime)
+                .apply();
+    }
+
+    private void awaitToken(String expected) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        AccessToken token = mCredentials.getAccessToken();
+        while (token == null || !expected.equals(token.getTokenValue())) {
+            assertTrue("token is " + (token != null ? token.getTokenValue() : null),
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+            token = mCredentials.getAccessToken();
+        }
+    }
+
+    private static String readFully(InputStream stream) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[256];
+        int read;
+        while ((read = stream.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+
+    /** Just enough of SharedPreferences for the credentials, kept in a map. */
+    private static final class InMemoryPreferences implements SharedPreferences {
+        private final Map<String, Object> mValues = new HashMap<>();
+
+        @Override
+        public synchronized Map<String, ?> getAll() {
+            return new HashMap<>(mValues);
+        }
+
+        @Override
+        public synchronized String getString(String key, String defValue) {
+            return mValues.containsKey(key) ? (String) mValues.get(key) : defValue;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public synchronized Set<String> getStringSet(String key, Set<String> defValues) {
+            return mValues.containsKey(key) ? (Set<String>) mValues.get(key) : defValues;
+        }
+
+        @Override
+        public synchronized int getInt(String key, int defValue) {
+            return mValues.containsKey(key) ? (Integer) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public synchronized long getLong(String key, long defValue) {
+            return mValues.containsKey(key) ? (Long) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public synchronized float getFloat(String key, float defValue) {
+            return mValues.containsKey(key) ? (Float) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public synchronized boolean getBoolean(String key, boolean defValue) {
+            return mValues.containsKey(key) ? (Boolean) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public synchronized boolean contains(String key) {
+            return mValues.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new InMemoryEditor();
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+            throw new UnsupportedOperationException();
+        }
+
+        private final class InMemoryEditor implements Editor {
+            private final Map<String, Object> mChanges = new HashMap<>();
+            private boolean mClear;
+
+            @Override
+            public Editor putString(String key, String value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putStringSet(String key, Set<String> values) {
+                mChanges.put(key, values);
+                return this;
+            }
+
+            @Override
+            public Editor putInt(String key, int value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putLong(String key, long value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putFloat(String key, float value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putBoolean(String key, boolean value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor remove(String key) {
+                mChanges.put(key, null);
+                return this;
+            }
+
+            @Override
+            public Editor clear() {
+                mClear = true;
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                synchronized (InMemoryPreferences.this) {
+                    if (mClear) {
+                        mValues.clear();
+                    }
+                    for (Map.Entry<String, Object> change : mChanges.entrySet()) {
+                        if (change.getValue() == null) {
+                            mValues.remove(change.getKey());
+                        } else {
+                            mValues.put(change.getKey(), change.getValue());
+                        }
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                commit();
+            }
+        }
+    }
+}
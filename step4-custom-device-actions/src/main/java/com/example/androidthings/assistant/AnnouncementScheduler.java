@@ -0,0 +1,209 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns a stream of per-frame detections into short spoken announcements.
+ *
+ * <p>Labels are aggregated over a sliding window, keeping the largest number of each seen in
+ * one frame, and merged into a single phrase such as "two chairs and a person". A label is not
+ * announced again within the cooldown unless its count changes, and announcements are spaced by
+ * at least the minimum interval, so they can be queued on the speech engine without piling up.
+ *
+ * <p>Time comes from a {@link Clock} and output goes to a {@link Speaker}, so the scheduler has
+ * no platform dependencies and can be driven by a fake clock.
+ */
+public class AnnouncementScheduler {
+    public static final long DEFAULT_WINDOW_MS = 1000;
+    public static final long DEFAULT_COOLDOWN_MS = 10000;
+    public static final long DEFAULT_MIN_INTERVAL_MS = 2000;
+
+    /** Source of monotonic time in milliseconds. */
+    public interface Clock {
+        long nowMs();
+    }
+
+    /** Receives announcements, at most one per minimum interval. */
+    public interface Speaker {
+        void speak(String phrase);
+    }
+
+    private static final String[] NUMBER_WORDS = {
+            "no", "one", "two", "three", "four", "five", "six", "seven", "eight", "nine", "ten"
+    };
+    private static final Map<String, String> IRREGULAR_PLURALS = new HashMap<>();
+
+    static {
+        IRREGULAR_PLURALS.put("person", "people");
+        IRREGULAR_PLURALS.put("mouse", "mice");
+        IRREGULAR_PLURALS.put("knife", "knives");
+        IRREGULAR_PLURALS.put("sheep", "sheep");
+        IRREGULAR_PLURALS.put("skis", "pairs of skis");
+        IRREGULAR_PLURALS.put("scissors", "pairs of scissors");
+    }
+
+    private final Clock clock;
+    private final Speaker speaker;
+    private final long windowMs;
+    private final long cooldownMs;
+    private final long minIntervalMs;
+
+    private final Map<String, Label> labels = new HashMap<>();
+    private final Map<String, Integer> frameCounts = new HashMap<>();
+    private final List<Label> due = new ArrayList<>();
+    private final StringBuilder phrase = new StringBuilder();
+    private long lastSpokenMs = Long.MIN_VALUE / 2;
+
+    public AnnouncementScheduler(Clock clock, Speaker speaker) {
+        this(clock, speaker, DEFAULT_WINDOW_MS, DEFAULT_COOLDOWN_MS, DEFAULT_MIN_INTERVAL_MS);
+    }
+
+    /**
+     * @param windowMs how long a label stays in the aggregate after it was last seen.
+     * @param cooldownMs how long an announced label stays quiet while its count is unchanged.
+     * @param minIntervalMs smallest gap between two announcements.
+     */
+    public AnnouncementScheduler(Clock clock, Speaker speaker, long windowMs, long cooldownMs,
+                                 long minIntervalMs) {
+        this.clock = clock;
+        this.speaker = speaker;
+        this.windowMs = windowMs;
+        this.cooldownMs = cooldownMs;
+        this.minIntervalMs = minIntervalMs;
+    }
+
+    /**
+     * Adds the labels detected in one frame, possibly with repeats, and speaks if anything is
+     * due. Frames without detections should be passed too, they advance the window.
+     */
+    public synchronized void onDetections(List<String> titles) {
+        final long now = clock.nowMs();
+
+        frameCounts.clear();
+        for (String title : titles) {
+            final Integer count = frameCounts.get(title);
+            frameCounts.put(title, count == null ? 1 : count + 1);
+        }
+        for (Map.Entry<String, Integer> entry : frameCounts.entrySet()) {
+            Label label = labels.get(entry.getKey());
+            if (label == null) {
+                label = new Label(entry.getKey());
+                labels.put(label.title, label);
+            }
+            // Keep the window maximum, letting a stale maximum fall back to the current count.
+            if (entry.getValue() >= label.count || now - label.countSeenMs > windowMs) {
+                label.count = entry.getValue();
+                label.countSeenMs = now;
+            }
+            label.lastSeenMs = now;
+        }
+
+        due.clear();
+        for (Label label : labels.values()) {
+            if (now - label.lastSeenMs > windowMs) {
+                continue;
+            }
+            if (label.count != label.announcedCount
+                    || now - label.announcedMs >= cooldownMs) {
+                due.add(label);
+            }
+        }
+        if (due.isEmpty() || now - lastSpokenMs < minIntervalMs) {
+            return;
+        }
+
+        phrase.setLength(0);
+        for (int i = 0; i < due.size(); i++) {
+            final Label label = due.get(i);
+            if (i > 0) {
+                phrase.append(i == due.size() - 1 ? " and " : ", ");
+            }
+            phrase.append(describe(label.title, label.count));
+            label.announcedCount = label.count;
+            label.announcedMs = now;
+        }
+        lastSpokenMs = now;
+        speaker.speak(phrase.toString());
+    }
+
+    /**
+     * Forgets everything announced so far, so the next detections are spoken right away.
+     */
+    public synchronized void reset() {
+        labels.clear();
+        lastSpokenMs = Long.MIN_VALUE / 2;
+    }
+
+    /**
+     * @return e.g. "a chair", "an apple" or "two chairs".
+     */
+    static String describe(String title, int count) {
+        if (count == 1) {
+            final String plural = IRREGULAR_PLURALS.get(title);
+            if (plural != null && plural.startsWith("pairs of ")) {
+                return "a pair of " + title;
+            }
+            return ("aeiou".indexOf(Character.toLowerCase(title.charAt(0))) >= 0 ? "an " : "a ")
+                    + title;
+        }
+        final String number = count < NUMBER_WORDS.length
+                ? NUMBER_WORDS[count] : Integer.toString(count);
+        return number + " " + plural(title);
+    }
+
+    static String plural(String title) {
+        // Multi-word labels such as "traffic light" inflect the last word.
+        final int space = title.lastIndexOf(' ');
+        final String head = title.substring(0, space + 1);
+        final String word = title.substring(space + 1);
+        final String irregular = IRREGULAR_PLURALS.get(title);
+        if (irregular != null) {
+            return irregular;
+        }
+        if (IRREGULAR_PLURALS.containsKey(word)) {
+            return head + IRREGULAR_PLURALS.get(word);
+        }
+        if (word.endsWith("s") || word.endsWith("x") || word.endsWith("ch")
+                || word.endsWith("sh")) {
+            return head + word + "es";
+        }
+        if (word.length() > 1 && word.endsWith("y")
+                && "aeiou".indexOf(word.charAt(word.length() - 2)) < 0) {
+            return head + word.substring(0, word.length() - 1) + "ies";
+        }
+        return head + word + "s";
+    }
+
+    private static final class Label {
+        final String title;
+        // Largest number seen in one frame within the window, and when it was seen.
+        int count;
+        long countSeenMs;
+        long lastSeenMs;
+        int announcedCount;
+        long announcedMs = Long.MIN_VALUE / 2;
+
+        Label(String title) {
+            this.title = title;
+        }
+    }
+}
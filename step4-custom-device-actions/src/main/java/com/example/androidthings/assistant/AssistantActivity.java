@@ -41,8 +41,10 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.StrictMode;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.speech.tts.TextToSpeech;
+import android.speech.tts.UtteranceProgressListener;
 import android.util.Log;
 import android.util.Size;
 import android.widget.ArrayAdapter;
@@ -50,11 +52,12 @@ import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.Toast;
 
-import com.example.androidthings.assistant.env.ImageUtils;
 import com.example.androidthings.assistant.env.Logger;
 import com.example.androidthings.assistant.shared.BoardDefaults;
+import com.example.androidthings.assistant.shared.CachedUserCredentials;
 import com.example.androidthings.assistant.shared.Credentials;
 import com.example.androidthings.assistant.shared.MyDevice;
+import com.example.androidthings.audio.FlacEncoder;
 import com.google.android.things.contrib.driver.button.Button;
 import com.google.android.things.contrib.driver.voicehat.Max98357A;
 import com.google.android.things.contrib.driver.voicehat.VoiceHat;
@@ -70,17 +73,17 @@ import com.google.assistant.embedded.v1alpha2.DialogStateIn;
 import com.google.assistant.embedded.v1alpha2.EmbeddedAssistantGrpc;
 import com.google.assistant.embedded.v1alpha2.SpeechRecognitionResult;
 import com.google.protobuf.ByteString;
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 import io.grpc.auth.MoreCallCredentials;
 import io.grpc.stub.StreamObserver;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -97,6 +100,13 @@ public class AssistantActivity extends Activity implements  ImageReader.OnImageA
     private static final boolean USE_VOICEHAT_DAC = false;
     private static final int BUTTON_DEBOUNCE_DELAY_MS = 20;
 
+    // Startup stages run concurrently on this many background threads.
+    private static final int STARTUP_THREADS = 3;
+    private ExecutorService mStartupExecutor;
+    private StartupGraph mStartup;
+    // Set once button, audio, channel and detector are all up.
+    private volatile boolean mReady;
+
     // Camera Variables
     private CameraHandler mCameraHandler;
     private HandlerThread mBackgroundThread;
@@ -104,23 +114,43 @@ public class AssistantActivity extends Activity implements  ImageReader.OnImageA
 
     private Context mContext;
     // Camera Image Capture Size
-    private int previewWidth = 640;
-    private int previewHeight = 480;
     private static final Size MODEL_IMAGE_SIZE = new Size(640, 480);
-    private static final Logger LOGGER = new Logger();
+    // How long the camera keeps describing the scene after an OpenCamera command.
+    private static final long DESCRIBE_SCENE_MS = 30000;
+    private static final Logger LOGGER = new Logger(AssistantActivity.class);
 
     //detect variable
     TextToSpeech tts;
-    private Runnable imageConverter;
-    private int[] rgbBytes;
-    Image image = null;
+    // Speaks what the camera sees without repeating itself.
+    private AnnouncementScheduler mAnnouncements;
+    // Pre-synthesized labels and fixed phrases, set up once the engine is ready.
+    private volatile SpeechCache mSpeechCache;
+    private StreamingAudioPlayer mSpeechPlayer;
+    private static final float SPEECH_RATE = 1.0f;
+    private static final String LOCATION_PHRASE = "Your current location is Nagarro 371, Gurgaon";
+    // Speech not served from the cache is tagged with the time it was requested.
+    private static final String SPEECH_UTTERANCE_PREFIX = "speech:";
+
+    // Latency histograms are logged and written to this file in the app's files directory.
+    private static final String METRICS_FILE = "latency.txt";
+    private static final long METRICS_REPORT_PERIOD_MS = 60000;
+    // Assistant turns kept for inspection.
+    private static final int RECENT_TURNS = 20;
+    // Single owner of the inference thread and frame buffers.
+    private volatile DetectorActivity mDetectionPipeline;
 
     // Audio constants.
     private static final int SAMPLE_RATE = 16000;
     private static int mVolumePercentage = 100;
     private static final int ENCODING = AudioFormat.ENCODING_PCM_16BIT;
-    private static AudioInConfig.Encoding ENCODING_INPUT = AudioInConfig.Encoding.LINEAR16;
-    private static AudioOutConfig.Encoding ENCODING_OUTPUT = AudioOutConfig.Encoding.LINEAR16;
+    // Compress the uplink with FLAC; lossless, and roughly halves the bytes per request.
+    private static final boolean USE_FLAC_UPLINK = true;
+    private static AudioInConfig.Encoding ENCODING_INPUT = USE_FLAC_UPLINK
+            ? AudioInConfig.Encoding.FLAC : AudioInConfig.Encoding.LINEAR16;
+    // Receive responses as Ogg Opus, about a tenth of the bytes of LINEAR16.
+    private static final boolean USE_OPUS_DOWNLINK = true;
+    private static AudioOutConfig.Encoding ENCODING_OUTPUT = USE_OPUS_DOWNLINK
+            ? AudioOutConfig.Encoding.OPUS_IN_OGG : AudioOutConfig.Encoding.LINEAR16;
     private static final AudioInConfig ASSISTANT_AUDIO_REQUEST_CONFIG =
             AudioInConfig.newBuilder()
                     .setEncoding(ENCODING_INPUT)
@@ -139,6 +169,14 @@ public class AssistantActivity extends Activity implements  ImageReader.OnImageA
                     .setSampleRate(SAMPLE_RATE)
                     .build();
     private static final AudioFormat AUDIO_FORMAT_OUT_MONO =
+            new AudioFormat.Builder()
+                    .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+                    .setEncoding(ENCODING)
+                    .setSampleRate(USE_OPUS_DOWNLINK
+                            ? OggOpusDecoder.OUTPUT_SAMPLE_RATE : SAMPLE_RATE)
+                    .build();
+    // Starting format of the speech cache player; it follows the rate of the synthesized clips.
+    private static final AudioFormat AUDIO_FORMAT_OUT_MONO_SPEECH =
             new AudioFormat.Builder()
                     .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
                     .setEncoding(ENCODING)
@@ -150,25 +188,41 @@ public class AssistantActivity extends Activity implements  ImageReader.OnImageA
                     .setEncoding(ENCODING)
                     .setSampleRate(SAMPLE_RATE)
                     .build();
+    // Bytes of microphone audio per uplink message, 32 ms at 16 kHz mono.
     private static final int SAMPLE_BLOCK_SIZE = 1024;
+    // Audio kept from before the detected start of speech, in uplink chunks.
+    private static final int VAD_PRE_ROLL_CHUNKS = 8;
+    // Ends the request once the user stops talking instead of waiting for the button release.
+    private static final boolean END_REQUEST_ON_SILENCE = false;
+    // Response audio collected before playback starts, to ride out network jitter.
+    private static final int PLAYBACK_PRE_ROLL_MS = 150;
     private int mOutputBufferSize;
 
     // Google Assistant API constants.
     private static final String ASSISTANT_ENDPOINT = "embeddedassistant.googleapis.com";
     public ImageView imageView;
+    // The preview imageView is drawing, held until the next one replaces it.
+    private Bitmap mShownPreview;
 
 
     // gRPC client and stream observers.
+    private AssistantChannelManager mChannelManager;
+    private CachedUserCredentials mCredentials;
     private EmbeddedAssistantGrpc.EmbeddedAssistantStub mAssistantService;
     private StreamObserver<AssistRequest> mAssistantRequestObserver;
+    private final AssistantTurnTimeline mTurns = new AssistantTurnTimeline(RECENT_TURNS);
     private StreamObserver<AssistResponse> mAssistantResponseObserver =
             new StreamObserver<AssistResponse>() {
                 @Override
                 public void onNext(AssistResponse value) {
                     if (value.getEventType() != null) {
                         Log.d(TAG, "converse response event: " + value.getEventType());
+                        if (value.getEventType() == AssistResponse.EventType.END_OF_UTTERANCE) {
+                            mTurns.mark(AssistantTurnTimeline.END_OF_UTTERANCE);
+                        }
                     }
                     if (value.getSpeechResultsList() != null && value.getSpeechResultsList().size() > 0) {
+                        mTurns.mark(AssistantTurnTimeline.FIRST_SPEECH_RESULT);
                         for (SpeechRecognitionResult result : value.getSpeechResultsList()) {
                             final String spokenRequestText = result.getTranscript();
                             if (!spokenRequestText.isEmpty()) {
@@ -187,16 +241,24 @@ public class AssistantActivity extends Activity implements  ImageReader.OnImageA
                         if (volume > 0) {
                             mVolumePercentage = volume;
                             Log.i(TAG, "assistant volume changed: " + mVolumePercentage);
-                            mAudioTrack.setVolume(AudioTrack.getMaxVolume() *
+                            mAudioPlayer.setVolume(AudioTrack.getMaxVolume() *
                                     mVolumePercentage / 100.0f);
                         }
                         mConversationState = value.getDialogStateOut().getConversationState();
                     }
                     if (value.getAudioOut() != null) {
-                        final ByteBuffer audioData =
-                                ByteBuffer.wrap(value.getAudioOut().getAudioData().toByteArray());
+                        // audio_out chunks arrive in order, so they can be played as they come.
+                        final byte[] audioData = value.getAudioOut().getAudioData().toByteArray();
+                        if (audioData.length > 0) {
+                            mTurns.mark(AssistantTurnTimeline.FIRST_AUDIO_OUT);
+                        }
 
-                        Log.d(TAG, "converse audio size: " + audioData.remaining());
+                        Log.d(TAG, "converse audio size: " + audioData.length);
+                        if (mOpusDecoder != null) {
+                            mOpusDecoder.feed(audioData);
+                        } else {
+                            mAudioPlayer.enqueue(audioData);
+                        }
 
                         if (mLed != null) {
                             try {
@@ -204,15 +266,6 @@ public class AssistantActivity extends Activity implements  ImageReader.OnImageA
                             } catch (IOException e) {
                                 Log.w(TAG, "error toggling LED:", e);
                             }
-                            Log.d(TAG, "converse audio size: " + audioData.remaining());
-                            mAssistantResponses.add(audioData);
-                            if (mLed != null) {
-                                try {
-                                    mLed.setValue(!mLed.getValue());
-                                } catch (IOException e) {
-                                    Log.w(TAG, "error toggling LED:", e);
-                                }
-                            }
                         }
                     }
                     if (value.getDeviceAction() != null &&
@@ -250,42 +303,28 @@ public class AssistantActivity extends Activity implements  ImageReader.OnImageA
                 @Override
                 public void onError(Throwable t) {
                     Log.e(TAG, "converse error:", t);
+                    mTurns.end();
+                    finishResponseAudio();
                 }
 
                 @Override
                 public void onCompleted() {
-                    mAudioTrack = new AudioTrack.Builder()
-                            .setAudioFormat(AUDIO_FORMAT_OUT_MONO)
-                            .setBufferSizeInBytes(mOutputBufferSize)
-                            .setTransferMode(AudioTrack.MODE_STREAM)
-                            .build();
-                    if (mAudioOutputDevice != null) {
-                        mAudioTrack.setPreferredDevice(mAudioOutputDevice);
-                    }
-                    mAudioTrack.play();
-                    if (mDac != null) {
-                        try {
-                            mDac.setSdMode(Max98357A.SD_MODE_LEFT);
-                        } catch (IOException e) {
-                            Log.e(TAG, "unable to modify dac trigger", e);
-                        }
-                    }
-                    for (ByteBuffer audioData : mAssistantResponses) {
-                        final ByteBuffer buf = audioData;
-                        Log.d(TAG, "Playing a bit of audio");
-                        mAudioTrack.write(buf, buf.remaining(),
-                                AudioTrack.WRITE_BLOCKING);
-                    }
-                    mAssistantResponses.clear();
-                    mAudioTrack.stop();
-                    if (mDac != null) {
-                        try {
-                            mDac.setSdMode(Max98357A.SD_MODE_SHUTDOWN);
-                        } catch (IOException e) {
-                            Log.e(TAG, "unable to modify gpio peripherals", e);
-                        }
-                    }
-                    Log.i(TAG, "assistant response finished");
+                    mTurns.mark(AssistantTurnTimeline.COMPLETED);
+                    // Play out whatever is still buffered; the listener below shuts things down.
+                    finishResponseAudio();
+                }
+            };
+
+    private final StreamingAudioPlayer.Listener mPlaybackListener =
+            new StreamingAudioPlayer.Listener() {
+                @Override
+                public void onPlaybackStarted() {
+                    powerUpDac();
+                }
+
+                @Override
+                public void onPlaybackFinished() {
+                    powerDownDacIfIdle();
                     if (mLed != null) {
                         try {
                             mLed.setValue(false);
@@ -296,9 +335,44 @@ public class AssistantActivity extends Activity implements  ImageReader.OnImageA
                 }
             };
 
+    // Announcements share the amplifier with the Assistant but leave the LED alone, it belongs to
+    // the button and the Assistant turn.
+    private final StreamingAudioPlayer.Listener mSpeechPlaybackListener =
+            new StreamingAudioPlayer.Listener() {
+                @Override
+                public void onPlaybackStarted() {
+                    powerUpDac();
+                }
+
+                @Override
+                public void onPlaybackFinished() {
+                    powerDownDacIfIdle();
+                }
+            };
+
+    // Ends the Assistant turn once its response has played out.
+    private final StreamingAudioPlayer.Listener mAssistantPlaybackListener =
+            new StreamingAudioPlayer.Listener() {
+                @Override
+                public void onPlaybackStarted() {
+                    mPlaybackListener.onPlaybackStarted();
+                }
+
+                @Override
+                public void onPlaybackFinished() {
+                    mTurns.mark(AssistantTurnTimeline.PLAYBACK_DRAINED, System.nanoTime()
+                            + mAudioPlayer.getPendingPlaybackMs() * 1000000);
+                    mTurns.end();
+                    mPlaybackListener.onPlaybackFinished();
+                }
+            };
+
     // Audio playback and recording objects.
-    private AudioTrack mAudioTrack;
+    private StreamingAudioPlayer mAudioPlayer;
+    // Decodes compressed responses into mAudioPlayer; null for LINEAR16.
+    private OggOpusDecoder mOpusDecoder;
     private AudioRecord mAudioRecord;
+    private AudioUplink mAudioUplink;
 
     // Audio routing configuration: use default routing.
     private AudioDeviceInfo mAudioInputDevice;
@@ -309,18 +383,33 @@ public class AssistantActivity extends Activity implements  ImageReader.OnImageA
     private Gpio mLed;
     private Gpio mBlueLed;
     private Max98357A mDac;
+    // Orders the amplifier switches made by the two players' threads.
+    private final Object mDacLock = new Object();
     private Handler mLedHandler = new Handler(Looper.getMainLooper());
 
     // Assistant Thread and Runnables implementing the push-to-talk functionality.
     private ByteString mConversationState = null;
     private HandlerThread mAssistantThread;
     private Handler mAssistantHandler;
-    private ArrayList<ByteBuffer> mAssistantResponses = new ArrayList<>();
+    // From the start of a request until its uplink is closed.
+    private volatile boolean mRequestActive;
     private Runnable mStartAssistantRequest = new Runnable() {
         @Override
         public void run() {
-            Log.i(TAG, "starting assistant request");
-            mAudioRecord.startRecording();
+            if (!mReady) {
+                Log.w(TAG, "still starting up, ignoring assistant request");
+                return;
+            }
+            mRequestActive = true;
+            // A request on a channel that is not READY includes connection setup in its latency.
+            Log.i(TAG, "starting assistant request, channel " + mChannelManager.getState()
+                    + ", last connection setup " + mChannelManager.getLastConnectMs() + " ms");
+            // Reset before the call is opened: the server may answer while the button is still
+            // held, and nothing of this response may be dropped once it has started.
+            mAudioPlayer.beginResponse();
+            if (mOpusDecoder != null) {
+                mOpusDecoder.beginResponse();
+            }
             mAssistantRequestObserver = mAssistantService.assist(mAssistantResponseObserver);
             AssistConfig.Builder converseConfigBuilder = AssistConfig.newBuilder()
                     .setAudioInConfig(ASSISTANT_AUDIO_REQUEST_CONFIG)
@@ -339,42 +428,95 @@ public class AssistantActivity extends Activity implements  ImageReader.OnImageA
                     AssistRequest.newBuilder()
                             .setConfig(converseConfigBuilder.build())
                             .build());
-            mAssistantHandler.post(mStreamAssistantRequest);
+            mAudioUplink.start(markFirstUplink(mAssistantRequestObserver));
         }
     };
-    private Runnable mStreamAssistantRequest = new Runnable() {
-        @Override
-        public void run() {
-            ByteBuffer audioData = ByteBuffer.allocateDirect(SAMPLE_BLOCK_SIZE);
-            if (mAudioInputDevice != null) {
-                mAudioRecord.setPreferredDevice(mAudioInputDevice);
+
+    /**
+     * Wraps the request stream to mark the first audio chunk of the turn.
+     */
+    private StreamObserver<AssistRequest> markFirstUplink(
+            final StreamObserver<AssistRequest> requestObserver) {
+        return new StreamObserver<AssistRequest>() {
+            @Override
+            public void onNext(AssistRequest value) {
+                mTurns.mark(AssistantTurnTimeline.FIRST_UPLINK);
+                requestObserver.onNext(value);
             }
-            int result =
-                    mAudioRecord.read(audioData, audioData.capacity(), AudioRecord.READ_BLOCKING);
-            if (result < 0) {
-                Log.e(TAG, "error reading from audio stream:" + result);
-                return;
+
+            @Override
+            public void onError(Throwable t) {
+                requestObserver.onError(t);
             }
-            Log.d(TAG, "streaming ConverseRequest: " + result);
-            mAssistantRequestObserver.onNext(AssistRequest.newBuilder()
-                    .setAudioIn(ByteString.copyFrom(audioData))
-                    .build());
-            mAssistantHandler.post(mStreamAssistantRequest);
-        }
-    };
+
+            @Override
+            public void onCompleted() {
+                requestObserver.onCompleted();
+            }
+        };
+    }
     private Runnable mStopAssistantRequest = new Runnable() {
         @Override
         public void run() {
+            mRequestActive = false;
+            if (mAssistantRequestObserver == null) {
+                // Already ended at the end of speech.
+                return;
+            }
             Log.i(TAG, "ending assistant request");
-            mAssistantHandler.removeCallbacks(mStreamAssistantRequest);
+            // Waits for the last chunk, the observer must not be completed while it is in use.
+            mAudioUplink.stop();
             if (mAssistantRequestObserver != null) {
                 mAssistantRequestObserver.onCompleted();
                 mAssistantRequestObserver = null;
             }
-            mAudioRecord.stop();
-            mAudioTrack.play();
         }
     };
+
+    private void powerUpDac() {
+        synchronized (mDacLock) {
+            if (mDac != null) {
+                try {
+                    mDac.setSdMode(Max98357A.SD_MODE_LEFT);
+                } catch (IOException e) {
+                    Log.e(TAG, "unable to modify dac trigger", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Shuts the amplifier down unless one of the players is still playing or a request is open,
+     * whose response will play next. Checked under the lock, so a player that starts meanwhile
+     * powers the amplifier up after this.
+     */
+    private void powerDownDacIfIdle() {
+        synchronized (mDacLock) {
+            if (mRequestActive || isPlaying(mAudioPlayer) || isPlaying(mSpeechPlayer)) {
+                return;
+            }
+            if (mDac != null) {
+                try {
+                    mDac.setSdMode(Max98357A.SD_MODE_SHUTDOWN);
+                } catch (IOException e) {
+                    Log.e(TAG, "unable to modify gpio peripherals", e);
+                }
+            }
+        }
+    }
+
+    private static boolean isPlaying(StreamingAudioPlayer player) {
+        return player != null && player.isPlaying();
+    }
+
+    private void finishResponseAudio() {
+        if (mOpusDecoder != null) {
+            // Finishes the player once the decoder has drained.
+            mOpusDecoder.finish();
+        } else {
+            mAudioPlayer.finish();
+        }
+    }
     private Handler mMainHandler;
 
     // List & adapter to store and display the history of Assistant Requests.
@@ -385,19 +527,34 @@ public class AssistantActivity extends Activity implements  ImageReader.OnImageA
     private static final String TF_OD_API_MODEL_FILE =
             "file:///android_asset/ssd_mobilenet_v1_android_export.pb";
     private static final String TF_OD_API_LABELS_FILE = "file:///android_asset/coco_labels_list.txt";
+    private static final String TF_LITE_MODEL_FILE = "file:///android_asset/detect.tflite";
+    private static final String TF_LITE_LABELS_FILE = "file:///android_asset/labelmap.txt";
+    private static final int TF_LITE_NUM_THREADS = 4;
+
+    // Detector backends; the default can be overridden per launch with
+    // "am start -e detectorBackend tensorflow" to compare them on the same scenes.
+    private static final String DETECTOR_BACKEND_TENSORFLOW = "tensorflow";
+    private static final String DETECTOR_BACKEND_TFLITE = "tflite";
+    private static final String DETECTOR_BACKEND = DETECTOR_BACKEND_TFLITE;
+    private static final String EXTRA_DETECTOR_BACKEND = "detectorBackend";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         init();
         mContext = this;
+        LatencyMetrics.startReporting(new File(getFilesDir(), METRICS_FILE),
+                METRICS_REPORT_PERIOD_MS);
         tts = new TextToSpeech(this,this);
+        mAnnouncements = new AnnouncementScheduler(SystemClock::elapsedRealtime,
+                phrase -> speak(phrase, TextToSpeech.QUEUE_ADD));
         StrictMode.VmPolicy.Builder builder = new StrictMode.VmPolicy.Builder();
         StrictMode.setVmPolicy(builder.build());
         Log.i(TAG, "starting assistant demo");
 
         setContentView(R.layout.activity_main);
         ListView assistantRequestsListView = findViewById(R.id.assistantRequestsListView);
+        imageView = findViewById(R.id.imageView);
         mAssistantRequestsAdapter =
                 new ArrayAdapter<>(this, android.R.layout.simple_list_item_1,
                         mAssistantRequests);
@@ -408,6 +565,61 @@ public class AssistantActivity extends Activity implements  ImageReader.OnImageA
         mAssistantThread.start();
         mAssistantHandler = new Handler(mAssistantThread.getLooper());
 
+        // Independent startup work overlaps; the button is only honoured once all of it is up.
+        mStartupExecutor = Executors.newFixedThreadPool(STARTUP_THREADS,
+                r -> new Thread(r, "startup"));
+        mStartup = new StartupGraph(mStartupExecutor, mMainHandler::post)
+                // The button driver needs a looper, so it is opened on the main thread.
+                .onMainThread("peripherals", this::openPeripherals)
+                .inBackground("audio", this::setUpAudio)
+                .inBackground("credentials", this::loadCredentials)
+                .inBackground("channel", this::connectChannel)
+                .inBackground("assistant", this::createAssistantService,
+                        "channel", "credentials")
+                .inBackground("detector", this::loadDetector)
+                .external("tts")
+                .onMainThread("speechCache", this::warmUpSpeechCache,
+                        "tts", "detector", "audio");
+        mStartup.whenReady(new StartupGraph.Listener() {
+            @Override
+            public void onReady(long bootMs) {
+                mReady = true;
+                mStartupExecutor.shutdown();
+            }
+
+            @Override
+            public void onFailed(Throwable cause) {
+                mStartupExecutor.shutdown();
+            }
+        }, "peripherals", "audio", "assistant", "detector");
+    }
+
+    private void openPeripherals() throws IOException {
+        if (USE_VOICEHAT_DAC) {
+            Log.i(TAG, "initializing DAC trigger");
+            mDac = VoiceHat.openDac();
+            mDac.setSdMode(Max98357A.SD_MODE_SHUTDOWN);
+
+            mButton = VoiceHat.openButton();
+            mLed = VoiceHat.openLed();
+        } else {
+            mButton = new Button(BoardDefaults.getGPIOForButton(),
+                    Button.LogicState.PRESSED_WHEN_LOW);
+            mLed = PeripheralManager.getInstance().openGpio(BoardDefaults.getGPIOForLED());
+            mBlueLed = RainbowHat.openLedBlue();
+        }
+
+        mButton.setDebounceDelay(BUTTON_DEBOUNCE_DELAY_MS);
+        mButton.setOnButtonEventListener(this);
+
+        mLed.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
+        mLed.setActiveType(Gpio.ACTIVE_HIGH);
+
+        mBlueLed.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
+        mBlueLed.setActiveType(Gpio.ACTIVE_HIGH);
+    }
+
+    private void setUpAudio() {
         // Use I2S with the Voice HAT.
         if (USE_VOICEHAT_DAC) {
             Log.d(TAG, "enumerating devices");
@@ -423,36 +635,6 @@ public class AssistantActivity extends Activity implements  ImageReader.OnImageA
             }
         }
 
-        try {
-            if (USE_VOICEHAT_DAC) {
-                Log.i(TAG, "initializing DAC trigger");
-                mDac = VoiceHat.openDac();
-                mDac.setSdMode(Max98357A.SD_MODE_SHUTDOWN);
-
-                mButton = VoiceHat.openButton();
-                mLed = VoiceHat.openLed();
-            } else {
-                mButton = new Button(BoardDefaults.getGPIOForButton(),
-                        Button.LogicState.PRESSED_WHEN_LOW);
-                mLed = PeripheralManager.getInstance().openGpio(BoardDefaults.getGPIOForLED());
-                mBlueLed = RainbowHat.openLedBlue();
-            }
-
-            mButton.setDebounceDelay(BUTTON_DEBOUNCE_DELAY_MS);
-            mButton.setOnButtonEventListener(this);
-
-            mLed.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
-            mLed.setActiveType(Gpio.ACTIVE_HIGH);
-
-            mBlueLed.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
-            mBlueLed.setActiveType(Gpio.ACTIVE_HIGH);
-
-
-        } catch (IOException e) {
-            Log.e(TAG, "error configuring peripherals:", e);
-            return;
-        }
-
         AudioManager manager = (AudioManager) this.getSystemService(Context.AUDIO_SERVICE);
         int maxVolume = manager.getStreamMaxVolume(AudioManager.STREAM_MUSIC);
         Log.i(TAG, "setting volume to: " + maxVolume);
@@ -460,11 +642,11 @@ public class AssistantActivity extends Activity implements  ImageReader.OnImageA
         mOutputBufferSize = AudioTrack.getMinBufferSize(AUDIO_FORMAT_OUT_MONO.getSampleRate(),
                 AUDIO_FORMAT_OUT_MONO.getChannelMask(),
                 AUDIO_FORMAT_OUT_MONO.getEncoding());
-        mAudioTrack = new AudioTrack.Builder()
-                .setAudioFormat(AUDIO_FORMAT_OUT_MONO)
-                .setBufferSizeInBytes(mOutputBufferSize)
-                .build();
-        mAudioTrack.play();
+        mAudioPlayer = new StreamingAudioPlayer(AUDIO_FORMAT_OUT_MONO, mOutputBufferSize,
+                mAudioOutputDevice, PLAYBACK_PRE_ROLL_MS, mAssistantPlaybackListener);
+        if (USE_OPUS_DOWNLINK) {
+            mOpusDecoder = new OggOpusDecoder(mAudioPlayer);
+        }
         int inputBufferSize = AudioRecord.getMinBufferSize(AUDIO_FORMAT_STEREO.getSampleRate(),
                 AUDIO_FORMAT_STEREO.getChannelMask(),
                 AUDIO_FORMAT_STEREO.getEncoding());
@@ -473,25 +655,51 @@ public class AssistantActivity extends Activity implements  ImageReader.OnImageA
                 .setAudioFormat(AUDIO_FORMAT_IN_MONO)
                 .setBufferSizeInBytes(inputBufferSize)
                 .build();
+        mAudioUplink = new AudioUplink(mAudioRecord, mAudioInputDevice, SAMPLE_BLOCK_SIZE,
+                new VoiceActivityDetector(SAMPLE_RATE), VAD_PRE_ROLL_CHUNKS, () -> {
+                    if (END_REQUEST_ON_SILENCE) {
+                        mAssistantHandler.post(mStopAssistantRequest);
+                    }
+                },
+                USE_FLAC_UPLINK ? new FlacEncoder(SAMPLE_RATE, SAMPLE_BLOCK_SIZE / 2) : null);
+    }
 
-        ManagedChannel channel = ManagedChannelBuilder.forTarget(ASSISTANT_ENDPOINT).build();
-        try {
-            mAssistantService = EmbeddedAssistantGrpc.newStub(channel)
-                    .withCallCredentials(MoreCallCredentials.from(
-                            Credentials.fromResource(this, R.raw.credentials)
-                    ));
-            Log.e(TAG,"service created");
-        } catch (IOException | JSONException e) {
-            Log.e(TAG, "error creating assistant service:", e);
-        }
+    private void loadCredentials() throws IOException, JSONException {
+        // Reuses the token cached by the last run and keeps it fresh in the background.
+        mCredentials = Credentials.cachedFromResource(this, R.raw.credentials);
+        mCredentials.startRefreshing();
+    }
 
-        try {
-            detector = TensorFlowObjectDetectionAPIModel.create(
-                    mContext.getAssets(), TF_OD_API_MODEL_FILE, TF_OD_API_LABELS_FILE, TF_OD_API_INPUT_SIZE);
-        }catch (Exception e)
-        {
-            LOGGER.e("Detect: %s", "error");
+    private void connectChannel() {
+        // Connect now so the first request does not pay for connection setup.
+        mChannelManager = new AssistantChannelManager(this, ASSISTANT_ENDPOINT);
+        mChannelManager.connect();
+    }
+
+    private void createAssistantService() {
+        mAssistantService = EmbeddedAssistantGrpc.newStub(mChannelManager.getChannel())
+                .withCallCredentials(MoreCallCredentials.from(mCredentials));
+        Log.i(TAG, "service created");
+    }
+
+    private void loadDetector() throws IOException {
+        String backend = getIntent().getStringExtra(EXTRA_DETECTOR_BACKEND);
+        if (backend == null) {
+            backend = DETECTOR_BACKEND;
+        }
+        Log.i(TAG, "detector backend: " + backend);
+        if (DETECTOR_BACKEND_TENSORFLOW.equals(backend)) {
+            detector = TensorFlowObjectDetectionAPIModel.create(mContext.getAssets(),
+                    TF_OD_API_MODEL_FILE, TF_OD_API_LABELS_FILE, TF_OD_API_INPUT_SIZE);
+        } else if (DETECTOR_BACKEND_TFLITE.equals(backend)) {
+            detector = TFLiteObjectDetectionAPIModel.create(mContext.getAssets(),
+                    TF_LITE_MODEL_FILE, TF_LITE_LABELS_FILE, TF_OD_API_INPUT_SIZE,
+                    TF_LITE_NUM_THREADS);
+        } else {
+            throw new IllegalArgumentException("Unknown detector backend " + backend);
         }
+        mDetectionPipeline = new DetectorActivity(detector, MODEL_IMAGE_SIZE.getWidth(),
+                MODEL_IMAGE_SIZE.getHeight(), this::onDetections);
     }
 
     private AudioDeviceInfo findAudioDevice(int deviceFlag, int deviceType) {
@@ -515,6 +723,9 @@ public class AssistantActivity extends Activity implements  ImageReader.OnImageA
             Log.d(TAG, "error toggling LED:", e);
         }
         if (pressed) {
+            if (mReady) {
+                mTurns.begin();
+            }
             mAssistantHandler.post(mStartAssistantRequest);
         } else {
             mAssistantHandler.post(mStopAssistantRequest);
@@ -555,9 +766,43 @@ public class AssistantActivity extends Activity implements  ImageReader.OnImageA
             Log.e(TAG, "Received camera open command");
         }
         else if(command.equals("com.nagarro.commands.GetLocation")){
-            tts.speak("Your current location is Nagarro 371, Gurgaon", TextToSpeech.QUEUE_FLUSH,null,null);
+            speak(LOCATION_PHRASE, TextToSpeech.QUEUE_FLUSH);
             Log.e(TAG,"Received current location command");
+        } else if (command.equals("com.nagarro.commands.SetDetectionFilter")) {
+            setDetectionFilter(params);
+        }
+    }
+
+    /**
+     * Applies a SetDetectionFilter command. Every parameter is optional: "classes" lists the only
+     * titles to report, "excludedClasses" titles never to report, and "minConfidence" and
+     * "maxResults" bound the detections; a parameter left out goes back to its default.
+     */
+    private void setDetectionFilter(JSONObject params) throws JSONException {
+        final DetectorActivity pipeline = mDetectionPipeline;
+        if (pipeline == null) {
+            Log.w(TAG, "detector not loaded, ignoring detection filter");
+            return;
+        }
+        final List<String> allowed = toStringList(params.optJSONArray("classes"));
+        final List<String> blocked = toStringList(params.optJSONArray("excludedClasses"));
+        final float minConfidence = (float) params.optDouble("minConfidence",
+                DetectorActivity.MINIMUM_CONFIDENCE);
+        final int maxResults = params.optInt("maxResults", DetectorActivity.MAX_DETECTIONS);
+        pipeline.setDetectionFilter(minConfidence, maxResults, allowed, blocked);
+        Log.i(TAG, "detection filter: classes " + allowed + ", excluded " + blocked
+                + ", min confidence " + minConfidence + ", max results " + maxResults);
+    }
+
+    private static List<String> toStringList(JSONArray array) throws JSONException {
+        if (array == null) {
+            return null;
+        }
+        final List<String> strings = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); ++i) {
+            strings.add(array.getString(i));
         }
+        return strings;
     }
 
 
@@ -565,7 +810,11 @@ public class AssistantActivity extends Activity implements  ImageReader.OnImageA
     protected void onDestroy() {
         super.onDestroy();
         Log.i(TAG, "destroying assistant demo");
+        LatencyMetrics.stopReporting();
 
+        if (mBackgroundHandler != null) {
+            mBackgroundHandler.removeCallbacks(mStopDescribingScene);
+        }
         try {
             if (mBackgroundThread != null) mBackgroundThread.quit();
         } catch (Throwable t) {
@@ -573,15 +822,40 @@ public class AssistantActivity extends Activity implements  ImageReader.OnImageA
         }
         mBackgroundThread = null;
         mBackgroundHandler = null;
+        if (mDetectionPipeline != null) {
+            mDetectionPipeline.close();
+            mDetectionPipeline = null;
+        }
 
 
+        if (mAudioUplink != null) {
+            mAudioUplink.release();
+            mAudioUplink = null;
+        }
         if (mAudioRecord != null) {
             mAudioRecord.stop();
             mAudioRecord = null;
         }
-        if (mAudioTrack != null) {
-            mAudioTrack.stop();
-            mAudioTrack = null;
+        if (mOpusDecoder != null) {
+            mOpusDecoder.release();
+            mOpusDecoder = null;
+        }
+        if (mChannelManager != null) {
+            mChannelManager.shutdown();
+            mChannelManager = null;
+        }
+        if (mCredentials != null) {
+            mCredentials.stopRefreshing();
+            mCredentials = null;
+        }
+        if (mAudioPlayer != null) {
+            mAudioPlayer.release();
+            mAudioPlayer = null;
+        }
+        mSpeechCache = null;
+        if (mSpeechPlayer != null) {
+            mSpeechPlayer.release();
+            mSpeechPlayer = null;
         }
         if (mLed != null) {
             try {
@@ -609,7 +883,9 @@ public class AssistantActivity extends Activity implements  ImageReader.OnImageA
             }
             mDac = null;
         }
-        mAssistantHandler.post(() -> mAssistantHandler.removeCallbacks(mStreamAssistantRequest));
+        if (mStartupExecutor != null) {
+            mStartupExecutor.shutdownNow();
+        }
         mAssistantThread.quitSafely();
     }
 
@@ -638,84 +914,70 @@ public class AssistantActivity extends Activity implements  ImageReader.OnImageA
 
         }
     };
-    protected int[] getRgbBytes() {
-        imageConverter.run();
-        return rgbBytes;
-    }
-
     @Override
     public void onImageAvailable(ImageReader reader) {
-        final Bitmap bitmap;
-        DetectorActivity detectorActivity = new DetectorActivity(mContext,detector,this);
-        //We need wait until we have some size from onPreviewSizeChosen
-        if (previewWidth == 0 || previewHeight == 0) {
+        // Always take the newest frame; acquireLatestImage() releases anything older.
+        final Image image = reader.acquireLatestImage();
+        if (image == null) {
             return;
         }
         try {
-            byte[][] yuvBytes = new byte[3][];
-            image = reader.acquireLatestImage();
-            imageView = findViewById(R.id.imageView);
-            final Image.Plane[] planes = image.getPlanes();
-            fillBytes(planes, yuvBytes);
-            int yRowStride = planes[0].getRowStride();
-            int uvRowStride = planes[1].getRowStride();
-            int uvPixelStride = planes[1].getPixelStride();
-            rgbBytes = new int[previewWidth * previewHeight];
-            imageConverter = new Runnable() {
-                @Override
-                public void run() {
-                    ImageUtils.convertYUV420ToARGB8888(
-                            yuvBytes[0],
-                            yuvBytes[1],
-                            yuvBytes[2],
-                            previewWidth,
-                            previewHeight,
-                            yRowStride,
-                            uvRowStride,
-                            uvPixelStride,
-                            rgbBytes);
-                }
-            };
-
-
-            runOnUiThread(()->{
-                  List<Classifier.Recognition> results = detectorActivity.processImageRGBbytes(rgbBytes);
-                    if(results.size()>0) {
-                        for (Classifier.Recognition result : results) {
-
-                            tts.speak(result.getTitle(), TextToSpeech.QUEUE_FLUSH, null, null);
-                        }
-                    }
-                    else
-                        mBackgroundHandler.post(mBackgroudCommandListener);
-
-
-
-            image.close();
-            mCameraHandler.mImageReader.close();
-            mCameraHandler.RefreshImageReader();
-            });
-        }catch (Exception e){
-            System.out.print("Error");
+            if (mDetectionPipeline == null || !mDetectionPipeline.submitFrame(image)) {
+                // The detector is still busy with the previous frame, drop this one.
+                return;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Could not submit camera frame", e);
+        } finally {
+            // The planes are copied out, hand the buffer back to the camera right away.
             image.close();
         }
     }
 
-    protected void fillBytes(final Image.Plane[] planes, final byte[][] yuvBytes) {
-        // Because of the variable row stride it's not possible to know in
-        // advance the actual necessary dimensions of the yuv planes.
-        for (int i = 0; i < planes.length; ++i) {
-            final ByteBuffer buffer = planes[i].getBuffer();
-            if (yuvBytes[i] == null) {
-                LOGGER.d("Initializing buffer %d at size %d", i, buffer.capacity());
-                yuvBytes[i] = new byte[buffer.capacity()];
-            }
-            buffer.get(yuvBytes[i]);
+    /**
+     * Receives detection results on the inference thread.
+     */
+    private void onDetections(List<Classifier.Recognition> results, Bitmap preview) {
+        // The pipeline reuses the result objects, keep only the labels.
+        final List<String> titles = new ArrayList<>(results.size());
+        for (Classifier.Recognition result : results) {
+            titles.add(result.getTitle());
+        }
+        // Every frame goes to the scheduler, it decides when something is worth saying.
+        mAnnouncements.onDetections(titles);
+        if (preview != null) {
+            runOnUiThread(() -> showPreview(preview));
+        }
+    }
+
+    /**
+     * Displays a new preview and hands the one it replaces back to the pipeline. Runs on the UI
+     * thread, which is the only one drawing the previews.
+     */
+    private void showPreview(Bitmap preview) {
+        imageView.setImageBitmap(preview);
+        final DetectorActivity pipeline = mDetectionPipeline;
+        if (mShownPreview != null && pipeline != null) {
+            pipeline.releasePreview(mShownPreview);
         }
+        mShownPreview = preview;
     }
 
+    // Ends a scene description: no more frames, inference or announcements until the next
+    // OpenCamera.
+    private final Runnable mStopDescribingScene = () -> {
+        mCameraHandler.stopRepeatingCapture();
+        Log.i(TAG, "scene description finished, camera stopped");
+    };
+
+    // Starts describing the scene from scratch, so what is in view is announced right away, and
+    // keeps at it for DESCRIBE_SCENE_MS. Another OpenCamera meanwhile starts the time over.
     private Runnable mBackgroudCommandListener = ()-> {
-        mCameraHandler.takePicture();
+        mDetectionPipeline.resetTracking();
+        mAnnouncements.reset();
+        mCameraHandler.startRepeatingCapture();
+        mBackgroundHandler.removeCallbacks(mStopDescribingScene);
+        mBackgroundHandler.postDelayed(mStopDescribingScene, DESCRIBE_SCENE_MS);
     };
 
     @Override
@@ -727,8 +989,62 @@ public class AssistantActivity extends Activity implements  ImageReader.OnImageA
                 Log.e("TTS", "The Language is not supported!");
             } else {
                 Log.i("TTS", "Language Supported.");
+                tts.setOnUtteranceProgressListener(mSpeechListener);
+                mStartup.complete("tts");
             }
             Log.i("TTS", "Initialization success.");
         }
     }
+
+    /**
+     * Synthesizes every single-object announcement and the fixed phrases ahead of time.
+     */
+    private void warmUpSpeechCache() {
+        if (detector == null) {
+            return;
+        }
+        tts.setSpeechRate(SPEECH_RATE);
+        mSpeechPlayer = new StreamingAudioPlayer(AUDIO_FORMAT_OUT_MONO_SPEECH,
+                AudioTrack.getMinBufferSize(SAMPLE_RATE, AudioFormat.CHANNEL_OUT_MONO, ENCODING),
+                mAudioOutputDevice, 0, mSpeechPlaybackListener);
+        final SpeechCache cache = new SpeechCache(this, tts, mSpeechPlayer, SAMPLE_RATE,
+                SPEECH_RATE);
+        cache.setUtteranceListener(mSpeechListener);
+        final List<String> phrases = new ArrayList<>();
+        for (String label : detector.getLabels()) {
+            if (!label.equals("???")) {
+                phrases.add(AnnouncementScheduler.describe(label, 1));
+            }
+        }
+        phrases.add(LOCATION_PHRASE);
+        cache.warmUp(phrases);
+        mSpeechCache = cache;
+    }
+
+    private void speak(String phrase, int queueMode) {
+        final SpeechCache cache = mSpeechCache;
+        if (cache == null || !cache.play(phrase)) {
+            tts.speak(phrase, queueMode, null, SPEECH_UTTERANCE_PREFIX + System.nanoTime());
+        }
+    }
+
+    // Records how long speech waited in the engine's queue and in synthesis.
+    private final UtteranceProgressListener mSpeechListener = new UtteranceProgressListener() {
+        @Override
+        public void onStart(String utteranceId) {
+            if (utteranceId != null && utteranceId.startsWith(SPEECH_UTTERANCE_PREFIX)) {
+                LatencyMetrics.ANNOUNCE.recordSince(
+                        Long.parseLong(utteranceId.substring(SPEECH_UTTERANCE_PREFIX.length())));
+            }
+        }
+
+        @Override
+        public void onDone(String utteranceId) {
+        }
+
+        @Override
+        public void onError(String utteranceId) {
+            Log.w("TTS", "speech failed: " + utteranceId);
+        }
+    };
 }
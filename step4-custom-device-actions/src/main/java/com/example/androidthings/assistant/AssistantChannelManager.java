@@ -0,0 +1,177 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.os.SystemClock;
+import android.util.Log;
+
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the single channel to the Assistant endpoint and keeps it ready for the next request.
+ *
+ * <p>The connection is opened as soon as {@link #connect()} is called during startup, held
+ * open with HTTP/2 keepalive pings while no call is active, and reopened right away whenever it
+ * drops or the default network changes, so a button press does not pay for DNS, TCP and TLS.
+ * Connection setup time is measured on its own and reported through {@link #getLastConnectMs()},
+ * apart from the latency of the requests themselves.
+ */
+public class AssistantChannelManager {
+    private static final String TAG = AssistantChannelManager.class.getSimpleName();
+
+    // Google front ends reject pings sent much more often than this on an idle connection.
+    private static final long KEEPALIVE_TIME_SECONDS = 60;
+    private static final long KEEPALIVE_TIMEOUT_SECONDS = 10;
+
+    private final ManagedChannel mChannel;
+    private final ConnectivityManager mConnectivityManager;
+    private final ConnectivityManager.NetworkCallback mNetworkCallback =
+            new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    if (mNetwork != null && !mNetwork.equals(network)) {
+                        // Connections made on the old network are dead even if the channel
+                        // has not noticed yet; start over on the new one.
+                        Log.i(TAG, "default network changed, reconnecting");
+                        mChannel.enterIdle();
+                    }
+                    mNetwork = network;
+                    mChannel.resetConnectBackoff();
+                    requestConnection();
+                }
+
+                @Override
+                public void onLost(Network network) {
+                    Log.w(TAG, "default network lost");
+                }
+            };
+
+    private volatile boolean mKeepConnected;
+    private volatile Network mNetwork;
+    private volatile long mConnectStartMs;
+    private volatile long mLastConnectMs = -1;
+
+    public AssistantChannelManager(Context context, String target) {
+        this(ManagedChannelBuilder.forTarget(target)
+                        .keepAliveTime(KEEPALIVE_TIME_SECONDS, TimeUnit.SECONDS)
+                        .keepAliveTimeout(KEEPALIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                        .keepAliveWithoutCalls(true)
+                        .build(),
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE));
+    }
+
+    /**
+     * @param connectivityManager followed for network changes, or null to not follow them.
+     */
+    AssistantChannelManager(ManagedChannel channel, ConnectivityManager connectivityManager) {
+        mChannel = channel;
+        mConnectivityManager = connectivityManager;
+    }
+
+    public ManagedChannel getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * Starts connecting in the background and keeps the connection up from then on.
+     */
+    public void connect() {
+        mKeepConnected = true;
+        watchState(mChannel.getState(false));
+        if (mConnectivityManager != null) {
+            mConnectivityManager.registerDefaultNetworkCallback(mNetworkCallback);
+        }
+        requestConnection();
+    }
+
+    /**
+     * @return the channel state, for telling whether a request will pay for connection setup.
+     */
+    public ConnectivityState getState() {
+        return mChannel.getState(false);
+    }
+
+    /**
+     * Milliseconds the most recent connection took to become ready, or -1 before the first.
+     */
+    public long getLastConnectMs() {
+        return mLastConnectMs;
+    }
+
+    public void shutdown() {
+        mKeepConnected = false;
+        if (mConnectivityManager != null) {
+            try {
+                mConnectivityManager.unregisterNetworkCallback(mNetworkCallback);
+            } catch (IllegalArgumentException e) {
+                // connect() was never called.
+            }
+        }
+        mChannel.shutdown();
+    }
+
+    private void requestConnection() {
+        if (mChannel.getState(true) == ConnectivityState.IDLE) {
+            markConnectStart();
+        }
+    }
+
+    private void watchState(ConnectivityState source) {
+        mChannel.notifyWhenStateChanged(source, this::onStateChanged);
+    }
+
+    private void onStateChanged() {
+        final ConnectivityState state = mChannel.getState(false);
+        Log.d(TAG, "channel state: " + state);
+        switch (state) {
+            case CONNECTING:
+                markConnectStart();
+                break;
+            case READY:
+                if (mConnectStartMs != 0) {
+                    mLastConnectMs = SystemClock.elapsedRealtime() - mConnectStartMs;
+                    mConnectStartMs = 0;
+                    Log.i(TAG, "connection setup: " + mLastConnectMs + " ms");
+                }
+                break;
+            case IDLE:
+                // Dropped by the server or the network; get ready for the next request now.
+                if (mKeepConnected) {
+                    requestConnection();
+                }
+                break;
+            case SHUTDOWN:
+                return;
+            default:
+                break;
+        }
+        watchState(state);
+    }
+
+    private void markConnectStart() {
+        if (mConnectStartMs == 0) {
+            mConnectStartMs = SystemClock.elapsedRealtime();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.util.Log;
+
+import com.example.androidthings.assistant.env.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Times the milestones of every Assistant turn, from the button press to the response having
+ * played out.
+ *
+ * <p>Milestones are marked from whichever thread observes them; only the first mark of each
+ * milestone in a turn counts. When a turn ends it is logged, kept in a bounded ring of recent
+ * turns, and its intervals are added to histograms in {@link LatencyMetrics} that separate the
+ * local, network and server parts of the round trip.
+ */
+public class AssistantTurnTimeline {
+    private static final String TAG = AssistantTurnTimeline.class.getSimpleName();
+
+    public static final int PRESS = 0;
+    public static final int FIRST_UPLINK = 1;
+    public static final int END_OF_UTTERANCE = 2;
+    public static final int FIRST_SPEECH_RESULT = 3;
+    public static final int FIRST_AUDIO_OUT = 4;
+    public static final int COMPLETED = 5;
+    public static final int PLAYBACK_DRAINED = 6;
+    private static final int MILESTONE_COUNT = 7;
+    private static final String[] MILESTONE_NAMES = {
+            "press", "uplink", "endOfUtterance", "speechResult", "audioOut", "completed",
+            "drained"
+    };
+
+    /** Button press to the first audio chunk sent, including call setup and speech onset. */
+    private static final LatencyHistogram PRESS_TO_UPLINK =
+            LatencyMetrics.register("assist.pressToUplink");
+    /** Button press to the first transcript, how soon recognition responds. */
+    private static final LatencyHistogram PRESS_TO_SPEECH_RESULT =
+            LatencyMetrics.register("assist.pressToSpeechResult");
+    /** First audio sent to the end of the utterance: speaking time plus server endpointing. */
+    private static final LatencyHistogram UPLINK_TO_END_OF_UTTERANCE =
+            LatencyMetrics.register("assist.uplinkToEndOfUtterance");
+    /** End of the utterance to the first response audio: server processing and network. */
+    private static final LatencyHistogram END_OF_UTTERANCE_TO_AUDIO =
+            LatencyMetrics.register("assist.endOfUtteranceToAudio");
+    /** First to last response message: streaming of the response over the network. */
+    private static final LatencyHistogram AUDIO_TO_COMPLETED =
+            LatencyMetrics.register("assist.audioToCompleted");
+    /** Last response message to the audio having played out: local playback. */
+    private static final LatencyHistogram COMPLETED_TO_DRAINED =
+            LatencyMetrics.register("assist.completedToDrained");
+    private static final LatencyHistogram PRESS_TO_DRAINED =
+            LatencyMetrics.register("assist.pressToDrained");
+
+    /**
+     * The milestones of one turn, as {@link System#nanoTime()} readings.
+     */
+    public static final class Turn {
+        private final int mNumber;
+        private final long[] mNanos;
+
+        Turn(int number, long[] nanos) {
+            mNumber = number;
+            mNanos = nanos;
+        }
+
+        public int getNumber() {
+            return mNumber;
+        }
+
+        /**
+         * @return milliseconds from the button press to the milestone, or -1 if it was not
+         *         reached.
+         */
+        public long getOffsetMs(int milestone) {
+            if (mNanos[PRESS] == 0 || mNanos[milestone] == 0) {
+                return -1;
+            }
+            return (mNanos[milestone] - mNanos[PRESS]) / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder text = new StringBuilder("turn ").append(mNumber).append(':');
+            for (int milestone = FIRST_UPLINK; milestone < MILESTONE_COUNT; ++milestone) {
+                final long offsetMs = getOffsetMs(milestone);
+                text.append(' ').append(MILESTONE_NAMES[milestone]).append('=');
+                if (offsetMs < 0) {
+                    text.append('-');
+                } else {
+                    text.append('+').append(offsetMs).append("ms");
+                }
+            }
+            return text.toString();
+        }
+    }
+
+    private final Turn[] mRecentTurns;
+    private int mRecentCount;
+    private int mNextSlot;
+    private int mTurnNumber;
+    // Milestones of the turn in progress, or null between turns.
+    private volatile AtomicLongArray mCurrent;
+
+    /**
+     * @param capacity number of recent turns kept.
+     */
+    public AssistantTurnTimeline(int capacity) {
+        mRecentTurns = new Turn[capacity];
+    }
+
+    /**
+     * Starts a turn at the button press. A turn still in progress is ended first.
+     */
+    public synchronized void begin() {
+        end();
+        final AtomicLongArray turn = new AtomicLongArray(MILESTONE_COUNT);
+        turn.set(PRESS, System.nanoTime());
+        mCurrent = turn;
+    }
+
+    /**
+     * Marks a milestone of the current turn as reached now.
+     */
+    public void mark(int milestone) {
+        mark(milestone, System.nanoTime());
+    }
+
+    /**
+     * Marks a milestone of the current turn as reached at the given {@link System#nanoTime()}.
+     */
+    public void mark(int milestone, long nanos) {
+        final AtomicLongArray turn = mCurrent;
+        if (turn != null) {
+            turn.compareAndSet(milestone, 0, nanos);
+        }
+    }
+
+    /**
+     * Ends the current turn, if any, and records it. Milestones that were not reached are left
+     * out of the histograms.
+     */
+    public synchronized void end() {
+        final AtomicLongArray current = mCurrent;
+        if (current == null) {
+            return;
+        }
+        mCurrent = null;
+        final long[] nanos = new long[MILESTONE_COUNT];
+        for (int i = 0; i < MILESTONE_COUNT; ++i) {
+            nanos[i] = current.get(i);
+        }
+        final Turn turn = new Turn(++mTurnNumber, nanos);
+        mRecentTurns[mNextSlot] = turn;
+        mNextSlot = (mNextSlot + 1) % mRecentTurns.length;
+        mRecentCount = Math.min(mRecentCount + 1, mRecentTurns.length);
+
+        record(PRESS_TO_UPLINK, nanos, PRESS, FIRST_UPLINK);
+        record(PRESS_TO_SPEECH_RESULT, nanos, PRESS, FIRST_SPEECH_RESULT);
+        record(UPLINK_TO_END_OF_UTTERANCE, nanos, FIRST_UPLINK, END_OF_UTTERANCE);
+        record(END_OF_UTTERANCE_TO_AUDIO, nanos, END_OF_UTTERANCE, FIRST_AUDIO_OUT);
+        record(AUDIO_TO_COMPLETED, nanos, FIRST_AUDIO_OUT, COMPLETED);
+        record(COMPLETED_TO_DRAINED, nanos, COMPLETED, PLAYBACK_DRAINED);
+        record(PRESS_TO_DRAINED, nanos, PRESS, PLAYBACK_DRAINED);
+        Log.i(TAG, turn.toString());
+    }
+
+    /**
+     * @return the recent turns, oldest first.
+     */
+    public synchronized List<Turn> getRecentTurns() {
+        final List<Turn> turns = new ArrayList<>(mRecentCount);
+        for (int i = mRecentCount; i > 0; --i) {
+            turns.add(mRecentTurns[(mNextSlot - i + mRecentTurns.length) % mRecentTurns.length]);
+        }
+        return turns;
+    }
+
+    private static void record(LatencyHistogram histogram, long[] nanos, int from, int to) {
+        if (nanos[from] != 0 && nanos[to] != 0) {
+            histogram.record(nanos[to] - nanos[from]);
+        }
+    }
+}
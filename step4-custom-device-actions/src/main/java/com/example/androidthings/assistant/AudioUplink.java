@@ -0,0 +1,193 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.media.AudioDeviceInfo;
+import android.media.AudioRecord;
+import android.util.Log;
+
+import com.example.androidthings.audio.FlacEncoder;
+import com.google.assistant.embedded.v1alpha2.AssistRequest;
+import com.google.protobuf.ByteString;
+
+import io.grpc.stub.StreamObserver;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Streams microphone audio to an Assist call. Capture runs in a tight blocking-read loop on a
+ * dedicated audio thread that lives as long as the uplink, reading into a ring of chunks that
+ * is reused for every request.
+ *
+ * <p>With a {@link VoiceActivityDetector} attached, leading silence is held back by a
+ * {@link SpeechGate} and only the last few chunks before speech starts are sent, and streaming
+ * stops once the trailing silence allowance runs out.
+ *
+ * <p>With a {@link FlacEncoder} attached, each chunk is sent as one FLAC frame instead of raw
+ * PCM, with the stream header at the start of every request.
+ *
+ * <p>The protobuf lite runtime has no zero-copy way to wrap a byte array in a ByteString, so the
+ * copy into the outgoing message is the only one left per chunk.
+ */
+public class AudioUplink {
+    private static final String TAG = AudioUplink.class.getSimpleName();
+
+    /**
+     * Notified on the audio thread when the detector reports the end of speech.
+     */
+    public interface Listener {
+        void onEndOfSpeech();
+    }
+
+    private final AudioRecord mAudioRecord;
+    // Reads go into the gate's ring with a detector, or into the single chunk without one.
+    private final SpeechGate mGate;
+    private final byte[] mChunk;
+    private final FlacEncoder mEncoder;
+    private final Listener mListener;
+    private final ExecutorService mAudioExecutor =
+            Executors.newSingleThreadExecutor(r -> new Thread(r, "audioUplink"));
+
+    private volatile boolean mStreaming;
+    private Future<?> mCaptureLoop;
+
+    /**
+     * @param audioRecord an initialized recorder, already routed to its input device.
+     * @param preferredDevice input device, or null for the default routing.
+     * @param chunkBytes bytes of PCM per request message. Smaller chunks reach the server
+     *                   sooner, larger ones spend less on per-message overhead.
+     */
+    public AudioUplink(AudioRecord audioRecord, AudioDeviceInfo preferredDevice, int chunkBytes) {
+        this(audioRecord, preferredDevice, chunkBytes, null, 0, null, null);
+    }
+
+    /**
+     * @param detector trims silence from the uplink, or null to stream everything.
+     * @param preRollChunks chunks sent from before the detected speech onset, so the first
+     *                      syllable is not clipped.
+     * @param listener notified when the detector reports the end of speech, or null.
+     * @param encoder compresses each chunk before it is sent, or null to send LINEAR16. It
+     *                must accept blocks of chunkBytes / 2 samples.
+     */
+    public AudioUplink(AudioRecord audioRecord, AudioDeviceInfo preferredDevice, int chunkBytes,
+                       VoiceActivityDetector detector, int preRollChunks, Listener listener,
+                       FlacEncoder encoder) {
+        mAudioRecord = audioRecord;
+        if (preferredDevice != null) {
+            mAudioRecord.setPreferredDevice(preferredDevice);
+        }
+        mGate = detector != null ? new SpeechGate(detector, chunkBytes, preRollChunks) : null;
+        mChunk = detector != null ? null : new byte[chunkBytes];
+        mListener = listener;
+        mEncoder = encoder;
+    }
+
+    /**
+     * Starts recording and streaming into the given call. The config request must already
+     * have been sent.
+     */
+    public synchronized void start(final StreamObserver<AssistRequest> requestObserver) {
+        if (mStreaming) {
+            Log.w(TAG, "uplink already streaming");
+            return;
+        }
+        mStreaming = true;
+        if (mGate != null) {
+            mGate.reset();
+        }
+        if (mEncoder != null) {
+            mEncoder.reset();
+        }
+        mAudioRecord.startRecording();
+        mCaptureLoop = mAudioExecutor.submit(() -> captureLoop(requestObserver));
+    }
+
+    /**
+     * Stops streaming and waits until the capture loop has sent its last chunk, so the caller
+     * can safely complete the call afterwards.
+     */
+    public synchronized void stop() {
+        if (!mStreaming) {
+            return;
+        }
+        mStreaming = false;
+        try {
+            mCaptureLoop.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "capture loop failed", e.getCause());
+        }
+        mCaptureLoop = null;
+        mAudioRecord.stop();
+        if (mEncoder != null && mEncoder.getBytesIn() > 0) {
+            // Totals since the uplink was created: CPU spent against bandwidth saved.
+            Log.i(TAG, "flac: " + mEncoder.getBytesIn() + " bytes in, "
+                    + mEncoder.getBytesOut() + " bytes out, "
+                    + mEncoder.getEncodeNanos() / 1000000 + " ms encoding");
+        }
+    }
+
+    /**
+     * Stops streaming and shuts down the audio thread.
+     */
+    public void release() {
+        stop();
+        mAudioExecutor.shutdown();
+    }
+
+    private void captureLoop(StreamObserver<AssistRequest> requestObserver) {
+        final SpeechGate.Sink sink = (data, length) -> send(requestObserver, data, length);
+        while (mStreaming) {
+            final byte[] chunk = mGate != null ? mGate.nextChunk() : mChunk;
+            final int result = mAudioRecord.read(chunk, 0, chunk.length, AudioRecord.READ_BLOCKING);
+            if (result < 0) {
+                Log.e(TAG, "error reading from audio stream:" + result);
+                return;
+            }
+            if (result == 0) {
+                continue;
+            }
+            if (mGate == null) {
+                send(requestObserver, chunk, result);
+                continue;
+            }
+
+            final int state = mGate.submit(result, sink);
+            if (state == VoiceActivityDetector.STATE_END_OF_SPEECH) {
+                Log.i(TAG, "end of speech detected, uplink stopped");
+                if (mListener != null) {
+                    mListener.onEndOfSpeech();
+                }
+                return;
+            }
+        }
+    }
+
+    private void send(StreamObserver<AssistRequest> requestObserver, byte[] chunk, int length) {
+        if (mEncoder != null) {
+            length = mEncoder.encode(chunk, 0, length);
+            chunk = mEncoder.getOutput();
+        }
+        requestObserver.onNext(AssistRequest.newBuilder()
+                .setAudioIn(ByteString.copyFrom(chunk, 0, length))
+                .build());
+    }
+}
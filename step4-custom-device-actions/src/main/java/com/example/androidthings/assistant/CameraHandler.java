@@ -11,11 +11,11 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CaptureRequest;
-import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.ImageReader;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.util.Size;
@@ -23,21 +23,33 @@ import android.util.Size;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.List;
 
 public class CameraHandler implements ImageReader.OnImageAvailableListener, Camera.PreviewCallback {
     private static final String TAG = CameraHandler.class.getSimpleName();
 
-   /* private static int MAX_IMAGES = 2;*/
+    // Default depth of the ImageReader queue. Three buffers let the camera keep writing while
+    // one frame is being copied out and another is waiting to replace it.
+    public static final int DEFAULT_MAX_IMAGES = 3;
+
     private CameraDevice mCameraDevice;
     private CameraCaptureSession mCaptureSession;
     private boolean initialized;
 
+    // Number of frames to average over before the measured frame rate is updated.
+    private static final int FRAME_RATE_WINDOW = 30;
+
+    // True while the session drives a repeating request into the ImageReader.
+    private boolean mRepeating;
+    private long mSessionRequestedNanos;
+    private int mFrameCount;
+    private long mFrameWindowStartMs;
+    private volatile float mFrameRate;
+
     private Size mImageDimensions;
-    private Handler mCameraBackgroundHandler;
-    private ImageReader.OnImageAvailableListener mCameraImageAvailableListener;
     /**
-     * An {@link ImageReader} that handles still image capture.
+     * An {@link ImageReader} that receives the repeating captures. It lives as long
+     * as the camera is initialized; consumers must close every {@link android.media.Image} they
+     * acquire so the buffer goes back to the queue.
      */
     public ImageReader mImageReader;
 
@@ -62,13 +74,30 @@ public class CameraHandler implements ImageReader.OnImageAvailableListener, Came
         return InstanceHolder.mCamera;
     }
 
+    /**
+     * Initialize the camera device with a reader queue of {@link #DEFAULT_MAX_IMAGES}.
+     */
+    public void initializeCamera(Context context, Handler backgroundHandler, Size minSize,
+                                 ImageReader.OnImageAvailableListener imageAvailableListener)
+            throws CameraAccessException {
+        initializeCamera(context, backgroundHandler, minSize, imageAvailableListener,
+                DEFAULT_MAX_IMAGES);
+    }
+
     /**
      * Initialize the camera device
+     *
+     * @param maxImages depth of the reader queue, at least 2 so that
+     *                  {@link ImageReader#acquireLatestImage()} can drop stale frames.
      */
     @SuppressLint("MissingPermission")
     public void initializeCamera(Context context, Handler backgroundHandler, Size minSize,
-                                 ImageReader.OnImageAvailableListener imageAvailableListener)
+                                 ImageReader.OnImageAvailableListener imageAvailableListener,
+                                 int maxImages)
             throws CameraAccessException {
+        if (maxImages < 2) {
+            throw new IllegalArgumentException("maxImages must be at least 2, was " + maxImages);
+        }
         if (initialized) {
             throw new IllegalStateException(
                     "CameraHandler is already initialized or is initializing");
@@ -90,13 +119,11 @@ public class CameraHandler implements ImageReader.OnImageAvailableListener, Came
         }
 
         mImageReader = ImageReader.newInstance(bestSize.getWidth(),bestSize.getHeight(),
-                ImageFormat.YUV_420_888,1);
+                ImageFormat.YUV_420_888, maxImages);
         mImageDimensions = bestSize;
         Log.d(TAG, "Will capture photos that are " + mImageDimensions.getWidth() + " x " +
-                mImageDimensions.getHeight());
+                mImageDimensions.getHeight() + ", queue depth " + maxImages);
         mImageReader.setOnImageAvailableListener(imageAvailableListener, backgroundHandler);
-        mCameraImageAvailableListener = imageAvailableListener;
-        mCameraBackgroundHandler = backgroundHandler;
         // Open the camera resource
         try {
             manager.openCamera(camId, mStateCallback, backgroundHandler);
@@ -105,27 +132,54 @@ public class CameraHandler implements ImageReader.OnImageAvailableListener, Came
         }
     }
 
-    public void RefreshImageReader()
-    {
-        mImageReader = ImageReader.newInstance(mImageDimensions.getWidth(),mImageDimensions.getHeight(),
-                ImageFormat.YUV_420_888,1);
-        mImageReader.setOnImageAvailableListener(mCameraImageAvailableListener, mCameraBackgroundHandler);
-    }
-
     public Size getImageDimensions() {
         return mImageDimensions;
     }
 
     /**
-     * Begin a still image capture
+     * Start streaming frames into the {@link ImageReader} at the sensor's preview rate. The
+     * capture session is created once and kept open until {@link #stopRepeatingCapture()}.
      */
-    public void takePicture() {
+    public void startRepeatingCapture() {
         if (mCameraDevice == null) {
-            Log.w(TAG, "Cannot capture image. Camera not initialized.");
+            Log.w(TAG, "Cannot start repeating capture. Camera not initialized.");
+            return;
+        }
+        if (mRepeating) {
+            return;
+        }
+        mRepeating = true;
+        mFrameCount = 0;
+        mFrameWindowStartMs = SystemClock.elapsedRealtime();
+        if (mCaptureSession != null) {
+            triggerRepeatingCapture();
+        } else {
+            createCaptureSession();
+        }
+    }
+
+    /**
+     * Stop the repeating request and release the capture session.
+     */
+    public void stopRepeatingCapture() {
+        if (!mRepeating) {
             return;
         }
-        // Create a CameraCaptureSession for capturing still images.
+        mRepeating = false;
+        closeCaptureSession();
+    }
+
+    /**
+     * Frames per second delivered by the repeating request, averaged over the last
+     * {@link #FRAME_RATE_WINDOW} frames. Zero until the first window completes.
+     */
+    public float getFrameRate() {
+        return mFrameRate;
+    }
+
+    private void createCaptureSession() {
         try {
+            mSessionRequestedNanos = System.nanoTime();
             mCameraDevice.createCaptureSession(
                     Collections.singletonList(mImageReader.getSurface()),
                     mSessionCallback,
@@ -136,18 +190,19 @@ public class CameraHandler implements ImageReader.OnImageAvailableListener, Came
     }
 
     /**
-     * Execute a new capture request within the active session
+     * Install a repeating preview request on the active session
      */
-    private void triggerImageCapture() {
+    private void triggerRepeatingCapture() {
         try {
             final CaptureRequest.Builder captureBuilder =
-                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
             captureBuilder.addTarget(mImageReader.getSurface());
             captureBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
-            Log.d(TAG, "Capture request created.");
-            mCaptureSession.capture(captureBuilder.build(), mCaptureCallback, null);
+            Log.d(TAG, "Repeating request created.");
+            mCaptureSession.setRepeatingRequest(captureBuilder.build(), mRepeatingCallback, null);
         } catch (CameraAccessException cae) {
-            Log.e(TAG, "Cannot trigger a capture request");
+            Log.e(TAG, "Cannot start the repeating request", cae);
+            mRepeating = false;
         }
     }
 
@@ -167,6 +222,7 @@ public class CameraHandler implements ImageReader.OnImageAvailableListener, Came
      */
     public void shutDown() {
         try {
+            mRepeating = false;
             closeCaptureSession();
             if (mCameraDevice != null) {
                 mCameraDevice.close();
@@ -267,36 +323,44 @@ public class CameraHandler implements ImageReader.OnImageAvailableListener, Came
                     if (mCameraDevice == null) {
                         return;
                     }
+                    LatencyMetrics.SESSION.recordSince(mSessionRequestedNanos);
                     // When the session is ready, we start capture.
                     mCaptureSession = cameraCaptureSession;
-                    triggerImageCapture();
+                    if (mRepeating) {
+                        triggerRepeatingCapture();
+                    } else {
+                        // Stopped while the session was being configured.
+                        closeCaptureSession();
+                    }
                 }
 
                 @Override
                 public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
                     Log.w(TAG, "Failed to configure camera");
+                    mRepeating = false;
                 }
             };
 
     /**
-     * Callback handling capture session events
+     * Callback counting frames produced by the repeating request
      */
-    private final CameraCaptureSession.CaptureCallback mCaptureCallback =
+    private final CameraCaptureSession.CaptureCallback mRepeatingCallback =
             new CameraCaptureSession.CaptureCallback() {
-                @Override
-                public void onCaptureProgressed(@NonNull CameraCaptureSession session,
-                                                @NonNull CaptureRequest request,
-                                                @NonNull CaptureResult partialResult) {
-                    Log.d(TAG, "Partial result");
-                }
-
                 @Override
                 public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                                @NonNull CaptureRequest request,
                                                @NonNull TotalCaptureResult result) {
-                    session.close();
-                    mCaptureSession = null;
-                    Log.d(TAG, "CaptureSession closed");
+                    if (++mFrameCount < FRAME_RATE_WINDOW) {
+                        return;
+                    }
+                    final long now = SystemClock.elapsedRealtime();
+                    final long elapsedMs = now - mFrameWindowStartMs;
+                    if (elapsedMs > 0) {
+                        mFrameRate = mFrameCount * 1000f / elapsedMs;
+                        Log.d(TAG, "Repeating capture at " + mFrameRate + " fps");
+                    }
+                    mFrameCount = 0;
+                    mFrameWindowStartMs = now;
                 }
             };
 
@@ -324,16 +388,4 @@ public class CameraHandler implements ImageReader.OnImageAvailableListener, Came
                     (long) rhs.getWidth() * rhs.getHeight());
         }
     }
-    protected List<Classifier.Recognition> processImageRGBbytes(int[] rgbBytes)
-    {
-        System.out.print("hello from camera handler");
-        return null;
-    }
-
-    //protected int getLayoutId(){return 0;};
-
-    protected Size getDesiredPreviewFrameSize(){return new Size(640,480);};
-
-
 }
-
@@ -2,43 +2,63 @@ package com.example.androidthings.assistant;
 
 import android.graphics.Bitmap;
 import android.graphics.RectF;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Generic interface for interacting with different recognition engines.
  */
 public interface Classifier {
     /**
-     * An immutable result returned by a Classifier describing what was recognized.
+     * A result returned by a Classifier describing what was recognized. Classifiers may reuse
+     * the instances they return, so a result is only valid until the next recognition call.
      */
     public class Recognition {
         /**
          * A unique identifier for what has been recognized. Specific to the class, not the instance of
          * the object.
          */
-        private final String id;
+        private String id;
 
         /**
          * Display name for the recognition.
          */
-        private final String title;
+        private String title;
 
         /**
          * A sortable score for how good the recognition is relative to others. Higher should be better.
          */
-        private final Float confidence;
+        private float confidence;
 
         /** Optional location within the source image for the location of the recognized object. */
         private RectF location;
 
         public Recognition(
-                final String id, final String title, final Float confidence, final RectF location) {
+                final String id, final String title, final float confidence, final RectF location) {
             this.id = id;
             this.title = title;
             this.confidence = confidence;
             this.location = location;
         }
 
+        /**
+         * Overwrites this result in place, so a Classifier can hand out the same instances on
+         * every call instead of allocating new ones.
+         */
+        void set(final String id, final String title, final float confidence,
+                 final float left, final float top, final float right, final float bottom) {
+            this.id = id;
+            this.title = title;
+            this.confidence = confidence;
+            if (location == null) {
+                location = new RectF();
+            }
+            location.set(left, top, right, bottom);
+        }
+
         public String getId() {
             return id;
         }
@@ -55,6 +75,14 @@ public interface Classifier {
             return new RectF(location);
         }
 
+        /**
+         * Copies the location into {@code out}, for callers that read every result of every
+         * frame and would otherwise allocate a copy each time.
+         */
+        void copyLocationTo(final RectF out) {
+            out.set(location);
+        }
+
         public void setLocation(RectF location) {
             this.location = location;
         }
@@ -70,9 +98,7 @@ public interface Classifier {
                 resultString += title + " ";
             }
 
-            if (confidence != null) {
-                resultString += String.format("(%.1f%%) ", confidence * 100.0f);
-            }
+            resultString += String.format("(%.1f%%) ", confidence * 100.0f);
 
             if (location != null) {
                 resultString += location + " ";
@@ -82,8 +108,102 @@ public interface Classifier {
         }
     }
 
+    /**
+     * Which detections a Classifier reports. Classifiers apply it to the raw model output, so
+     * detections it rejects never become a {@link Recognition}.
+     */
+    public final class Query {
+        /** Every detection the classifier would report on its own. */
+        public static final Query ALL = new Query(0f, Integer.MAX_VALUE, null, null);
+
+        private final float minConfidence;
+        private final int maxResults;
+        private final Set<String> allowedTitles;
+        private final Set<String> blockedTitles;
+
+        /**
+         * @param minConfidence detections scoring below this are not reported.
+         * @param maxResults at most this many detections are reported, the most confident first.
+         * @param allowedTitles if non-null, only detections with one of these titles are
+         *                      reported.
+         * @param blockedTitles if non-null, detections with one of these titles are not
+         *                      reported.
+         */
+        public Query(final float minConfidence, final int maxResults,
+                     final Collection<String> allowedTitles,
+                     final Collection<String> blockedTitles) {
+            this.minConfidence = minConfidence;
+            this.maxResults = maxResults;
+            this.allowedTitles = allowedTitles == null
+                    ? null : Collections.unmodifiableSet(new HashSet<>(allowedTitles));
+            this.blockedTitles = blockedTitles == null
+                    ? Collections.<String>emptySet()
+                    : Collections.unmodifiableSet(new HashSet<>(blockedTitles));
+        }
+
+        public float getMinConfidence() {
+            return minConfidence;
+        }
+
+        public int getMaxResults() {
+            return maxResults;
+        }
+
+        public boolean accepts(final String title) {
+            return (allowedTitles == null || allowedTitles.contains(title))
+                    && !blockedTitles.contains(title);
+        }
+
+        /**
+         * Resolves the titles against a label list once, so the model checks a detection by
+         * indexing the mask with its raw class instead of comparing strings.
+         *
+         * @param labels the model's labels.
+         * @param labelOffset added to a raw class to find its label.
+         * @param numClasses number of raw classes the model can output.
+         * @return whether each raw class is accepted, or null if every class is.
+         */
+        boolean[] classMask(final List<String> labels, final int labelOffset,
+                            final int numClasses) {
+            if (allowedTitles == null && blockedTitles.isEmpty()) {
+                return null;
+            }
+            final boolean[] mask = new boolean[numClasses];
+            for (int i = 0; i < numClasses; ++i) {
+                final int labelIndex = i + labelOffset;
+                mask[i] = labelIndex >= 0 && labelIndex < labels.size()
+                        && accepts(labels.get(labelIndex));
+            }
+            return mask;
+        }
+
+        @Override
+        public String toString() {
+            return "min " + minConfidence + ", max " + maxResults
+                    + (allowedTitles == null ? "" : ", only " + allowedTitles)
+                    + (blockedTitles.isEmpty() ? "" : ", not " + blockedTitles);
+        }
+    }
+
     List<Recognition> recognizeImage(Bitmap bitmap);
 
+    /**
+     * Runs recognition on pixels that are already laid out as the model input: inputSize x
+     * inputSize pixels, row-major, three bytes per pixel in R, G, B order.
+     */
+    List<Recognition> recognizeImage(byte[] rgbValues);
+
+    /**
+     * Titles this classifier can report, in model order.
+     */
+    List<String> getLabels();
+
+    /**
+     * Replaces the query applied to every following recognition. May be called from any
+     * thread.
+     */
+    void setQuery(Query query);
+
     void enableStatLogging(final boolean debug);
 
     String getStatString();
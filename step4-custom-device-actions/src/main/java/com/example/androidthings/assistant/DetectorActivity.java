@@ -16,105 +16,268 @@
 
 package  com.example.androidthings.assistant;
 
-import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
-import android.graphics.Canvas;
-import android.graphics.Matrix;
-import android.graphics.RectF;
+import android.media.Image;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.util.Size;
 
 import com.example.androidthings.assistant.env.ImageUtils;
 import com.example.androidthings.assistant.env.Logger;
 
-import java.util.ArrayList;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class DetectorActivity extends CameraHandler {
-    private static final Logger LOGGER = new Logger();
+/**
+ * Long-lived object detection pipeline. Owns a single inference thread and every buffer a frame
+ * passes through, so nothing is allocated or started per frame. Frames are submitted from the
+ * camera thread and results are delivered on the inference thread.
+ */
+public class DetectorActivity {
+    private static final Logger LOGGER = new Logger(DetectorActivity.class, true);
 
     private static final int TF_OD_API_INPUT_SIZE = 300;
-    private static final Size DESIRED_PREVIEW_SIZE = new Size(640, 480);
     private static final boolean SAVE_PREVIEW_BITMAP = false;
-    private Classifier detector;
-    private int previewWidth = 640;
-    private int previewHeight = 480;
-    private List<Classifier.Recognition> mappedRecognitions =
-            new LinkedList<>();
-    private Context mContext;
-    private Handler handler;
-    private HandlerThread handlerThread;
-    List<Classifier.Recognition> results = new ArrayList<Classifier.Recognition>() ;
-    Bitmap croppedBitmap = null;
-    //private MultiBoxTracker tracker;
-    private AssistantActivity assistantActivityInstance;
-
-    DetectorActivity(Context context, Classifier detectionInstance, AssistantActivity assistantActivity){
-        super();
-        mContext = context;
+    static final float MINIMUM_CONFIDENCE = 0.6f;
+    static final int MAX_DETECTIONS = 100;
+    // Title of label-file entries that are not real classes.
+    private static final String UNKNOWN_TITLE = "???";
+    // The detector runs on one frame in DETECTION_INTERVAL; the tracker covers the rest.
+    private static final int DETECTION_INTERVAL = 4;
+    private static final float TRACK_CONFIDENCE_DECAY = 0.9f;
+    private static final float MINIMUM_TRACK_CONFIDENCE = 0.4f;
+    private static final int STATS_LOG_INTERVAL_FRAMES = 100;
+    // One preview on screen, one on its way there and one being written.
+    private static final int PREVIEW_BUFFERS = 3;
+
+    /**
+     * Receives the outcome of every processed frame.
+     */
+    public interface Callback {
+        /**
+         * Called on the inference thread. The results and the preview are reused by the
+         * pipeline once this returns, so copy anything that is needed later.
+         *
+         * @param results tracked objects, detected above the confidence threshold and carried
+         *                forward on frames the detector skipped.
+         * @param preview the model input of this frame, or null if the detector did not run on
+         *                it or every preview bitmap is still held by the receiver. A non-null
+         *                preview belongs to the receiver, and is not rewritten, until it is
+         *                handed back with {@link DetectorActivity#releasePreview(Bitmap)}.
+         */
+        void onDetections(List<Classifier.Recognition> results, Bitmap preview);
+    }
+
+    private final Classifier detector;
+    private final Callback callback;
+    private final int previewWidth;
+    private final int previewHeight;
+
+    private final HandlerThread handlerThread;
+    private final Handler handler;
+    private final AtomicBoolean frameInFlight = new AtomicBoolean();
+
+    // Pre-allocated frame state.
+    private final byte[][] yuvBytes = new byte[3][];
+    private int yRowStride;
+    private int uvRowStride;
+    private int uvPixelStride;
+    private long frameSubmittedNanos;
+    private final byte[] rgbValues = new byte[TF_OD_API_INPUT_SIZE * TF_OD_API_INPUT_SIZE * 3];
+    private final int[] previewPixels = new int[TF_OD_API_INPUT_SIZE * TF_OD_API_INPUT_SIZE];
+    // Preview bitmaps the receiver has not been handed or has released.
+    private final ArrayBlockingQueue<Bitmap> freePreviews =
+            new ArrayBlockingQueue<>(PREVIEW_BUFFERS);
+    private List<Classifier.Recognition> trackedRecognitions = Collections.emptyList();
+    private final ObjectTracker tracker = new ObjectTracker(
+            DETECTION_INTERVAL, TRACK_CONFIDENCE_DECAY, MINIMUM_TRACK_CONFIDENCE);
+    private int processedFrames;
+    private int detectedFrames;
+
+    DetectorActivity(Classifier detectionInstance, int previewWidth, int previewHeight,
+                     Callback callback) {
         detector = detectionInstance;
+        this.callback = callback;
+        this.previewWidth = previewWidth;
+        this.previewHeight = previewHeight;
+
+        for (int i = 0; i < PREVIEW_BUFFERS; ++i) {
+            freePreviews.add(Bitmap.createBitmap(
+                    TF_OD_API_INPUT_SIZE, TF_OD_API_INPUT_SIZE, Config.ARGB_8888));
+        }
+
+        setDetectionFilter(MINIMUM_CONFIDENCE, MAX_DETECTIONS, null, null);
+
         handlerThread = new HandlerThread("inference");
         handlerThread.start();
         handler = new Handler(handlerThread.getLooper());
-        //tracker = new MultiBoxTracker(context);
-        assistantActivityInstance = assistantActivity;
     }
 
-    protected synchronized void runInBackground(final Runnable r) {
-        if (handler != null) {
-            handler.post(r);
+    /**
+     * Offers a camera frame to the pipeline. The planes are copied before this returns, so the
+     * caller may close the image straight away.
+     *
+     * @return false if the previous frame is still being processed and this one was dropped.
+     */
+    public boolean submitFrame(final Image image) {
+        if (!frameInFlight.compareAndSet(false, true)) {
+            return false;
         }
+        frameSubmittedNanos = System.nanoTime();
+        try {
+            final Image.Plane[] planes = image.getPlanes();
+            fillBytes(planes, yuvBytes);
+            yRowStride = planes[0].getRowStride();
+            uvRowStride = planes[1].getRowStride();
+            uvPixelStride = planes[1].getPixelStride();
+        } catch (RuntimeException e) {
+            frameInFlight.set(false);
+            throw e;
+        }
+        handler.post(processFrame);
+        return true;
     }
 
-    @Override
-    protected List<Classifier.Recognition> processImageRGBbytes(int[] rgbBytes) {
+    /**
+     * Hands back a preview passed to {@link Callback#onDetections}, once it is no longer drawn.
+     * May be called from any thread.
+     */
+    public void releasePreview(final Bitmap preview) {
+        freePreviews.offer(preview);
+    }
 
-        Bitmap rgbFrameBitmap = null;
+    /**
+     * Forgets the tracked objects, so the next frame goes through the detector. Use it when the
+     * frames stop being consecutive, e.g. when capture pauses.
+     */
+    public void resetTracking() {
+        handler.post(tracker::reset);
+    }
 
-        Matrix frameToCropTransform;
-        Matrix cropToFrameTransform;
+    /**
+     * Narrows what the detector reports from the next frame on, e.g. to obstacles only. The
+     * detector drops everything else before building results, which also saves the tracker
+     * work. May be called from any thread.
+     *
+     * @param allowedTitles if non-null, only these classes are reported.
+     * @param blockedTitles if non-null, these classes are not reported.
+     */
+    public void setDetectionFilter(float minConfidence, int maxResults,
+                                   Collection<String> allowedTitles,
+                                   Collection<String> blockedTitles) {
+        final Set<String> blocked = new HashSet<>();
+        if (blockedTitles != null) {
+            blocked.addAll(blockedTitles);
+        }
+        blocked.add(UNKNOWN_TITLE);
+        detector.setQuery(
+                new Classifier.Query(minConfidence, maxResults, allowedTitles, blocked));
+    }
 
-        frameToCropTransform =
-                ImageUtils.getTransformationMatrix(
-                        previewWidth, previewHeight,
-                        TF_OD_API_INPUT_SIZE, TF_OD_API_INPUT_SIZE,
-                        90, false);
+    /**
+     * Stops the inference thread. Frames still queued are discarded.
+     */
+    public void close() {
+        handler.removeCallbacks(processFrame);
+        handlerThread.quitSafely();
+    }
 
-        cropToFrameTransform = new Matrix();
-        frameToCropTransform.invert(cropToFrameTransform);
+    private final Runnable processFrame = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                final Bitmap preview = processImageYUV();
+                callback.onDetections(trackedRecognitions, preview);
+            } finally {
+                frameInFlight.set(false);
+            }
+        }
+    };
 
-        rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
-        croppedBitmap = Bitmap.createBitmap(TF_OD_API_INPUT_SIZE, TF_OD_API_INPUT_SIZE, Config.ARGB_8888);
-        rgbFrameBitmap.setPixels(assistantActivityInstance.getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
+    private static void fillBytes(final Image.Plane[] planes, final byte[][] yuvBytes) {
+        // Because of the variable row stride it's not possible to know in
+        // advance the actual necessary dimensions of the yuv planes.
+        for (int i = 0; i < planes.length; ++i) {
+            final ByteBuffer buffer = planes[i].getBuffer();
+            if (yuvBytes[i] == null || yuvBytes[i].length != buffer.capacity()) {
+                LOGGER.d("Initializing buffer %d at size %d", i, buffer.capacity());
+                yuvBytes[i] = new byte[buffer.capacity()];
+            }
+            buffer.get(yuvBytes[i]);
+        }
+    }
 
-        final Canvas canvas = new Canvas(croppedBitmap);
-        canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
-        // For examining the actual TF input.
-        if (SAVE_PREVIEW_BITMAP) {
-            ImageUtils.saveBitmap(croppedBitmap);
+    /**
+     * Runs the detector or the tracker on the submitted frame. On detector frames the frame is
+     * rotated, scaled and converted into the model input in a single pass. The tracker only
+     * extrapolates the last detections and never looks at the pixels, so on its frames the
+     * conversion is skipped altogether.
+     *
+     * @return a preview bitmap holding the model input, or null if the detector did not run or
+     *     no preview bitmap was free.
+     */
+    private Bitmap processImageYUV() {
+        final long convertStartNanos = System.nanoTime();
+        LatencyMetrics.CAPTURE.record(convertStartNanos - frameSubmittedNanos);
+        ++processedFrames;
+        if (!tracker.needsDetection()) {
+            trackedRecognitions = tracker.predict();
+            logStats();
+            return null;
         }
-        assistantActivityInstance.imageView.setImageBitmap(croppedBitmap);
-        results = detector.recognizeImage(croppedBitmap);
-
-        LOGGER.i("Detect: %s", results);
-        mappedRecognitions.clear();
-        for (final Classifier.Recognition result : results) {
-            final RectF location = result.getLocation();
-            if (location != null && !result.getTitle().equalsIgnoreCase("???") && result.getConfidence() >= 0.6f){
-                result.setLocation(location);
-                mappedRecognitions.add(result);
+
+        ImageUtils.convertYUV420ToRGB888(
+                yuvBytes[0],
+                yuvBytes[1],
+                yuvBytes[2],
+                previewWidth,
+                previewHeight,
+                yRowStride,
+                uvRowStride,
+                uvPixelStride,
+                TF_OD_API_INPUT_SIZE,
+                TF_OD_API_INPUT_SIZE,
+                90,
+                rgbValues);
+        final long cropStartNanos = System.nanoTime();
+        LatencyMetrics.CONVERT.record(cropStartNanos - convertStartNanos);
+
+        // The preview only needs the 300x300 model input, not the full frame. If the UI still
+        // holds every bitmap it is behind, and this frame's preview is skipped.
+        final Bitmap croppedBitmap = freePreviews.poll();
+        if (croppedBitmap != null) {
+            for (int i = 0, j = 0; i < previewPixels.length; ++i, j += 3) {
+                previewPixels[i] = 0xff000000 | ((rgbValues[j] & 0xff) << 16)
+                        | ((rgbValues[j + 1] & 0xff) << 8) | (rgbValues[j + 2] & 0xff);
+            }
+            croppedBitmap.setPixels(previewPixels, 0, TF_OD_API_INPUT_SIZE, 0, 0,
+                    TF_OD_API_INPUT_SIZE, TF_OD_API_INPUT_SIZE);
+            LatencyMetrics.CROP.recordSince(cropStartNanos);
+            // For examining the actual TF input.
+            if (SAVE_PREVIEW_BITMAP) {
+                ImageUtils.saveBitmap(croppedBitmap);
             }
         }
-        return mappedRecognitions;
-    }
 
+        ++detectedFrames;
+        // The detector's query has already dropped everything not worth tracking.
+        final List<Classifier.Recognition> results = detector.recognizeImage(rgbValues);
 
-    @Override
-    protected Size getDesiredPreviewFrameSize() {
-        return DESIRED_PREVIEW_SIZE;
+        LOGGER.v("Detect: %s", results);
+        trackedRecognitions = tracker.update(results);
+        logStats();
+        return croppedBitmap;
     }
 
+    private void logStats() {
+        if (processedFrames % STATS_LOG_INTERVAL_FRAMES == 0) {
+            LOGGER.i("Detector ran on %d of %d frames", detectedFrames, processedFrames);
+        }
+    }
 }
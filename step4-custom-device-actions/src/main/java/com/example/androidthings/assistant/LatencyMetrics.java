@@ -0,0 +1,153 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.example.androidthings.assistant.env.LatencyHistogram;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Process-wide latency histograms, one per pipeline stage, and their periodic report.
+ *
+ * <p>Stages record into the histograms directly; recording is lock-free and allocation-free.
+ * While reporting is started every histogram is snapshotted at a fixed period, logged, and
+ * written to a file that always holds the latest report.
+ */
+public final class LatencyMetrics {
+    private static final String TAG = LatencyMetrics.class.getSimpleName();
+
+    private static final List<LatencyHistogram> HISTOGRAMS = new CopyOnWriteArrayList<>();
+
+    // Detection pipeline, in the order a frame goes through it.
+    /** From requesting a camera capture session to it being configured. */
+    public static final LatencyHistogram SESSION = register("session");
+    /** From the camera handing over a frame to the inference thread picking it up. */
+    public static final LatencyHistogram CAPTURE = register("capture");
+    /** YUV to RGB conversion, rotation and scaling into the model input. */
+    public static final LatencyHistogram CONVERT = register("convert");
+    /** Building the preview bitmap from the model input. */
+    public static final LatencyHistogram CROP = register("crop");
+    public static final LatencyHistogram FEED = register("feed");
+    public static final LatencyHistogram RUN = register("run");
+    public static final LatencyHistogram FETCH = register("fetch");
+    public static final LatencyHistogram POSTPROCESS = register("postprocess");
+    /** From an announcement being decided to its speech starting. */
+    public static final LatencyHistogram ANNOUNCE = register("announce");
+
+    private static HandlerThread sReportThread;
+    private static Handler sReportHandler;
+    private static File sReportFile;
+
+    private LatencyMetrics() {}
+
+    /**
+     * Adds a histogram to the report.
+     */
+    public static LatencyHistogram register(String name) {
+        final LatencyHistogram histogram = new LatencyHistogram(name);
+        HISTOGRAMS.add(histogram);
+        return histogram;
+    }
+
+    /**
+     * @return a snapshot of every histogram, taken without pausing recording.
+     */
+    public static List<LatencyHistogram.Snapshot> snapshot() {
+        final List<LatencyHistogram.Snapshot> snapshots = new ArrayList<>(HISTOGRAMS.size());
+        for (LatencyHistogram histogram : HISTOGRAMS) {
+            snapshots.add(histogram.snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * Reports every histogram to logcat and to {@code file} each {@code periodMs}, on a
+     * background thread, until {@link #stopReporting()}.
+     */
+    public static synchronized void startReporting(final File file, final long periodMs) {
+        if (sReportThread != null) {
+            return;
+        }
+        sReportThread = new HandlerThread("metrics");
+        sReportThread.start();
+        final Handler handler = new Handler(sReportThread.getLooper());
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                report(file);
+                handler.postDelayed(this, periodMs);
+            }
+        }, periodMs);
+        sReportHandler = handler;
+        sReportFile = file;
+    }
+
+    /**
+     * Writes a final report and stops the reporting thread.
+     */
+    public static synchronized void stopReporting() {
+        if (sReportThread == null) {
+            return;
+        }
+        final File file = sReportFile;
+        sReportHandler.removeCallbacksAndMessages(null);
+        sReportHandler.post(() -> report(file));
+        sReportThread.quitSafely();
+        sReportThread = null;
+        sReportHandler = null;
+        sReportFile = null;
+    }
+
+    private static void report(File file) {
+        final List<LatencyHistogram.Snapshot> snapshots = snapshot();
+        final StringBuilder report = new StringBuilder();
+        report.append("# ")
+                .append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date()))
+                .append('\n');
+        for (LatencyHistogram.Snapshot snapshot : snapshots) {
+            if (snapshot.getCount() == 0) {
+                continue;
+            }
+            Log.i(TAG, snapshot.toString());
+            report.append(snapshot).append('\n');
+        }
+        // Written beside the file and renamed, so a reader never sees half a report.
+        final File temporary = new File(file.getPath() + ".tmp");
+        try (Writer writer = new FileWriter(temporary)) {
+            writer.write(report.toString());
+        } catch (IOException e) {
+            Log.w(TAG, "unable to write " + temporary, e);
+            return;
+        }
+        if (!temporary.renameTo(file)) {
+            Log.w(TAG, "unable to replace " + file);
+        }
+    }
+}
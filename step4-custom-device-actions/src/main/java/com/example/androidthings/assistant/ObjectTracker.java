@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.graphics.RectF;
+
+import com.example.androidthings.vision.BoxTracker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Carries detections across the frames the detector skips, by extrapolating their boxes with
+ * a {@link BoxTracker}. Tracked objects keep the same id from frame to frame.
+ *
+ * <p>Not thread safe; use it from the inference thread only.
+ */
+public class ObjectTracker {
+    private final BoxTracker tracker;
+
+    // Detections handed to the tracker, grown as needed.
+    private float[] detectionBoxes = new float[0];
+    private String[] detectionTitles = new String[0];
+    private float[] detectionConfidences = new float[0];
+    private final RectF detectionBox = new RectF();
+
+    private final List<Classifier.Recognition> recognitionPool = new ArrayList<>();
+    private final List<Classifier.Recognition> results = new ArrayList<>();
+
+    /**
+     * @param detectionInterval run the detector on one frame in this many.
+     * @param confidenceDecay factor applied to a track's confidence on every predicted frame.
+     * @param minTrackConfidence run the detector early before any track falls below this.
+     */
+    public ObjectTracker(int detectionInterval, float confidenceDecay, float minTrackConfidence) {
+        tracker = new BoxTracker(detectionInterval, confidenceDecay, minTrackConfidence);
+    }
+
+    /**
+     * @return true if the next frame should go through the detector.
+     */
+    public boolean needsDetection() {
+        return tracker.needsDetection();
+    }
+
+    /**
+     * Corrects the tracks with a fresh set of detections. Tracks that no detection continues
+     * are dropped, detections that continue no track start new ones.
+     *
+     * @return the tracked objects, valid until the next call.
+     */
+    public List<Classifier.Recognition> update(final List<Classifier.Recognition> detections) {
+        final int count = detections.size();
+        if (detectionTitles.length < count) {
+            detectionBoxes = new float[4 * count];
+            detectionTitles = new String[count];
+            detectionConfidences = new float[count];
+        }
+        for (int i = 0; i < count; ++i) {
+            final Classifier.Recognition detection = detections.get(i);
+            detection.copyLocationTo(detectionBox);
+            detectionBoxes[4 * i] = detectionBox.left;
+            detectionBoxes[4 * i + 1] = detectionBox.top;
+            detectionBoxes[4 * i + 2] = detectionBox.right;
+            detectionBoxes[4 * i + 3] = detectionBox.bottom;
+            detectionTitles[i] = detection.getTitle();
+            detectionConfidences[i] = detection.getConfidence();
+        }
+        tracker.update(detectionBoxes, detectionTitles, detectionConfidences, count);
+        return publish();
+    }
+
+    /**
+     * Moves every track one frame forward without a detector run.
+     *
+     * @return the tracked objects, valid until the next call.
+     */
+    public List<Classifier.Recognition> predict() {
+        tracker.predict();
+        return publish();
+    }
+
+    /**
+     * Drops all tracks, for example when the camera stops.
+     */
+    public void reset() {
+        tracker.reset();
+        results.clear();
+    }
+
+    private List<Classifier.Recognition> publish() {
+        results.clear();
+        final float[] boxes = tracker.getBoxes();
+        for (int t = 0; t < tracker.getTrackCount(); ++t) {
+            if (recognitionPool.size() == t) {
+                recognitionPool.add(new Classifier.Recognition(null, null, 0f, new RectF()));
+            }
+            final Classifier.Recognition recognition = recognitionPool.get(t);
+            recognition.set(tracker.getId(t), tracker.getTitle(t), tracker.getConfidence(t),
+                    boxes[4 * t], boxes[4 * t + 1], boxes[4 * t + 2], boxes[4 * t + 3]);
+            results.add(recognition);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Decodes an OPUS_IN_OGG response while it is still arriving. The Ogg pages in each audio_out
+ * chunk are split into Opus packets as soon as a page is complete, decoded with the platform's
+ * Opus {@link MediaCodec}, and the PCM is handed to a {@link StreamingAudioPlayer}, so the
+ * compressed response is never collected in full.
+ *
+ * <p>Every response is a new Ogg stream starting with its own OpusHead packet. The codec is
+ * kept across responses and only reconfigured when that header changes. All codec work runs on
+ * a dedicated decoder thread; the public methods only post to it.
+ */
+public class OggOpusDecoder {
+    private static final String TAG = OggOpusDecoder.class.getSimpleName();
+
+    /** Opus always decodes at 48 kHz, whatever rate the stream was encoded from. */
+    public static final int OUTPUT_SAMPLE_RATE = 48000;
+
+    // Decoder pre-roll recommended after a seek by RFC 7845.
+    private static final long SEEK_PRE_ROLL_NS = 80000000L;
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+    // How long to wait for the decoder to flush its tail at the end of a response.
+    private static final int MAX_END_OF_STREAM_WAITS = 50;
+    private static final int OPUS_HEAD_MIN_LENGTH = 19;
+
+    private final StreamingAudioPlayer mPlayer;
+    private final HandlerThread mDecoderThread;
+    private final Handler mDecoderHandler;
+
+    // Decoder thread state.
+    private final OggPacketReader mReader = new OggPacketReader();
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private final OggPacketReader.Listener mPacketListener = this::onPacket;
+    private MediaCodec mCodec;
+    private byte[] mCodecHeader;
+    private boolean mCodecUsed;
+    private int mOutputSampleRate = OUTPUT_SAMPLE_RATE;
+    private int mPacketsInStream;
+
+    /**
+     * @param player receives the decoded PCM; it must be set up for 16-bit audio at
+     *               {@link #OUTPUT_SAMPLE_RATE} with the stream's channel count.
+     */
+    public OggOpusDecoder(StreamingAudioPlayer player) {
+        mPlayer = player;
+        mDecoderThread = new HandlerThread("opusDecoder");
+        mDecoderThread.start();
+        mDecoderHandler = new Handler(mDecoderThread.getLooper());
+    }
+
+    /**
+     * Starts a new response; bytes left over from the previous one are dropped. Call it once
+     * per Assistant call, together with {@link StreamingAudioPlayer#beginResponse()} and before
+     * the call is opened: once the stream's OpusHead has been read, a reset would make the next
+     * packet look like the header and silence the rest of the response.
+     */
+    public void beginResponse() {
+        mDecoderHandler.post(() -> {
+            mReader.reset();
+            mPacketsInStream = 0;
+        });
+    }
+
+    /**
+     * Decodes the next chunk of the Ogg stream, in the order the chunks arrived.
+     */
+    public void feed(final byte[] oggData) {
+        if (oggData.length == 0) {
+            return;
+        }
+        mDecoderHandler.post(() -> mReader.feed(oggData, 0, oggData.length, mPacketListener));
+    }
+
+    /**
+     * Signals that the response is complete. The decoder's tail is drained into the player,
+     * then the player is told to finish.
+     */
+    public void finish() {
+        mDecoderHandler.post(() -> {
+            if (mCodec != null && mPacketsInStream > 2) {
+                try {
+                    final int index = mCodec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+                    if (index >= 0) {
+                        mCodec.queueInputBuffer(index, 0, 0, 0,
+                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        drain(true);
+                    }
+                } catch (IllegalStateException e) {
+                    Log.e(TAG, "error draining opus decoder", e);
+                    releaseCodec();
+                }
+            }
+            mPacketsInStream = 0;
+            mPlayer.finish();
+        });
+    }
+
+    /**
+     * Releases the codec and the decoder thread.
+     */
+    public void release() {
+        mDecoderHandler.removeCallbacksAndMessages(null);
+        mDecoderHandler.post(this::releaseCodec);
+        mDecoderThread.quitSafely();
+    }
+
+    private void onPacket(byte[] packet, int length) {
+        final int index = mPacketsInStream++;
+        if (index == 0) {
+            openCodec(Arrays.copyOf(packet, length));
+        } else if (index > 1 && mCodec != null) {
+            // Packet 1 is OpusTags, which carries nothing needed for playback.
+            try {
+                decode(packet, length);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "error decoding opus packet", e);
+                releaseCodec();
+            }
+        }
+    }
+
+    private void openCodec(byte[] header) {
+        if (header.length < OPUS_HEAD_MIN_LENGTH
+                || !new String(header, 0, 8).equals("OpusHead")) {
+            Log.e(TAG, "response is not an Ogg Opus stream");
+            releaseCodec();
+            return;
+        }
+        if (mCodec != null && Arrays.equals(header, mCodecHeader)) {
+            // Same stream parameters as last time: just drop the previous response's state.
+            if (mCodecUsed) {
+                mCodec.flush();
+                mCodecUsed = false;
+            }
+            return;
+        }
+        releaseCodec();
+
+        final int channels = header[9] & 0xff;
+        final int preSkip = (header[10] & 0xff) | (header[11] & 0xff) << 8;
+        final MediaFormat format = MediaFormat.createAudioFormat(
+                MediaFormat.MIMETYPE_AUDIO_OPUS, OUTPUT_SAMPLE_RATE, channels);
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(header));
+        format.setByteBuffer("csd-1", nanosBuffer(preSkip * 1000000000L / OUTPUT_SAMPLE_RATE));
+        format.setByteBuffer("csd-2", nanosBuffer(SEEK_PRE_ROLL_NS));
+        try {
+            mCodec = MediaCodec.createDecoderByType(MediaFormat.MIMETYPE_AUDIO_OPUS);
+            mCodec.configure(format, null, null, 0);
+            mCodec.start();
+        } catch (IOException | IllegalStateException e) {
+            Log.e(TAG, "unable to start opus decoder", e);
+            releaseCodec();
+            return;
+        }
+        mCodecHeader = header;
+        Log.i(TAG, "opus decoder started: " + channels + " channel(s), pre-skip " + preSkip);
+    }
+
+    private void decode(byte[] packet, int length) {
+        int index;
+        while ((index = mCodec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US)) < 0) {
+            // All input buffers are busy; make room by taking output.
+            drain(false);
+        }
+        final ByteBuffer input = mCodec.getInputBuffer(index);
+        input.clear();
+        input.put(packet, 0, length);
+        mCodec.queueInputBuffer(index, 0, length, 0, 0);
+        mCodecUsed = true;
+        drain(false);
+    }
+
+    /**
+     * Moves decoded PCM to the player. Returns when no output is ready, or with untilEndOfStream
+     * once the end of stream has come out of the decoder.
+     */
+    private void drain(boolean untilEndOfStream) {
+        int waits = 0;
+        while (true) {
+            final int index = mCodec.dequeueOutputBuffer(mBufferInfo,
+                    untilEndOfStream ? DEQUEUE_TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!untilEndOfStream || ++waits >= MAX_END_OF_STREAM_WAITS) {
+                    return;
+                }
+                continue;
+            }
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                final int sampleRate =
+                        mCodec.getOutputFormat().getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                if (sampleRate != mOutputSampleRate) {
+                    Log.w(TAG, "opus decoder output rate: " + sampleRate);
+                    mOutputSampleRate = sampleRate;
+                    mPlayer.setSampleRate(sampleRate);
+                }
+                continue;
+            }
+            if (index < 0) {
+                continue;
+            }
+            if (mBufferInfo.size > 0) {
+                // The player keeps the array until it has been played, so it cannot be reused.
+                final byte[] pcm = new byte[mBufferInfo.size];
+                final ByteBuffer output = mCodec.getOutputBuffer(index);
+                output.position(mBufferInfo.offset);
+                output.get(pcm);
+                mPlayer.enqueue(pcm);
+            }
+            mCodec.releaseOutputBuffer(index, false);
+            if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                return;
+            }
+        }
+    }
+
+    private void releaseCodec() {
+        if (mCodec != null) {
+            try {
+                mCodec.stop();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "error stopping opus decoder", e);
+            }
+            mCodec.release();
+            mCodec = null;
+        }
+        mCodecHeader = null;
+        mCodecUsed = false;
+    }
+
+    private static ByteBuffer nanosBuffer(long nanos) {
+        final ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+        buffer.putLong(nanos);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Incremental Ogg demuxer for a single logical stream. Bytes can arrive split at any point;
+     * each packet is delivered as soon as the page that completes it has arrived. Page CRCs are
+     * not checked, the transport already guarantees integrity.
+     */
+    static final class OggPacketReader {
+        interface Listener {
+            /** The packet is only valid for the duration of the call. */
+            void onPacket(byte[] packet, int length);
+        }
+
+        private static final int PAGE_HEADER_LENGTH = 27;
+        private static final int FLAG_CONTINUED_PACKET = 0x01;
+
+        private byte[] mPage = new byte[4096];
+        private int mPageBytes;
+        private byte[] mPacket = new byte[1024];
+        private int mPacketBytes;
+
+        void reset() {
+            mPageBytes = 0;
+            mPacketBytes = 0;
+        }
+
+        void feed(byte[] data, int offset, int length, Listener listener) {
+            if (mPageBytes + length > mPage.length) {
+                mPage = Arrays.copyOf(mPage, Math.max(mPage.length * 2, mPageBytes + length));
+            }
+            System.arraycopy(data, offset, mPage, mPageBytes, length);
+            mPageBytes += length;
+
+            int pos = 0;
+            while (mPageBytes - pos >= PAGE_HEADER_LENGTH) {
+                if (!isCapturePattern(pos)) {
+                    pos = resync(pos + 1);
+                    continue;
+                }
+                final int segments = mPage[pos + 26] & 0xff;
+                final int headerLength = PAGE_HEADER_LENGTH + segments;
+                if (mPageBytes - pos < headerLength) {
+                    break;
+                }
+                int bodyLength = 0;
+                for (int i = 0; i < segments; i++) {
+                    bodyLength += mPage[pos + PAGE_HEADER_LENGTH + i] & 0xff;
+                }
+                if (mPageBytes - pos < headerLength + bodyLength) {
+                    break;
+                }
+                if ((mPage[pos + 5] & FLAG_CONTINUED_PACKET) == 0) {
+                    // A packet left open by a lost page can never be completed.
+                    mPacketBytes = 0;
+                }
+                int body = pos + headerLength;
+                for (int i = 0; i < segments; i++) {
+                    final int lacing = mPage[pos + PAGE_HEADER_LENGTH + i] & 0xff;
+                    appendToPacket(body, lacing);
+                    body += lacing;
+                    if (lacing < 255) {
+                        listener.onPacket(mPacket, mPacketBytes);
+                        mPacketBytes = 0;
+                    }
+                }
+                pos += headerLength + bodyLength;
+            }
+            System.arraycopy(mPage, pos, mPage, 0, mPageBytes - pos);
+            mPageBytes -= pos;
+        }
+
+        private boolean isCapturePattern(int pos) {
+            return mPage[pos] == 'O' && mPage[pos + 1] == 'g' && mPage[pos + 2] == 'g'
+                    && mPage[pos + 3] == 'S';
+        }
+
+        /** Position of the next possible page start at or after pos. */
+        private int resync(int pos) {
+            for (; pos + 4 <= mPageBytes; pos++) {
+                if (isCapturePattern(pos)) {
+                    return pos;
+                }
+            }
+            return pos;
+        }
+
+        private void appendToPacket(int offset, int length) {
+            if (mPacketBytes + length > mPacket.length) {
+                mPacket = Arrays.copyOf(mPacket, Math.max(mPacket.length * 2,
+                        mPacketBytes + length));
+            }
+            System.arraycopy(mPage, offset, mPacket, mPacketBytes, length);
+            mPacketBytes += length;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.util.List;
+
+/**
+ * A {@link Classifier.Query} resolved against a model's labels, in the form the detectors
+ * filter raw output with. A detector swaps it in as one, so a recognition never sees a query
+ * without its class mask.
+ */
+final class ResolvedQuery {
+    // Detections scoring below this are dropped before any result object is touched. It is well
+    // under the confidence any caller acts on.
+    static final float MINIMUM_CONFIDENCE = 0.1f;
+
+    // The query's floor, raised to MINIMUM_CONFIDENCE.
+    final float minConfidence;
+    final int maxResults;
+    // Whether each raw class is accepted, or null if every class is.
+    final boolean[] classMask;
+
+    /**
+     * @param labels the model's labels.
+     * @param labelOffset added to a raw class to find its label.
+     * @param numClasses number of raw classes the model can output.
+     */
+    ResolvedQuery(final Classifier.Query query, final List<String> labels, final int labelOffset,
+                  final int numClasses) {
+        this.minConfidence = Math.max(MINIMUM_CONFIDENCE, query.getMinConfidence());
+        this.maxResults = query.getMaxResults();
+        this.classMask = query.classMask(labels, labelOffset, numClasses);
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.content.Context;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.UtteranceProgressListener;
+import android.speech.tts.Voice;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Plays fixed phrases from audio synthesized ahead of time instead of running the speech
+ * engine for every announcement.
+ *
+ * <p>{@link #warmUp} synthesizes each phrase to a WAV file with
+ * {@link TextToSpeech#synthesizeToFile}, one at a time so live speech never queues behind a
+ * long batch. The PCM of every file is memory-mapped and handed straight to a
+ * {@link StreamingAudioPlayer}. Files are keyed by text, voice and speech rate and kept in the
+ * app's cache directory, so later runs only map them.
+ */
+public class SpeechCache {
+    private static final String TAG = SpeechCache.class.getSimpleName();
+
+    private static final String CACHE_DIRECTORY = "tts";
+    private static final String UTTERANCE_PREFIX = "speechCache:";
+    private static final int WAV_FORMAT_PCM = 1;
+
+    private static final class Clip {
+        final ByteBuffer pcm;
+        final int sampleRate;
+
+        Clip(ByteBuffer pcm, int sampleRate) {
+            this.pcm = pcm;
+            this.sampleRate = sampleRate;
+        }
+    }
+
+    private final TextToSpeech mTextToSpeech;
+    private final StreamingAudioPlayer mPlayer;
+    private final File mDirectory;
+    private final float mSpeechRate;
+    private final ConcurrentHashMap<String, Clip> mClips = new ConcurrentHashMap<>();
+    // Phrases still to synthesize; guarded by this.
+    private final ArrayDeque<String> mPending = new ArrayDeque<>();
+    private String mVoiceKey;
+    // Written when the cache is built on a startup stage thread, read and updated by play().
+    private volatile int mPlayerSampleRate;
+    private volatile UtteranceProgressListener mUtteranceListener;
+
+    /**
+     * @param textToSpeech an initialized engine with its language, voice and rate already set.
+     * @param player plays the cached clips; its sample rate is adjusted to the clips.
+     * @param playerSampleRate the rate the player was created with.
+     * @param speechRate the rate set on the engine, part of the cache key.
+     */
+    public SpeechCache(Context context, TextToSpeech textToSpeech, StreamingAudioPlayer player,
+                       int playerSampleRate, float speechRate) {
+        mTextToSpeech = textToSpeech;
+        mPlayer = player;
+        mPlayerSampleRate = playerSampleRate;
+        mSpeechRate = speechRate;
+        mDirectory = new File(context.getCacheDir(), CACHE_DIRECTORY);
+        mTextToSpeech.setOnUtteranceProgressListener(mSynthesisListener);
+    }
+
+    /**
+     * Makes the given phrases available from the cache. Phrases cached by an earlier run are
+     * mapped right away, the rest are synthesized in the background.
+     */
+    public synchronized void warmUp(Collection<String> phrases) {
+        final Voice voice = mTextToSpeech.getVoice();
+        mVoiceKey = (voice != null ? voice.getName() : "default") + "@" + mSpeechRate;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "unable to create " + mDirectory);
+            return;
+        }
+        final boolean idle = mPending.isEmpty();
+        for (String phrase : phrases) {
+            if (mClips.containsKey(phrase) || mPending.contains(phrase)) {
+                continue;
+            }
+            if (!map(phrase)) {
+                mPending.add(phrase);
+            }
+        }
+        Log.i(TAG, mClips.size() + " phrases cached, " + mPending.size() + " to synthesize");
+        if (idle) {
+            synthesizeNext();
+        }
+    }
+
+    /**
+     * The cache takes over the engine's progress listener; this one receives the progress of
+     * the utterances the cache did not start.
+     */
+    public void setUtteranceListener(UtteranceProgressListener listener) {
+        mUtteranceListener = listener;
+    }
+
+    /**
+     * Plays a phrase from the cache.
+     *
+     * @return false if the phrase is not cached; the caller should speak it instead.
+     */
+    public boolean play(String phrase) {
+        final Clip clip = mClips.get(phrase);
+        if (clip == null) {
+            return false;
+        }
+        if (clip.sampleRate != mPlayerSampleRate) {
+            mPlayerSampleRate = clip.sampleRate;
+            mPlayer.setSampleRate(clip.sampleRate);
+        }
+        final long requestedNanos = System.nanoTime();
+        mPlayer.enqueue(clip.pcm, () -> LatencyMetrics.ANNOUNCE.recordSince(requestedNanos));
+        mPlayer.finish();
+        return true;
+    }
+
+    private final UtteranceProgressListener mSynthesisListener = new UtteranceProgressListener() {
+        @Override
+        public void onStart(String utteranceId) {
+            final UtteranceProgressListener listener = mUtteranceListener;
+            if (listener != null && !isCacheUtterance(utteranceId)) {
+                listener.onStart(utteranceId);
+            }
+        }
+
+        @Override
+        public void onDone(String utteranceId) {
+            if (!isCacheUtterance(utteranceId)) {
+                final UtteranceProgressListener listener = mUtteranceListener;
+                if (listener != null) {
+                    listener.onDone(utteranceId);
+                }
+                return;
+            }
+            final String phrase = utteranceId.substring(UTTERANCE_PREFIX.length());
+            if (!map(phrase)) {
+                Log.w(TAG, "unusable synthesis for \"" + phrase + "\"");
+            }
+            synthesizeNext();
+        }
+
+        @Override
+        public void onError(String utteranceId) {
+            if (isCacheUtterance(utteranceId)) {
+                Log.w(TAG, "synthesis failed: " + utteranceId);
+                synthesizeNext();
+                return;
+            }
+            final UtteranceProgressListener listener = mUtteranceListener;
+            if (listener != null) {
+                listener.onError(utteranceId);
+            }
+        }
+    };
+
+    private static boolean isCacheUtterance(String utteranceId) {
+        return utteranceId != null && utteranceId.startsWith(UTTERANCE_PREFIX);
+    }
+
+    private synchronized void synthesizeNext() {
+        String phrase;
+        while ((phrase = mPending.poll()) != null) {
+            if (mTextToSpeech.synthesizeToFile(phrase, null, file(phrase),
+                    UTTERANCE_PREFIX + phrase) == TextToSpeech.SUCCESS) {
+                return;
+            }
+            Log.w(TAG, "unable to queue synthesis of \"" + phrase + "\"");
+        }
+        Log.i(TAG, "speech cache ready: " + mClips.size() + " phrases");
+    }
+
+    /**
+     * Maps the PCM data of a phrase's WAV file, if it exists and is 16-bit mono PCM.
+     */
+    private boolean map(String phrase) {
+        final File file = file(phrase);
+        if (!file.isFile()) {
+            return false;
+        }
+        try (RandomAccessFile input = new RandomAccessFile(file, "r");
+             FileChannel channel = input.getChannel()) {
+            final ByteBuffer wav = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (wav.limit() < 12 || wav.getInt(0) != 0x46464952 /* RIFF */
+                    || wav.getInt(8) != 0x45564157 /* WAVE */) {
+                return false;
+            }
+            int sampleRate = 0;
+            boolean pcm16Mono = false;
+            // Walk the chunks; the mapping stays valid after the channel is closed.
+            int position = 12;
+            while (position + 8 <= wav.limit()) {
+                final int id = wav.getInt(position);
+                final int size = wav.getInt(position + 4);
+                final int body = position + 8;
+                if (id == 0x20746d66 /* fmt */ && size >= 16) {
+                    pcm16Mono = wav.getShort(body) == WAV_FORMAT_PCM
+                            && wav.getShort(body + 2) == 1
+                            && wav.getShort(body + 14) == 16;
+                    sampleRate = wav.getInt(body + 4);
+                } else if (id == 0x61746164 /* data */) {
+                    if (!pcm16Mono) {
+                        return false;
+                    }
+                    wav.position(body);
+                    // Engines that stream the file may leave the size unset.
+                    wav.limit(size > 0 ? Math.min(wav.limit(), body + size) : wav.limit());
+                    mClips.put(phrase, new Clip(wav.slice(), sampleRate));
+                    return true;
+                } else if (size < 0) {
+                    return false;
+                }
+                position = body + size + (size & 1);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "unable to map " + file, e);
+        }
+        return false;
+    }
+
+    private File file(String phrase) {
+        return new File(mDirectory, sha1(mVoiceKey + "\n" + phrase) + ".wav");
+    }
+
+    private static String sha1(String text) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest(text.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format(Locale.US, "%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+/**
+ * Holds back the leading silence of an utterance and lets the audio through once a
+ * {@link VoiceActivityDetector} hears speech. The last few chunks before the onset are kept in
+ * a ring and released ahead of the first speech chunk, so the first syllable is not clipped.
+ *
+ * <p>Audio is read straight into the ring, so nothing is copied or allocated per chunk. Like
+ * the detector it has no platform dependencies and can be driven from recorded PCM.
+ */
+public class SpeechGate {
+    /**
+     * Receives the chunks that pass the gate, oldest first.
+     */
+    public interface Sink {
+        void send(byte[] chunk, int length);
+    }
+
+    private final VoiceActivityDetector mDetector;
+    private final byte[][] mRing;
+    private final int[] mRingLengths;
+    private int mSlot;
+    // Chunks held back in the ring while waiting for speech.
+    private int mPending;
+
+    /**
+     * @param chunkBytes size of the chunks that will be read.
+     * @param preRollChunks chunks released from before the detected speech onset.
+     */
+    public SpeechGate(VoiceActivityDetector detector, int chunkBytes, int preRollChunks) {
+        mDetector = detector;
+        mRing = new byte[preRollChunks + 1][chunkBytes];
+        mRingLengths = new int[mRing.length];
+    }
+
+    /**
+     * Starts a new utterance: the detector is reset and held-back audio is dropped.
+     */
+    public void reset() {
+        mDetector.reset();
+        mSlot = 0;
+        mPending = 0;
+    }
+
+    /**
+     * @return the buffer the next chunk of audio is to be read into.
+     */
+    public byte[] nextChunk() {
+        return mRing[mSlot];
+    }
+
+    /**
+     * Classifies the chunk just read into {@link #nextChunk()}. While there is no speech yet
+     * it is held back; from the onset on, the held-back pre-roll and then every chunk go to
+     * the sink.
+     *
+     * @param length bytes read into the chunk.
+     * @return the detector state after the chunk, one of the
+     *         {@link VoiceActivityDetector} STATE_ constants.
+     */
+    public int submit(int length, Sink sink) {
+        final byte[] chunk = mRing[mSlot];
+        mRingLengths[mSlot] = length;
+        final int state = mDetector.process(chunk, 0, length);
+        if (state == VoiceActivityDetector.STATE_SILENCE) {
+            // Keep it as pre-roll; the oldest chunk falls out once the ring is full.
+            mPending = Math.min(mPending + 1, mRing.length - 1);
+            mSlot = (mSlot + 1) % mRing.length;
+            return state;
+        }
+        // Flush the pre-roll in order, oldest first, ahead of the current chunk.
+        for (int i = mPending; i > 0; i--) {
+            final int previous = (mSlot - i + mRing.length) % mRing.length;
+            sink.send(mRing[previous], mRingLengths[previous]);
+        }
+        mPending = 0;
+        sink.send(chunk, length);
+        return state;
+    }
+}
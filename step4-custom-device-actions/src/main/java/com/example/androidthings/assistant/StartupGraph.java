@@ -0,0 +1,183 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs startup work as a graph of named stages. A stage starts as soon as the stages it depends
+ * on have finished, on either the background executor or the main thread, so independent work
+ * overlaps. Every stage's start and end are recorded relative to process start and logged as a
+ * boot timeline once the required stages are ready.
+ *
+ * <p>Stages must be added after the stages they depend on. Dependents of a failed stage do not
+ * run.
+ */
+public class StartupGraph {
+    private static final String TAG = StartupGraph.class.getSimpleName();
+
+    /** A unit of startup work. */
+    public interface Stage {
+        void run() throws Exception;
+    }
+
+    /** Notified on the main thread. */
+    public interface Listener {
+        /**
+         * @param bootMs milliseconds from process start until the last required stage finished.
+         */
+        void onReady(long bootMs);
+
+        void onFailed(Throwable cause);
+    }
+
+    private static final class Timing {
+        final String name;
+        final long startMs;
+        final long endMs;
+        final String thread;
+
+        Timing(String name, long startMs, long endMs, String thread) {
+            this.name = name;
+            this.startMs = startMs;
+            this.endMs = endMs;
+            this.thread = thread;
+        }
+    }
+
+    private final Executor mBackgroundExecutor;
+    private final Executor mMainExecutor;
+    private final long mProcessStartMs = Process.getStartElapsedRealtime();
+    private final Map<String, CompletableFuture<Void>> mStages = new HashMap<>();
+    private final Map<String, Long> mExternalStarts = new HashMap<>();
+    private final List<Timing> mTimeline = Collections.synchronizedList(new ArrayList<>());
+
+    public StartupGraph(Executor backgroundExecutor, Executor mainExecutor) {
+        mBackgroundExecutor = backgroundExecutor;
+        mMainExecutor = mainExecutor;
+    }
+
+    public StartupGraph inBackground(String name, Stage stage, String... dependencies) {
+        return add(name, stage, mBackgroundExecutor, dependencies);
+    }
+
+    public StartupGraph onMainThread(String name, Stage stage, String... dependencies) {
+        return add(name, stage, mMainExecutor, dependencies);
+    }
+
+    /**
+     * Adds a stage that is finished from outside the graph, such as an engine's init callback.
+     */
+    public synchronized StartupGraph external(String name) {
+        mExternalStarts.put(name, elapsedMs());
+        mStages.put(name, new CompletableFuture<>());
+        return this;
+    }
+
+    /**
+     * Finishes a stage added with {@link #external}.
+     */
+    public synchronized void complete(String name) {
+        final Long start = mExternalStarts.remove(name);
+        if (start == null) {
+            return;
+        }
+        mTimeline.add(new Timing(name, start, elapsedMs(), "callback"));
+        mStages.get(name).complete(null);
+    }
+
+    /**
+     * Calls the listener once all the given stages have finished, or as soon as one of them
+     * fails, and logs the boot timeline.
+     */
+    public synchronized void whenReady(final Listener listener, String... required) {
+        after(required).whenCompleteAsync((ignored, error) -> {
+            final long bootMs = elapsedMs();
+            logTimeline();
+            if (error != null) {
+                final Throwable cause = error instanceof CompletionException
+                        && error.getCause() != null ? error.getCause() : error;
+                Log.e(TAG, "startup failed after " + bootMs + " ms", cause);
+                listener.onFailed(cause);
+            } else {
+                Log.i(TAG, "ready " + bootMs + " ms after process start");
+                listener.onReady(bootMs);
+            }
+        }, mMainExecutor);
+    }
+
+    private synchronized StartupGraph add(final String name, final Stage stage,
+                                          Executor executor, String... dependencies) {
+        if (mStages.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate stage " + name);
+        }
+        mStages.put(name, after(dependencies).thenRunAsync(() -> {
+            final long start = elapsedMs();
+            try {
+                stage.run();
+            } catch (Exception e) {
+                Log.e(TAG, "stage " + name + " failed", e);
+                throw new CompletionException(e);
+            } finally {
+                mTimeline.add(new Timing(name, start, elapsedMs(),
+                        Thread.currentThread().getName()));
+            }
+        }, executor));
+        return this;
+    }
+
+    private CompletableFuture<Void> after(String... dependencies) {
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[dependencies.length];
+        for (int i = 0; i < dependencies.length; i++) {
+            futures[i] = mStages.get(dependencies[i]);
+            if (futures[i] == null) {
+                throw new IllegalArgumentException("Unknown stage " + dependencies[i]);
+            }
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    private long elapsedMs() {
+        return SystemClock.elapsedRealtime() - mProcessStartMs;
+    }
+
+    private void logTimeline() {
+        final List<Timing> timeline;
+        synchronized (mTimeline) {
+            timeline = new ArrayList<>(mTimeline);
+        }
+        Collections.sort(timeline, (a, b) -> Long.compare(a.startMs, b.startMs));
+        Log.i(TAG, "boot timeline (ms since process start):");
+        for (Timing timing : timeline) {
+            Log.i(TAG, String.format(Locale.US, "  %-12s %6d .. %6d  (%5d ms) on %s",
+                    timing.name, timing.startMs, timing.endMs, timing.endMs - timing.startMs,
+                    timing.thread));
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.media.AudioDeviceInfo;
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Plays PCM audio while it is still arriving. Chunks are collected in a small jitter buffer and
+ * written to a single long-lived {@link AudioTrack} once a pre-roll threshold is reached, so the
+ * first words are heard before the rest of the response has been received.
+ *
+ * <p>All track operations run on a dedicated playback thread; the public methods only post work
+ * to it and never block the caller.
+ */
+public class StreamingAudioPlayer {
+    private static final String TAG = StreamingAudioPlayer.class.getSimpleName();
+
+    /**
+     * Notified on the playback thread when a response starts playing and once all of it has
+     * been written to the track.
+     */
+    public interface Listener {
+        void onPlaybackStarted();
+
+        void onPlaybackFinished();
+    }
+
+    private final AudioTrack mAudioTrack;
+    private final int mBytesPerFrame;
+    private final int mPreRollMs;
+    private final Listener mListener;
+    private final HandlerThread mPlaybackThread;
+    private final Handler mPlaybackHandler;
+
+    // Playback thread state.
+    private int mPreRollBytes;
+    private final ArrayList<ByteBuffer> mJitterBuffer = new ArrayList<>();
+    private int mBufferedBytes;
+    // Also read by isPlaying() on other threads.
+    private volatile boolean mPlaying;
+    private long mResponseStartMs;
+    // Frames written since playback started, and the playback head at that point.
+    private long mFramesWritten;
+    private int mHeadAtStart;
+    private volatile long mTimeToFirstAudioMs = -1;
+    private volatile long mPendingPlaybackMs;
+
+    /**
+     * @param format PCM format of the chunks that will be enqueued.
+     * @param bufferSizeInBytes size of the track's own buffer.
+     * @param preferredDevice output device, or null for the default routing.
+     * @param preRollMs audio to collect before the track starts, trading start-up latency
+     *                  against the risk of an underrun when the network stalls.
+     */
+    public StreamingAudioPlayer(AudioFormat format, int bufferSizeInBytes,
+                                AudioDeviceInfo preferredDevice, int preRollMs,
+                                Listener listener) {
+        mAudioTrack = new AudioTrack.Builder()
+                .setAudioFormat(format)
+                .setBufferSizeInBytes(bufferSizeInBytes)
+                .setTransferMode(AudioTrack.MODE_STREAM)
+                .build();
+        if (preferredDevice != null) {
+            mAudioTrack.setPreferredDevice(preferredDevice);
+        }
+        mBytesPerFrame = format.getChannelCount()
+                * (format.getEncoding() == AudioFormat.ENCODING_PCM_8BIT ? 1 : 2);
+        mPreRollMs = preRollMs;
+        mPreRollBytes = format.getSampleRate() * mBytesPerFrame * preRollMs / 1000;
+        mListener = listener;
+
+        mPlaybackThread = new HandlerThread("playback");
+        mPlaybackThread.start();
+        mPlaybackHandler = new Handler(mPlaybackThread.getLooper());
+    }
+
+    /**
+     * Starts a new response, and marks the point its time to first audio is measured from.
+     * Call it once per Assistant call, before the call is opened, so none of the response can
+     * have arrived yet. Anything left over from the previous response is dropped, which cuts
+     * it off if it is still playing.
+     */
+    public void beginResponse() {
+        final long now = SystemClock.elapsedRealtime();
+        mPlaybackHandler.post(() -> {
+            reset();
+            mResponseStartMs = now;
+        });
+    }
+
+    /**
+     * Queues a chunk of PCM audio. Chunks are played in the order they are enqueued.
+     */
+    public void enqueue(final byte[] audioData) {
+        enqueue(ByteBuffer.wrap(audioData));
+    }
+
+    /**
+     * Queues the remaining bytes of a buffer of PCM audio, for example a memory-mapped clip.
+     * The buffer's position is left untouched.
+     */
+    public void enqueue(ByteBuffer audioData) {
+        enqueue(audioData, null);
+    }
+
+    /**
+     * Like {@link #enqueue(ByteBuffer)}, and runs {@code onDequeued} on the playback thread once
+     * everything queued before the chunk has been written to the track.
+     */
+    public void enqueue(ByteBuffer audioData, final Runnable onDequeued) {
+        if (!audioData.hasRemaining()) {
+            return;
+        }
+        final ByteBuffer data = audioData.duplicate();
+        mPlaybackHandler.post(() -> {
+            if (onDequeued != null) {
+                onDequeued.run();
+            }
+            if (mPlaying) {
+                write(data);
+                return;
+            }
+            mJitterBuffer.add(data);
+            mBufferedBytes += data.remaining();
+            if (mBufferedBytes >= mPreRollBytes) {
+                startPlayback();
+            }
+        });
+    }
+
+    /**
+     * Signals that the response is complete. Whatever is still buffered is played out, then
+     * the track is stopped once it has drained.
+     */
+    public void finish() {
+        mPlaybackHandler.post(() -> {
+            if (!mPlaying && mJitterBuffer.isEmpty()) {
+                return;
+            }
+            if (!mPlaying) {
+                startPlayback();
+            }
+            final long pendingFrames =
+                    mFramesWritten - (mAudioTrack.getPlaybackHeadPosition() - mHeadAtStart);
+            mPendingPlaybackMs = Math.max(0, pendingFrames) * 1000 / mAudioTrack.getPlaybackRate();
+            // In stream mode stop() lets the data already written play out.
+            mAudioTrack.stop();
+            mPlaying = false;
+            Log.i(TAG, "assistant response finished");
+            if (mListener != null) {
+                mListener.onPlaybackFinished();
+            }
+        });
+    }
+
+    public void setVolume(final float volume) {
+        mPlaybackHandler.post(() -> mAudioTrack.setVolume(volume));
+    }
+
+    /**
+     * Changes the rate the enqueued PCM is played at, for a source whose rate differs from
+     * the format the player was created with.
+     */
+    public void setSampleRate(final int sampleRate) {
+        mPlaybackHandler.post(() -> {
+            mAudioTrack.setPlaybackRate(sampleRate);
+            mPreRollBytes = sampleRate * mBytesPerFrame * mPreRollMs / 1000;
+        });
+    }
+
+    /**
+     * Whether the track is playing, from {@link Listener#onPlaybackStarted()} until just before
+     * {@link Listener#onPlaybackFinished()} or until the response is dropped.
+     */
+    public boolean isPlaying() {
+        return mPlaying;
+    }
+
+    /**
+     * Milliseconds from {@link #beginResponse()}, the call being opened, to the first audio
+     * written to the track for the most recent response, or -1 if nothing has been played yet.
+     */
+    public long getTimeToFirstAudioMs() {
+        return mTimeToFirstAudioMs;
+    }
+
+    /**
+     * Milliseconds of audio that were still to be heard when the most recent response
+     * finished, so the response stops being audible that long after
+     * {@link Listener#onPlaybackFinished()}.
+     */
+    public long getPendingPlaybackMs() {
+        return mPendingPlaybackMs;
+    }
+
+    /**
+     * Stops playback and releases the track and the playback thread.
+     */
+    public void release() {
+        mPlaybackHandler.removeCallbacksAndMessages(null);
+        mPlaybackHandler.post(() -> {
+            reset();
+            mAudioTrack.release();
+        });
+        mPlaybackThread.quitSafely();
+    }
+
+    private void startPlayback() {
+        mPlaying = true;
+        if (mResponseStartMs > 0) {
+            mTimeToFirstAudioMs = SystemClock.elapsedRealtime() - mResponseStartMs;
+            Log.i(TAG, "time to first audio: " + mTimeToFirstAudioMs + " ms");
+        }
+        if (mListener != null) {
+            mListener.onPlaybackStarted();
+        }
+        mHeadAtStart = mAudioTrack.getPlaybackHeadPosition();
+        mFramesWritten = 0;
+        mAudioTrack.play();
+        for (ByteBuffer audioData : mJitterBuffer) {
+            write(audioData);
+        }
+        mJitterBuffer.clear();
+        mBufferedBytes = 0;
+    }
+
+    private void write(ByteBuffer audioData) {
+        final int result = mAudioTrack.write(audioData, audioData.remaining(),
+                AudioTrack.WRITE_BLOCKING);
+        if (result < 0) {
+            Log.e(TAG, "error writing audio: " + result);
+            return;
+        }
+        mFramesWritten += result / mBytesPerFrame;
+    }
+
+    private void reset() {
+        if (mPlaying) {
+            mAudioTrack.pause();
+            mAudioTrack.flush();
+            mPlaying = false;
+        }
+        mJitterBuffer.clear();
+        mBufferedBytes = 0;
+        mResponseStartMs = 0;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2018 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+import android.os.SystemClock;
+import android.os.Trace;
+
+import com.example.androidthings.assistant.env.Logger;
+import com.example.androidthings.assistant.env.TensorFlowHelper;
+import com.example.androidthings.vision.TopK;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import org.tensorflow.lite.Interpreter;
+
+/**
+ * Wrapper for uint8-quantized SSD detection models converted to TensorFlow Lite from the
+ * Tensorflow Object Detection API, with the detection post-processing op built in:
+ * github.com/tensorflow/models/tree/master/research/object_detection
+ */
+public class TFLiteObjectDetectionAPIModel implements Classifier {
+    private static final Logger LOGGER = new Logger(TFLiteObjectDetectionAPIModel.class, true);
+
+    // Number of detections the model's post-processing op emits.
+    private static final int NUM_DETECTIONS = 10;
+
+    // The label file starts with the background class, which the model does not report.
+    private static final int LABEL_OFFSET = 1;
+
+    // Config values.
+    private int inputSize;
+
+    // Pre-allocated buffers.
+    private Vector<String> labels = new Vector<String>();
+    private int[] intValues;
+    private ByteBuffer imgData;
+    private float[][][] outputLocations;
+    private float[][] outputClasses;
+    private float[][] outputScores;
+    private float[] numDetections;
+    private Object[] inputArray;
+    private Map<Integer, Object> outputMap;
+
+    // Pre-allocated post-processing state, reused on every call.
+    private String[] resultIds;
+    private int[] rankedIndices;
+    private Recognition[] recognitionPool;
+    private final ArrayList<Recognition> recognitions = new ArrayList<Recognition>(NUM_DETECTIONS);
+
+    private volatile ResolvedQuery activeQuery;
+
+    private boolean logStats = false;
+    private long lastInferenceMs;
+
+    private Interpreter tfLite;
+
+    /**
+     * Initializes a TensorFlow Lite interpreter for detecting objects in images.
+     *
+     * @param assetManager The asset manager to be used to load assets.
+     * @param modelFilename The filepath of the model, stored uncompressed in the assets.
+     * @param labelFilename The filepath of label file for classes.
+     * @param inputSize The width and height of the model input.
+     * @param numThreads Threads the interpreter may use for one inference.
+     */
+    public static Classifier create(
+            final AssetManager assetManager,
+            final String modelFilename,
+            final String labelFilename,
+            final int inputSize,
+            final int numThreads) throws IOException {
+        final TFLiteObjectDetectionAPIModel d = new TFLiteObjectDetectionAPIModel();
+
+        String actualFilename = labelFilename.split("file:///android_asset/")[1];
+        try (InputStream labelsInput = assetManager.open(actualFilename);
+             BufferedReader br = new BufferedReader(new InputStreamReader(labelsInput))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                d.labels.add(line);
+            }
+        }
+        LOGGER.i("Loaded %d labels", d.labels.size());
+
+        final long loadStartMs = SystemClock.uptimeMillis();
+        final Interpreter.Options options = new Interpreter.Options().setNumThreads(numThreads);
+        d.tfLite = new Interpreter(TensorFlowHelper.loadModelFile(
+                assetManager, modelFilename.split("file:///android_asset/")[1]), options);
+        LOGGER.i("Loaded model in %d ms with %d threads, VmHWM %d kB, VmRSS %d kB",
+                SystemClock.uptimeMillis() - loadStartMs, numThreads,
+                TensorFlowHelper.readProcessMemoryKb("VmHWM"),
+                TensorFlowHelper.readProcessMemoryKb("VmRSS"));
+
+        // Pre-allocate buffers.
+        d.inputSize = inputSize;
+        d.intValues = new int[d.inputSize * d.inputSize];
+        d.imgData = ByteBuffer.allocateDirect(d.inputSize * d.inputSize * 3);
+        d.imgData.order(ByteOrder.nativeOrder());
+        d.outputLocations = new float[1][NUM_DETECTIONS][4];
+        d.outputClasses = new float[1][NUM_DETECTIONS];
+        d.outputScores = new float[1][NUM_DETECTIONS];
+        d.numDetections = new float[1];
+        d.inputArray = new Object[] {d.imgData};
+        d.outputMap = new HashMap<>();
+        d.outputMap.put(0, d.outputLocations);
+        d.outputMap.put(1, d.outputClasses);
+        d.outputMap.put(2, d.outputScores);
+        d.outputMap.put(3, d.numDetections);
+        d.resultIds = new String[NUM_DETECTIONS];
+        d.rankedIndices = new int[NUM_DETECTIONS];
+        d.recognitionPool = new Recognition[NUM_DETECTIONS];
+        for (int i = 0; i < NUM_DETECTIONS; ++i) {
+            d.resultIds[i] = Integer.toString(i);
+            d.recognitionPool[i] = new Recognition(d.resultIds[i], null, 0f, new RectF());
+        }
+        d.activeQuery = new ResolvedQuery(
+                Query.ALL, d.labels, LABEL_OFFSET, d.labels.size() - LABEL_OFFSET);
+        return d;
+    }
+
+    private TFLiteObjectDetectionAPIModel() {}
+
+    @Override
+    public List<Recognition> recognizeImage(final Bitmap bitmap) {
+        // Log this method so that it can be analyzed with systrace.
+        Trace.beginSection("recognizeImage");
+
+        Trace.beginSection("preprocessBitmap");
+        TensorFlowHelper.convertBitmapToByteBuffer(bitmap, intValues, imgData);
+        Trace.endSection(); // preprocessBitmap
+
+        final List<Recognition> results = runInference();
+        Trace.endSection(); // "recognizeImage"
+        return results;
+    }
+
+    @Override
+    public List<Recognition> recognizeImage(final byte[] rgbValues) {
+        // Log this method so that it can be analyzed with systrace.
+        Trace.beginSection("recognizeImage");
+
+        // The quantized model takes the RGB bytes as they are.
+        Trace.beginSection("feed");
+        final long feedStartNanos = System.nanoTime();
+        imgData.rewind();
+        imgData.put(rgbValues, 0, inputSize * inputSize * 3);
+        LatencyMetrics.FEED.recordSince(feedStartNanos);
+        Trace.endSection();
+
+        final List<Recognition> results = runInference();
+        Trace.endSection(); // "recognizeImage"
+        return results;
+    }
+
+    private List<Recognition> runInference() {
+        // Run the inference call.
+        Trace.beginSection("run");
+        final long runStartNanos = System.nanoTime();
+        // The interpreter copies the outputs into the arrays as part of the run, so there is no
+        // separate fetch stage.
+        tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
+        final long postprocessStartNanos = System.nanoTime();
+        LatencyMetrics.RUN.record(postprocessStartNanos - runStartNanos);
+        lastInferenceMs = (postprocessStartNanos - runStartNanos) / 1000000;
+        if (logStats) {
+            LOGGER.i("Inference took %d ms", lastInferenceMs);
+        }
+        Trace.endSection();
+
+        // Find the best detections the query accepts, working on indices into the score array
+        // so only the detections that are reported are turned into results.
+        Trace.beginSection("postprocess");
+        final ResolvedQuery query = activeQuery;
+        final float[] scores = outputScores[0];
+        final int count = Math.max(0, Math.min((int) numDetections[0], NUM_DETECTIONS));
+        final int numRanked = TopK.select(scores, outputClasses[0], query.classMask, count,
+                query.minConfidence, rankedIndices, query.maxResults);
+
+        // Scale them back to the input size.
+        recognitions.clear();
+        for (int rank = 0; rank < numRanked; ++rank) {
+            final int i = rankedIndices[rank];
+            final float[] location = outputLocations[0][i];
+            final int labelIndex = (int) outputClasses[0][i] + LABEL_OFFSET;
+            final Recognition recognition = recognitionPool[rank];
+            recognition.set(
+                    resultIds[i],
+                    labelIndex < labels.size() ? labels.get(labelIndex) : "???",
+                    scores[i],
+                    location[1] * inputSize,
+                    location[0] * inputSize,
+                    location[3] * inputSize,
+                    location[2] * inputSize);
+            recognitions.add(recognition);
+        }
+        LatencyMetrics.POSTPROCESS.recordSince(postprocessStartNanos);
+        Trace.endSection(); // postprocess
+        return recognitions;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return Collections.unmodifiableList(labels);
+    }
+
+    @Override
+    public void setQuery(final Query query) {
+        activeQuery = new ResolvedQuery(
+                query, labels, LABEL_OFFSET, labels.size() - LABEL_OFFSET);
+        LOGGER.i("Query: %s", query);
+    }
+
+    @Override
+    public void enableStatLogging(final boolean logStats) {
+        this.logStats = logStats;
+    }
+
+    @Override
+    public String getStatString() {
+        return "inference: " + lastInferenceMs + " ms";
+    }
+
+    @Override
+    public void close() {
+        tfLite.close();
+    }
+}
@@ -19,18 +19,21 @@ limitations under the License.
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.RectF;
+import android.os.SystemClock;
 import android.os.Trace;
 
+import com.example.androidthings.assistant.env.LatencyHistogram;
 import com.example.androidthings.assistant.env.Logger;
+import com.example.androidthings.assistant.env.TensorFlowHelper;
+import com.example.androidthings.vision.TopK;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.Vector;
 import org.tensorflow.Graph;
 import org.tensorflow.Operation;
@@ -40,7 +43,7 @@ import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
  * github.com/tensorflow/models/tree/master/research/object_detection
  */
 public class TensorFlowObjectDetectionAPIModel implements Classifier {
-    private static final Logger LOGGER = new Logger();
+    private static final Logger LOGGER = new Logger(TensorFlowObjectDetectionAPIModel.class, true);
 
     // Only return this many results.
     private static final int MAX_RESULTS = 100;
@@ -59,6 +62,14 @@ public class TensorFlowObjectDetectionAPIModel implements Classifier {
     private float[] outputNumDetections;
     private String[] outputNames;
 
+    // Pre-allocated post-processing state, reused on every call.
+    private String[] resultIds;
+    private int[] rankedIndices;
+    private Recognition[] recognitionPool;
+    private final ArrayList<Recognition> recognitions = new ArrayList<Recognition>(MAX_RESULTS);
+
+    private volatile ResolvedQuery activeQuery;
+
     private boolean logStats = false;
 
     private TensorFlowInferenceInterface inferenceInterface;
@@ -84,15 +95,21 @@ public class TensorFlowObjectDetectionAPIModel implements Classifier {
         br = new BufferedReader(new InputStreamReader(labelsInput));
         String line;
         while ((line = br.readLine()) != null) {
-            LOGGER.w(line);
             d.labels.add(line);
         }
         br.close();
+        LOGGER.i("Loaded %d labels", d.labels.size());
 
 
-        d.inferenceInterface = new TensorFlowInferenceInterface(assetManager, modelFilename);
-
-        final Graph g = d.inferenceInterface.graph();
+        // Import from the memory-mapped asset instead of buffering it through a stream.
+        final long loadStartMs = SystemClock.uptimeMillis();
+        final Graph g = TensorFlowHelper.importGraph(
+                assetManager, modelFilename.split("file:///android_asset/")[1]);
+        d.inferenceInterface = new TensorFlowInferenceInterface(g);
+        LOGGER.i("Loaded model in %d ms, VmHWM %d kB, VmRSS %d kB",
+                SystemClock.uptimeMillis() - loadStartMs,
+                TensorFlowHelper.readProcessMemoryKb("VmHWM"),
+                TensorFlowHelper.readProcessMemoryKb("VmRSS"));
 
         d.inputName = "image_tensor";
         // The inputName node has a shape of [N, H, W, C], where
@@ -128,6 +145,14 @@ public class TensorFlowObjectDetectionAPIModel implements Classifier {
         d.outputLocations = new float[MAX_RESULTS * 4];
         d.outputClasses = new float[MAX_RESULTS];
         d.outputNumDetections = new float[1];
+        d.resultIds = new String[MAX_RESULTS];
+        d.rankedIndices = new int[MAX_RESULTS];
+        d.recognitionPool = new Recognition[MAX_RESULTS];
+        for (int i = 0; i < MAX_RESULTS; ++i) {
+            d.resultIds[i] = Integer.toString(i);
+            d.recognitionPool[i] = new Recognition(d.resultIds[i], null, 0f, new RectF());
+        }
+        d.activeQuery = new ResolvedQuery(Query.ALL, d.labels, 0, d.labels.size());
         return d;
     }
 
@@ -150,60 +175,93 @@ public class TensorFlowObjectDetectionAPIModel implements Classifier {
         }
         Trace.endSection(); // preprocessBitmap
 
+        final List<Recognition> results = runInference(byteValues);
+        Trace.endSection(); // "recognizeImage"
+        return results;
+    }
+
+    @Override
+    public List<Recognition> recognizeImage(final byte[] rgbValues) {
+        // Log this method so that it can be analyzed with systrace.
+        Trace.beginSection("recognizeImage");
+        final List<Recognition> results = runInference(rgbValues);
+        Trace.endSection(); // "recognizeImage"
+        return results;
+    }
+
+    private List<Recognition> runInference(final byte[] byteValues) {
         // Copy the input data into TensorFlow.
         Trace.beginSection("feed");
+        long stageStartNanos = System.nanoTime();
         inferenceInterface.feed(inputName, byteValues, 1, inputSize, inputSize, 3);
+        stageStartNanos = record(LatencyMetrics.FEED, stageStartNanos);
         Trace.endSection();
 
         // Run the inference call.
         Trace.beginSection("run");
         inferenceInterface.run(outputNames, logStats);
+        stageStartNanos = record(LatencyMetrics.RUN, stageStartNanos);
         Trace.endSection();
 
         // Copy the output Tensor back into the output array.
         Trace.beginSection("fetch");
-        outputLocations = new float[MAX_RESULTS * 4];
-        outputScores = new float[MAX_RESULTS];
-        outputClasses = new float[MAX_RESULTS];
-        outputNumDetections = new float[1];
         inferenceInterface.fetch(outputNames[0], outputLocations);
         inferenceInterface.fetch(outputNames[1], outputScores);
         inferenceInterface.fetch(outputNames[2], outputClasses);
         inferenceInterface.fetch(outputNames[3], outputNumDetections);
+        stageStartNanos = record(LatencyMetrics.FETCH, stageStartNanos);
         Trace.endSection();
 
-        // Find the best detections.
-        final PriorityQueue<Recognition> pq =
-                new PriorityQueue<Recognition>(
-                        1,
-                        new Comparator<Recognition>() {
-                            @Override
-                            public int compare(final Recognition lhs, final Recognition rhs) {
-                                // Intentionally reversed to put high confidence at the head of the queue.
-                                return Float.compare(rhs.getConfidence(), lhs.getConfidence());
-                            }
-                        });
+        // Find the best detections the query accepts. Only the first num_detections entries are
+        // valid, and the ranking works on indices into the score array so only the detections
+        // that are reported are turned into results.
+        Trace.beginSection("postprocess");
+        final ResolvedQuery query = activeQuery;
+        final int numDetections =
+                Math.max(0, Math.min((int) outputNumDetections[0], MAX_RESULTS));
+        final int numRanked = TopK.select(outputScores, outputClasses, query.classMask,
+                numDetections, query.minConfidence, rankedIndices, query.maxResults);
 
         // Scale them back to the input size.
-        for (int i = 0; i < outputScores.length; ++i) {
-            final RectF detection =
-                    new RectF(
-                            outputLocations[4 * i + 1] * inputSize,
-                            outputLocations[4 * i] * inputSize,
-                            outputLocations[4 * i + 3] * inputSize,
-                            outputLocations[4 * i + 2] * inputSize);
-            pq.add(
-                    new Recognition("" + i, labels.get((int) outputClasses[i]), outputScores[i], detection));
+        recognitions.clear();
+        for (int rank = 0; rank < numRanked; ++rank) {
+            final int i = rankedIndices[rank];
+            final Recognition recognition = recognitionPool[rank];
+            recognition.set(
+                    resultIds[i],
+                    labels.get((int) outputClasses[i]),
+                    outputScores[i],
+                    outputLocations[4 * i + 1] * inputSize,
+                    outputLocations[4 * i] * inputSize,
+                    outputLocations[4 * i + 3] * inputSize,
+                    outputLocations[4 * i + 2] * inputSize);
+            recognitions.add(recognition);
         }
-
-        final ArrayList<Recognition> recognitions = new ArrayList<Recognition>();
-        for (int i = 0; i < Math.min(pq.size(), MAX_RESULTS); ++i) {
-            recognitions.add(pq.poll());
-        }
-        Trace.endSection(); // "recognizeImage"
+        record(LatencyMetrics.POSTPROCESS, stageStartNanos);
+        Trace.endSection(); // postprocess
         return recognitions;
     }
 
+    /**
+     * Records the stage that started at {@code startNanos} and returns the start of the next.
+     */
+    private static long record(final LatencyHistogram histogram, final long startNanos) {
+        final long now = System.nanoTime();
+        histogram.record(now - startNanos);
+        return now;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return Collections.unmodifiableList(labels);
+    }
+
+    @Override
+    public void setQuery(final Query query) {
+        activeQuery = new ResolvedQuery(query, labels, 0, labels.size());
+        LOGGER.i("Query: %s", query);
+    }
+
     @Override
     public void enableStatLogging(final boolean logStats) {
         this.logStats = logStats;
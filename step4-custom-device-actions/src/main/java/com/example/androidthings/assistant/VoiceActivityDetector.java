@@ -0,0 +1,168 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+/**
+ * Energy and zero-crossing voice activity detector for 16-bit little-endian mono PCM.
+ *
+ * <p>Each block is classified as speech when its RMS level clears both an absolute floor and a
+ * multiple of the tracked background noise, and its zero-crossing rate is below the rate of
+ * hiss-like noise. Speech has to last for the onset time before it counts, and ends after the
+ * trailing silence time. The detector keeps no buffers and has no platform dependencies, so it
+ * runs allocation-free on the capture thread and can be driven from recorded PCM on a plain JVM.
+ */
+public class VoiceActivityDetector {
+    /** No speech yet; the block is leading silence. */
+    public static final int STATE_SILENCE = 0;
+    /** Speech is in progress, or within the trailing silence allowance. */
+    public static final int STATE_SPEECH = 1;
+    /** Speech ended: trailing silence exceeded the allowance. Stays set until reset. */
+    public static final int STATE_END_OF_SPEECH = 2;
+
+    public static final int DEFAULT_MIN_RMS = 300;
+    public static final float DEFAULT_NOISE_RATIO = 3.0f;
+    public static final float DEFAULT_MAX_ZERO_CROSSING_RATE = 0.35f;
+    public static final int DEFAULT_ONSET_MS = 60;
+    public static final int DEFAULT_TRAILING_SILENCE_MS = 700;
+
+    // Weight of a new block of leading silence in the running noise estimate.
+    private static final float NOISE_ADAPTATION = 0.05f;
+
+    private final int mSampleRate;
+    private final int mMinRms;
+    private final float mNoiseRatio;
+    private final float mMaxZeroCrossingRate;
+    private final int mOnsetSamples;
+    private final int mTrailingSilenceSamples;
+
+    private int mState;
+    private float mNoiseRms;
+    private int mSpeechRun;
+    private int mSilenceRun;
+
+    // Features of the last processed block, kept for tuning and logging.
+    private int mLastRms;
+    private float mLastZeroCrossingRate;
+
+    public VoiceActivityDetector(int sampleRate) {
+        this(sampleRate, DEFAULT_MIN_RMS, DEFAULT_NOISE_RATIO, DEFAULT_MAX_ZERO_CROSSING_RATE,
+                DEFAULT_ONSET_MS, DEFAULT_TRAILING_SILENCE_MS);
+    }
+
+    /**
+     * @param sampleRate sample rate of the PCM that will be processed.
+     * @param minRms RMS level below which a block is always silence.
+     * @param noiseRatio how far above the background noise a block must be to count as speech.
+     * @param maxZeroCrossingRate zero crossings per sample above which a block is noise.
+     * @param onsetMs speech that must accumulate before the detector leaves leading silence.
+     * @param trailingSilenceMs silence after speech before the end of speech is reported.
+     */
+    public VoiceActivityDetector(int sampleRate, int minRms, float noiseRatio,
+                                 float maxZeroCrossingRate, int onsetMs, int trailingSilenceMs) {
+        mSampleRate = sampleRate;
+        mMinRms = minRms;
+        mNoiseRatio = noiseRatio;
+        mMaxZeroCrossingRate = maxZeroCrossingRate;
+        mOnsetSamples = sampleRate * onsetMs / 1000;
+        mTrailingSilenceSamples = sampleRate * trailingSilenceMs / 1000;
+        reset();
+    }
+
+    /**
+     * Starts a new utterance. The noise estimate is kept, the room rarely changes between
+     * requests.
+     */
+    public void reset() {
+        mState = STATE_SILENCE;
+        mSpeechRun = 0;
+        mSilenceRun = 0;
+    }
+
+    /**
+     * Classifies a block of 16-bit little-endian PCM and advances the detector.
+     *
+     * @return the state after this block, one of the STATE_ constants.
+     */
+    public int process(byte[] pcm, int offset, int length) {
+        final int samples = length / 2;
+        if (samples == 0 || mState == STATE_END_OF_SPEECH) {
+            return mState;
+        }
+        long sumOfSquares = 0;
+        int zeroCrossings = 0;
+        int previous = 0;
+        for (int i = 0, p = offset; i < samples; i++, p += 2) {
+            final int sample = (short) ((pcm[p] & 0xff) | (pcm[p + 1] << 8));
+            sumOfSquares += sample * sample;
+            if (i > 0 && (sample ^ previous) < 0) {
+                zeroCrossings++;
+            }
+            previous = sample;
+        }
+        mLastRms = (int) Math.sqrt((double) sumOfSquares / samples);
+        mLastZeroCrossingRate = zeroCrossings / (float) samples;
+
+        final boolean speech = mLastRms >= mMinRms
+                && mLastRms >= mNoiseRms * mNoiseRatio
+                && mLastZeroCrossingRate <= mMaxZeroCrossingRate;
+        // Only leading silence feeds the noise estimate: the dips between syllables are quiet
+        // enough to pass as noise, and would raise the floor until the utterance ends early.
+        if (!speech && mState == STATE_SILENCE) {
+            mNoiseRms = mNoiseRms == 0
+                    ? mLastRms : mNoiseRms + NOISE_ADAPTATION * (mLastRms - mNoiseRms);
+        }
+
+        switch (mState) {
+            case STATE_SILENCE:
+                mSpeechRun = speech ? mSpeechRun + samples : 0;
+                if (mSpeechRun >= mOnsetSamples) {
+                    mState = STATE_SPEECH;
+                    mSilenceRun = 0;
+                }
+                break;
+            case STATE_SPEECH:
+                mSilenceRun = speech ? 0 : mSilenceRun + samples;
+                if (mSilenceRun >= mTrailingSilenceSamples) {
+                    mState = STATE_END_OF_SPEECH;
+                }
+                break;
+            default:
+                break;
+        }
+        return mState;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getLastRms() {
+        return mLastRms;
+    }
+
+    public float getLastZeroCrossingRate() {
+        return mLastZeroCrossingRate;
+    }
+
+    public float getNoiseRms() {
+        return mNoiseRms;
+    }
+}
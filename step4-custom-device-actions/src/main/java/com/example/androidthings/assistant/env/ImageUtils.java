@@ -19,6 +19,8 @@ import android.graphics.Bitmap;
 import android.graphics.Matrix;
 import android.os.Environment;
 
+import com.example.androidthings.vision.YuvToRgb;
+
 import java.io.File;
 import java.io.FileOutputStream;
 
@@ -27,7 +29,7 @@ import java.io.FileOutputStream;
  **/
 public class ImageUtils {
   @SuppressWarnings("unused")
-  private static final Logger LOGGER = new Logger();
+  private static final Logger LOGGER = new Logger(ImageUtils.class);
 
   static {
     try {
@@ -92,10 +94,6 @@ public class ImageUtils {
     }
   }
 
-  // This value is 2 ^ 18 - 1, and is used to clamp the RGB values before their ranges
-  // are normalized to eight bits.
-  static final int kMaxChannelValue = 262143;
-
   // Always prefer the native implementation if available.
   private static boolean useNativeConversion = true;
 
@@ -116,49 +114,9 @@ public class ImageUtils {
     }
 
     // Java implementation of YUV420SP to ARGB8888 converting
-    final int frameSize = width * height;
-    for (int j = 0, yp = 0; j < height; j++) {
-      int uvp = frameSize + (j >> 1) * width;
-      int u = 0;
-      int v = 0;
-
-      for (int i = 0; i < width; i++, yp++) {
-        int y = 0xff & input[yp];
-        if ((i & 1) == 0) {
-          v = 0xff & input[uvp++];
-          u = 0xff & input[uvp++];
-        }
-
-        output[yp] = YUV2RGB(y, u, v);
-      }
-    }
-  }
-
-  private static int YUV2RGB(int y, int u, int v) {
-    // Adjust and check YUV values
-    y = (y - 16) < 0 ? 0 : (y - 16);
-    u -= 128;
-    v -= 128;
-
-    // This is the floating point equivalent. We do the conversion in integer
-    // because some Android devices do not have floating point in hardware.
-    // nR = (int)(1.164 * nY + 2.018 * nU);
-    // nG = (int)(1.164 * nY - 0.813 * nV - 0.391 * nU);
-    // nB = (int)(1.164 * nY + 1.596 * nV);
-    int y1192 = 1192 * y;
-    int r = (y1192 + 1634 * v);
-    int g = (y1192 - 833 * v - 400 * u);
-    int b = (y1192 + 2066 * u);
-
-    // Clipping RGB values to be inside boundaries [ 0 , kMaxChannelValue ]
-    r = r > kMaxChannelValue ? kMaxChannelValue : (r < 0 ? 0 : r);
-    g = g > kMaxChannelValue ? kMaxChannelValue : (g < 0 ? 0 : g);
-    b = b > kMaxChannelValue ? kMaxChannelValue : (b < 0 ? 0 : b);
-
-    return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+    YuvToRgb.convertYUV420SPToARGB8888(input, width, height, output);
   }
 
-
   public static void convertYUV420ToARGB8888(
       byte[] yData,
       byte[] uData,
@@ -181,23 +139,42 @@ public class ImageUtils {
       }
     }
 
-    int yp = 0;
-    for (int j = 0; j < height; j++) {
-      int pY = yRowStride * j;
-      int pUV = uvRowStride * (j >> 1);
-
-      for (int i = 0; i < width; i++) {
-        int uv_offset = pUV + (i >> 1) * uvPixelStride;
+    YuvToRgb.convertYUV420ToARGB8888(
+        yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride, out);
+  }
 
-        out[yp++] = YUV2RGB(
-            0xff & yData[pY + i],
-            0xff & uData[uv_offset],
-            0xff & vData[uv_offset]);
-      }
+  /**
+   * Converts a YUV420 frame directly into the packed RGB888 input of a detection model, applying
+   * the rotation and scaling of {@link #getTransformationMatrix} (without maintaining the aspect
+   * ratio) on the fly. See {@link YuvToRgb#convertYUV420ToRGB888} for the sampling.
+   *
+   * @param srcWidth The width of the input frame.
+   * @param srcHeight The height of the input frame.
+   * @param dstWidth The width of the model input.
+   * @param dstHeight The height of the model input.
+   * @param applyRotation Rotation from the frame to the model input. Must be a multiple of 90.
+   * @param output A pre-allocated array of dstWidth * dstHeight * 3 bytes, written as R, G, B.
+   */
+  public static void convertYUV420ToRGB888(
+      byte[] yData,
+      byte[] uData,
+      byte[] vData,
+      int srcWidth,
+      int srcHeight,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int dstWidth,
+      int dstHeight,
+      int applyRotation,
+      byte[] output) {
+    if (applyRotation % 90 != 0) {
+      LOGGER.w("Rotation of %d %% 90 != 0", applyRotation);
     }
+    YuvToRgb.convertYUV420ToRGB888(yData, uData, vData, srcWidth, srcHeight, yRowStride,
+        uvRowStride, uvPixelStride, dstWidth, dstHeight, applyRotation, output);
   }
 
-
   /**
    * Converts YUV420 semi-planar data to ARGB 8888 data using the supplied width and height. The
    * input and output must already be allocated and non-null. For efficiency, no error checking is
@@ -302,7 +279,7 @@ public class ImageUtils {
 
     if (applyRotation != 0) {
       if (applyRotation % 90 != 0) {
-        LOGGER.w("Rotation of %d % 90 != 0", applyRotation);
+        LOGGER.w("Rotation of %d %% 90 != 0", applyRotation);
       }
 
       // Translate so center of image is at origin.
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.assistant.env;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the style of HdrHistogram.
+ *
+ * <p>Every power of two is split into {@value #SUB_BUCKET_COUNT} equal buckets, so a recorded
+ * value is reported to within about 3% whatever its magnitude. Recording is a handful of atomic
+ * increments and never allocates, so it can be called from any thread on the hot path.
+ * {@link #snapshot()} copies the counts while recording carries on, so it is only approximately
+ * consistent.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Values are nanoseconds; anything above about 18 minutes shares the last bucket.
+    static final long MAX_TRACKABLE_NANOS = (1L << 40) - 1;
+    private static final int BUCKET_COUNT = bucketIndex(MAX_TRACKABLE_NANOS) + 1;
+
+    private final String mName;
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Records one latency. Negative values are recorded as zero.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mCounts.incrementAndGet(bucketIndex(Math.min(nanos, MAX_TRACKABLE_NANOS)));
+        mTotalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = mMaxNanos.get()) && !mMaxNanos.compareAndSet(max, nanos)) {
+            // Lost a race with a larger or concurrent value; check again.
+        }
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos}, a {@link System#nanoTime()} reading.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Copies the current state. The counters are read one at a time while recording carries on,
+     * so the copy is only approximately consistent: a value recorded meanwhile may be in the
+     * bucket counts but not yet in the total or the maximum, or the other way round.
+     */
+    public Snapshot snapshot() {
+        final long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            counts[i] = mCounts.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(mName, counts, count, mTotalNanos.get(), mMaxNanos.get());
+    }
+
+    static int bucketIndex(long value) {
+        final int msb = 63 - Long.numberOfLeadingZeros(value);
+        if (msb < SUB_BUCKET_BITS) {
+            return (int) value;
+        }
+        // The top SUB_BUCKET_BITS + 1 bits select the bucket; lower bits are dropped.
+        final int shift = msb - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKET_COUNT + (int) (value >> shift);
+    }
+
+    static long highestValueInBucket(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKET_COUNT - 1;
+        final long lowest = (long) (index - shift * SUB_BUCKET_COUNT) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Immutable copy of a histogram.
+     */
+    public static final class Snapshot {
+        private final String mName;
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mTotalNanos;
+        private final long mMaxNanos;
+
+        Snapshot(String name, long[] counts, long count, long totalNanos, long maxNanos) {
+            mName = name;
+            mCounts = counts;
+            mCount = count;
+            mTotalNanos = totalNanos;
+            mMaxNanos = maxNanos;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos;
+        }
+
+        public long getMeanNanos() {
+            return mCount == 0 ? 0 : mTotalNanos / mCount;
+        }
+
+        /**
+         * @param percentile between 0 and 100.
+         * @return the highest value in the bucket holding the given percentile, never more than
+         *         the largest value recorded, or 0 if nothing was recorded.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; ++i) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueInBucket(i), mMaxNanos);
+                }
+            }
+            return mMaxNanos;
+        }
+
+        /**
+         * @return e.g. "run: n=120 p50=41.2ms p99=77.9ms max=80.3ms".
+         */
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: n=%d p50=%.1fms p99=%.1fms max=%.1fms",
+                    mName, mCount, getValueAtPercentile(50) / 1e6,
+                    getValueAtPercentile(99) / 1e6, mMaxNanos / 1e6);
+        }
+    }
+}
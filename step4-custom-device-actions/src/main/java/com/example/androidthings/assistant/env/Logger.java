@@ -17,11 +17,23 @@ package com.example.androidthings.assistant.env;
 
 import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Wrapper for the platform log function, allows convenient message prefixing and log disabling.
+ *
+ * <p>Whether a level is enabled is decided once, when the logger is created or its minimum level
+ * changes, so a disabled call costs a field comparison. The one- and two-argument overloads,
+ * including the primitive ones, take no varargs array and box nothing unless the message is
+ * actually logged. An asynchronous logger hands formatted messages to a background thread that
+ * writes them to logcat in batches, so the calling thread never waits on logcat; if that thread
+ * falls behind, messages are dropped and the number dropped is logged.
  */
 public final class Logger {
   private static final String DEFAULT_TAG = "tensorflow";
@@ -39,7 +51,10 @@ public final class Logger {
 
   private final String tag;
   private final String messagePrefix;
+  private final boolean async;
   private int minLogLevel = DEFAULT_MIN_LOG_LEVEL;
+  // Lowest level that is logged: minLogLevel, or lower if the platform enables it for the tag.
+  private volatile int loggableLevel;
 
   /**
    * Creates a Logger using the class name as the message prefix.
@@ -47,7 +62,17 @@ public final class Logger {
    * @param clazz the simple name of this class is used as the message prefix.
    */
   public Logger(final Class<?> clazz) {
-    this(clazz.getSimpleName());
+    this(clazz, false);
+  }
+
+  /**
+   * Creates a Logger using the class name as the message prefix.
+   *
+   * @param clazz the simple name of this class is used as the message prefix.
+   * @param async if true, messages are written to logcat from a background thread.
+   */
+  public Logger(final Class<?> clazz, final boolean async) {
+    this(DEFAULT_TAG, clazz.getSimpleName(), async);
   }
 
   /**
@@ -68,13 +93,20 @@ public final class Logger {
    *                      being used
    */
   public Logger(final String tag, final String messagePrefix) {
+    this(tag, messagePrefix, false);
+  }
+
+  private Logger(final String tag, final String messagePrefix, final boolean async) {
     this.tag = tag;
     final String prefix = messagePrefix == null ? getCallerSimpleName() : messagePrefix;
     this.messagePrefix = (prefix.length() > 0) ? prefix + ": " : prefix;
+    this.async = async;
+    updateLoggableLevel();
   }
 
   /**
-   * Creates a Logger using the caller's class name as the message prefix.
+   * Creates a Logger using the caller's class name as the message prefix. Prefer
+   * {@link #Logger(Class)}, which does not walk the stack.
    */
   public Logger() {
     this(DEFAULT_TAG, null);
@@ -85,15 +117,30 @@ public final class Logger {
    */
   public Logger(final int minLogLevel) {
     this(DEFAULT_TAG, null);
-    this.minLogLevel = minLogLevel;
+    setMinLogLevel(minLogLevel);
   }
 
   public void setMinLogLevel(final int minLogLevel) {
     this.minLogLevel = minLogLevel;
+    updateLoggableLevel();
   }
 
   public boolean isLoggable(final int logLevel) {
-    return logLevel >= minLogLevel || Log.isLoggable(tag, logLevel);
+    return logLevel >= loggableLevel;
+  }
+
+  /**
+   * Re-reads the platform's log level for the tag, e.g. after "setprop log.tag.tensorflow".
+   */
+  public void updateLoggableLevel() {
+    int level = minLogLevel;
+    for (int platformLevel = Log.VERBOSE; platformLevel < level; ++platformLevel) {
+      if (Log.isLoggable(tag, platformLevel)) {
+        level = platformLevel;
+        break;
+      }
+    }
+    loggableLevel = level;
   }
 
   /**
@@ -117,8 +164,7 @@ public final class Logger {
       final String className = elem.getClassName();
       if (!IGNORED_CLASS_NAMES.contains(className)) {
         // We're only interested in the simple name of the class, not the complete package.
-        final String[] classParts = className.split("\\.");
-        return classParts[classParts.length - 1];
+        return className.substring(className.lastIndexOf('.') + 1);
       }
     }
 
@@ -129,63 +175,283 @@ public final class Logger {
     return messagePrefix + (args.length > 0 ? String.format(format, args) : format);
   }
 
-  public void v(final String format, final Object... args) {
-    if (isLoggable(Log.VERBOSE)) {
-      Log.v(tag, toMessage(format, args));
+  private void println(final int level, final String message, final Throwable t) {
+    if (async) {
+      AsyncSink.INSTANCE.offer(level, tag, message, t);
+    } else {
+      write(level, tag, message, t);
     }
   }
 
-  public void v(final Throwable t, final String format, final Object... args) {
-    if (isLoggable(Log.VERBOSE)) {
-      Log.v(tag, toMessage(format, args), t);
+  private static void write(
+      final int level, final String tag, final String message, final Throwable t) {
+    Log.println(level, tag, t == null ? message : message + '\n' + Log.getStackTraceString(t));
+  }
+
+  // One helper per arity. Each checks the level before formatting, so a disabled call neither
+  // formats nor boxes; the public overloads only pick the level.
+
+  private void log(final int level, final String message) {
+    if (isLoggable(level)) {
+      println(level, messagePrefix + message, null);
     }
   }
 
-  public void d(final String format, final Object... args) {
-    if (isLoggable(Log.DEBUG)) {
-      Log.d(tag, toMessage(format, args));
+  private void log(final int level, final String format, final Object arg) {
+    if (isLoggable(level)) {
+      println(level, messagePrefix + String.format(format, arg), null);
     }
   }
 
-  public void d(final Throwable t, final String format, final Object... args) {
-    if (isLoggable(Log.DEBUG)) {
-      Log.d(tag, toMessage(format, args), t);
+  private void log(final int level, final String format, final Object arg1, final Object arg2) {
+    if (isLoggable(level)) {
+      println(level, messagePrefix + String.format(format, arg1, arg2), null);
     }
   }
 
-  public void i(final String format, final Object... args) {
-    if (isLoggable(Log.INFO)) {
-      Log.i(tag, toMessage(format, args));
+  private void log(final int level, final String format, final long arg) {
+    if (isLoggable(level)) {
+      println(level, messagePrefix + String.format(format, arg), null);
     }
   }
 
-  public void i(final Throwable t, final String format, final Object... args) {
-    if (isLoggable(Log.INFO)) {
-      Log.i(tag, toMessage(format, args), t);
+  private void log(final int level, final String format, final long arg1, final long arg2) {
+    if (isLoggable(level)) {
+      println(level, messagePrefix + String.format(format, arg1, arg2), null);
     }
   }
 
-  public void w(final String format, final Object... args) {
-    if (isLoggable(Log.WARN)) {
-      Log.w(tag, toMessage(format, args));
+  private void log(final int level, final String format, final double arg) {
+    if (isLoggable(level)) {
+      println(level, messagePrefix + String.format(format, arg), null);
     }
   }
 
-  public void w(final Throwable t, final String format, final Object... args) {
-    if (isLoggable(Log.WARN)) {
-      Log.w(tag, toMessage(format, args), t);
+  private void logArgs(
+      final int level, final Throwable t, final String format, final Object[] args) {
+    if (isLoggable(level)) {
+      println(level, toMessage(format, args), t);
     }
   }
 
+  public void v(final String message) {
+    log(Log.VERBOSE, message);
+  }
+
+  public void v(final String format, final Object arg) {
+    log(Log.VERBOSE, format, arg);
+  }
+
+  public void v(final String format, final Object arg1, final Object arg2) {
+    log(Log.VERBOSE, format, arg1, arg2);
+  }
+
+  public void v(final String format, final long arg) {
+    log(Log.VERBOSE, format, arg);
+  }
+
+  public void v(final String format, final long arg1, final long arg2) {
+    log(Log.VERBOSE, format, arg1, arg2);
+  }
+
+  public void v(final String format, final double arg) {
+    log(Log.VERBOSE, format, arg);
+  }
+
+  public void v(final String format, final Object... args) {
+    logArgs(Log.VERBOSE, null, format, args);
+  }
+
+  public void v(final Throwable t, final String format, final Object... args) {
+    logArgs(Log.VERBOSE, t, format, args);
+  }
+
+  public void d(final String message) {
+    log(Log.DEBUG, message);
+  }
+
+  public void d(final String format, final Object arg) {
+    log(Log.DEBUG, format, arg);
+  }
+
+  public void d(final String format, final Object arg1, final Object arg2) {
+    log(Log.DEBUG, format, arg1, arg2);
+  }
+
+  public void d(final String format, final long arg) {
+    log(Log.DEBUG, format, arg);
+  }
+
+  public void d(final String format, final long arg1, final long arg2) {
+    log(Log.DEBUG, format, arg1, arg2);
+  }
+
+  public void d(final String format, final double arg) {
+    log(Log.DEBUG, format, arg);
+  }
+
+  public void d(final String format, final Object... args) {
+    logArgs(Log.DEBUG, null, format, args);
+  }
+
+  public void d(final Throwable t, final String format, final Object... args) {
+    logArgs(Log.DEBUG, t, format, args);
+  }
+
+  public void i(final String message) {
+    log(Log.INFO, message);
+  }
+
+  public void i(final String format, final Object arg) {
+    log(Log.INFO, format, arg);
+  }
+
+  public void i(final String format, final Object arg1, final Object arg2) {
+    log(Log.INFO, format, arg1, arg2);
+  }
+
+  public void i(final String format, final long arg) {
+    log(Log.INFO, format, arg);
+  }
+
+  public void i(final String format, final long arg1, final long arg2) {
+    log(Log.INFO, format, arg1, arg2);
+  }
+
+  public void i(final String format, final double arg) {
+    log(Log.INFO, format, arg);
+  }
+
+  public void i(final String format, final Object... args) {
+    logArgs(Log.INFO, null, format, args);
+  }
+
+  public void i(final Throwable t, final String format, final Object... args) {
+    logArgs(Log.INFO, t, format, args);
+  }
+
+  public void w(final String message) {
+    log(Log.WARN, message);
+  }
+
+  public void w(final String format, final Object arg) {
+    log(Log.WARN, format, arg);
+  }
+
+  public void w(final String format, final Object arg1, final Object arg2) {
+    log(Log.WARN, format, arg1, arg2);
+  }
+
+  public void w(final String format, final long arg) {
+    log(Log.WARN, format, arg);
+  }
+
+  public void w(final String format, final long arg1, final long arg2) {
+    log(Log.WARN, format, arg1, arg2);
+  }
+
+  public void w(final String format, final double arg) {
+    log(Log.WARN, format, arg);
+  }
+
+  public void w(final String format, final Object... args) {
+    logArgs(Log.WARN, null, format, args);
+  }
+
+  public void w(final Throwable t, final String format, final Object... args) {
+    logArgs(Log.WARN, t, format, args);
+  }
+
+  public void e(final String message) {
+    log(Log.ERROR, message);
+  }
+
+  public void e(final String format, final Object arg) {
+    log(Log.ERROR, format, arg);
+  }
+
+  public void e(final String format, final Object arg1, final Object arg2) {
+    log(Log.ERROR, format, arg1, arg2);
+  }
+
+  public void e(final String format, final long arg) {
+    log(Log.ERROR, format, arg);
+  }
+
+  public void e(final String format, final long arg1, final long arg2) {
+    log(Log.ERROR, format, arg1, arg2);
+  }
+
+  public void e(final String format, final double arg) {
+    log(Log.ERROR, format, arg);
+  }
+
   public void e(final String format, final Object... args) {
-    if (isLoggable(Log.ERROR)) {
-      Log.e(tag, toMessage(format, args));
-    }
+    logArgs(Log.ERROR, null, format, args);
   }
 
   public void e(final Throwable t, final String format, final Object... args) {
-    if (isLoggable(Log.ERROR)) {
-      Log.e(tag, toMessage(format, args), t);
+    logArgs(Log.ERROR, t, format, args);
+  }
+
+  /**
+   * Writes the messages of asynchronous loggers from a single daemon thread. The queue is
+   * bounded; when it is full new messages are dropped rather than blocking the caller.
+   */
+  private static final class AsyncSink implements Runnable {
+    static final AsyncSink INSTANCE = new AsyncSink();
+
+    private static final int CAPACITY = 512;
+    private static final int MAX_BATCH = 64;
+
+    private final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(CAPACITY);
+    private final AtomicInteger dropped = new AtomicInteger();
+
+    private AsyncSink() {
+      final Thread thread = new Thread(this, "logger");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    void offer(final int level, final String tag, final String message, final Throwable t) {
+      if (!queue.offer(new Record(level, tag, message, t))) {
+        dropped.incrementAndGet();
+      }
+    }
+
+    @Override
+    public void run() {
+      final List<Record> batch = new ArrayList<Record>(MAX_BATCH);
+      while (true) {
+        try {
+          batch.add(queue.take());
+        } catch (final InterruptedException e) {
+          return;
+        }
+        queue.drainTo(batch, MAX_BATCH - 1);
+        for (final Record record : batch) {
+          write(record.level, record.tag, record.message, record.throwable);
+        }
+        batch.clear();
+        final int droppedCount = dropped.getAndSet(0);
+        if (droppedCount > 0) {
+          Log.w(DEFAULT_TAG, "Logger: dropped " + droppedCount + " messages");
+        }
+      }
+    }
+  }
+
+  private static final class Record {
+    final int level;
+    final String tag;
+    final String message;
+    final Throwable throwable;
+
+    Record(final int level, final String tag, final String message, final Throwable throwable) {
+      this.level = level;
+      this.tag = tag;
+      this.message = message;
+      this.throwable = throwable;
     }
   }
 }
@@ -23,8 +23,11 @@ import android.util.Log;
 
 import com.example.androidthings.assistant.Classifier;
 
+import org.tensorflow.Graph;
+
 import java.io.BufferedReader;
 import java.io.FileInputStream;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -32,6 +35,7 @@ import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.List;
@@ -41,6 +45,7 @@ import java.util.PriorityQueue;
  * Helper functions for the TensorFlow image classifier.
  */
 public class TensorFlowHelper {
+    private static final String TAG = TensorFlowHelper.class.getSimpleName();
 
     private static final int RESULTS_TO_SHOW = 3;
 
@@ -49,12 +54,93 @@ public class TensorFlowHelper {
      */
     public static MappedByteBuffer loadModelFile(Context context, String modelFile)
             throws IOException {
-        AssetFileDescriptor fileDescriptor = context.getAssets().openFd(modelFile);
-        FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
-        FileChannel fileChannel = inputStream.getChannel();
-        long startOffset = fileDescriptor.getStartOffset();
-        long declaredLength = fileDescriptor.getDeclaredLength();
-        return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+        return loadModelFile(context.getAssets(), modelFile);
+    }
+
+    /**
+     * Memory-map the model file in Assets. The asset must be stored uncompressed. This is for
+     * the TFLite interpreter, which runs on the mapping itself, so the model stays out of the
+     * Java heap.
+     */
+    public static MappedByteBuffer loadModelFile(AssetManager assetManager, String modelFile)
+            throws IOException {
+        try (AssetFileDescriptor fileDescriptor = assetManager.openFd(modelFile);
+             FileInputStream inputStream =
+                     new FileInputStream(fileDescriptor.getFileDescriptor())) {
+            FileChannel fileChannel = inputStream.getChannel();
+            long startOffset = fileDescriptor.getStartOffset();
+            long declaredLength = fileDescriptor.getDeclaredLength();
+            // The mapping stays valid after the descriptor is closed.
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+        }
+    }
+
+    /**
+     * Imports a frozen GraphDef from Assets. TensorFlow Mobile only takes a GraphDef as a heap
+     * byte[], which it copies into the native graph, so mapping the file would only add a step:
+     * the asset is read straight into one exactly sized array instead, dropped as soon as the
+     * native graph holds the model. This works for compressed assets too.
+     */
+    public static Graph importGraph(AssetManager assetManager, String modelFile)
+            throws IOException {
+        final byte[] graphDef;
+        try (InputStream is = assetManager.open(modelFile)) {
+            graphDef = readFully(is);
+        }
+        Graph graph = new Graph();
+        try {
+            graph.importGraphDef(graphDef);
+        } catch (IllegalArgumentException e) {
+            graph.close();
+            throw new IOException("Not a valid TensorFlow Graph serialization: " + modelFile, e);
+        }
+        return graph;
+    }
+
+    /**
+     * Reads a field such as VmRSS or VmHWM from /proc/self/status.
+     *
+     * @return the value in kB, or -1 if it is not available.
+     */
+    public static long readProcessMemoryKb(String field) {
+        try (BufferedReader br = new BufferedReader(new FileReader("/proc/self/status"))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.startsWith(field + ":")) {
+                    String value = line.substring(field.length() + 1).trim();
+                    int space = value.indexOf(' ');
+                    return Long.parseLong(space > 0 ? value.substring(0, space) : value);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "unable to read " + field, e);
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a stream to its end. An asset stream reports its whole remaining length as
+     * available, so an asset is read straight into an array of exactly its size.
+     */
+    private static byte[] readFully(InputStream is) throws IOException {
+        byte[] data = new byte[Math.max(is.available(), 0)];
+        int length = 0;
+        while (true) {
+            if (length == data.length) {
+                // Full: either the end, or the stream held more than it said.
+                final int next = is.read();
+                if (next == -1) {
+                    return data;
+                }
+                data = Arrays.copyOf(data, Math.max(2 * data.length, 16384));
+                data[length++] = (byte) next;
+            }
+            final int read = is.read(data, length, data.length - length);
+            if (read == -1) {
+                return Arrays.copyOf(data, length);
+            }
+            length += read;
+        }
     }
 
     public static List<String> readLabels(Context context, String labelsFile) {
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives the scheduler with a fake clock at the detector's frame rate and records what it says.
+ */
+public class AnnouncementSchedulerTest {
+    private static final long FRAME_MS = 100;
+
+    private long mNowMs;
+    private final List<String> mSpoken = new ArrayList<>();
+    private AnnouncementScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mNowMs = 1000;
+        mScheduler = new AnnouncementScheduler(() -> mNowMs, mSpoken::add);
+    }
+
+    @Test
+    public void firstDetectionIsSpokenRightAway() {
+        frame("chair");
+        assertEquals(Collections.singletonList("a chair"), mSpoken);
+    }
+
+    @Test
+    public void sameLabelIsQuietWithinCooldown() {
+        frames(AnnouncementScheduler.DEFAULT_COOLDOWN_MS - FRAME_MS, "chair");
+        assertEquals(Collections.singletonList("a chair"), mSpoken);
+    }
+
+    @Test
+    public void sameLabelIsRepeatedAfterCooldown() {
+        frames(AnnouncementScheduler.DEFAULT_COOLDOWN_MS + FRAME_MS, "chair");
+        assertEquals(Arrays.asList("a chair", "a chair"), mSpoken);
+    }
+
+    @Test
+    public void countChangeIsSpokenWithinCooldown() {
+        frames(3000, "chair");
+        frame("chair", "chair");
+        assertEquals(Arrays.asList("a chair", "two chairs"), mSpoken);
+    }
+
+    @Test
+    public void windowKeepsLargestCountThroughMissedDetections() {
+        frame("person", "person");
+        // The detector drops one of the two in alternate frames; that is not a count change.
+        for (int i = 0; i < 40; i++) {
+            frame("person");
+            frame("person", "person");
+        }
+        assertEquals(Collections.singletonList("two people"), mSpoken);
+    }
+
+    @Test
+    public void announcementsAreSpacedByMinimumInterval() {
+        frame("chair");
+        final long spokenMs = mNowMs;
+        // A new label shows up right after; it waits for the interval rather than queueing.
+        frame("chair", "dog");
+        assertEquals(1, mSpoken.size());
+        while (mSpoken.size() < 2) {
+            frame("chair", "dog");
+        }
+        assertTrue("spoken after " + (mNowMs - spokenMs) + " ms",
+                mNowMs - spokenMs >= AnnouncementScheduler.DEFAULT_MIN_INTERVAL_MS);
+        assertTrue("spoken after " + (mNowMs - spokenMs) + " ms",
+                mNowMs - spokenMs < AnnouncementScheduler.DEFAULT_MIN_INTERVAL_MS + FRAME_MS);
+        // Only the label that was due is spoken.
+        assertEquals("a dog", mSpoken.get(1));
+    }
+
+    @Test
+    public void labelsDueTogetherShareOnePhrase() {
+        frame("cup", "cup", "cup", "bottle", "apple");
+        assertEquals(1, mSpoken.size());
+        final String phrase = mSpoken.get(0);
+        assertTrue(phrase, phrase.contains("three cups"));
+        assertTrue(phrase, phrase.contains("a bottle"));
+        assertTrue(phrase, phrase.contains("an apple"));
+        assertTrue(phrase, phrase.matches("[a-z ]+, [a-z ]+ and [a-z ]+"));
+    }
+
+    @Test
+    public void labelThatLeftTheWindowIsNotSpoken() {
+        frame("chair");
+        frame("dog");
+        // The chair is gone by the time the interval allows the dog to be spoken.
+        frames(AnnouncementScheduler.DEFAULT_MIN_INTERVAL_MS, "dog");
+        assertEquals(Arrays.asList("a chair", "a dog"), mSpoken);
+
+        // Once the dog is gone for longer than the window, nothing is left to announce.
+        frames(AnnouncementScheduler.DEFAULT_COOLDOWN_MS * 2);
+        assertEquals(2, mSpoken.size());
+    }
+
+    @Test
+    public void returningLabelIsQuietWithinCooldown() {
+        frame("chair");
+        frames(AnnouncementScheduler.DEFAULT_WINDOW_MS * 3);
+        frames(1000, "chair");
+        assertEquals(Collections.singletonList("a chair"), mSpoken);
+    }
+
+    @Test
+    public void resetSpeaksTheSameLabelAgain() {
+        frame("chair");
+        mScheduler.reset();
+        frame("chair");
+        assertEquals(Arrays.asList("a chair", "a chair"), mSpoken);
+    }
+
+    @Test
+    public void describeUsesArticlesAndNumberWords() {
+        assertEquals("a chair", AnnouncementScheduler.describe("chair", 1));
+        assertEquals("an orange", AnnouncementScheduler.describe("orange", 1));
+        assertEquals("a pair of scissors", AnnouncementScheduler.describe("scissors", 1));
+        assertEquals("two chairs", AnnouncementScheduler.describe("chair", 2));
+        assertEquals("ten bottles", AnnouncementScheduler.describe("bottle", 10));
+        assertEquals("12 bottles", AnnouncementScheduler.describe("bottle", 12));
+    }
+
+    @Test
+    public void pluralHandlesIrregularAndMultiWordLabels() {
+        assertEquals("people", AnnouncementScheduler.plural("person"));
+        assertEquals("pairs of skis", AnnouncementScheduler.plural("skis"));
+        assertEquals("buses", AnnouncementScheduler.plural("bus"));
+        assertEquals("wine glasses", AnnouncementScheduler.plural("wine glass"));
+        assertEquals("toothbrushes", AnnouncementScheduler.plural("toothbrush"));
+        assertEquals("teddy bears", AnnouncementScheduler.plural("teddy bear"));
+        assertEquals("computer mice", AnnouncementScheduler.plural("computer mouse"));
+        assertEquals("dining tables", AnnouncementScheduler.plural("dining table"));
+        assertEquals("keys", AnnouncementScheduler.plural("key"));
+        assertEquals("butterflies", AnnouncementScheduler.plural("butterfly"));
+    }
+
+    /**
+     * Advances the clock by one frame and passes the frame's detections.
+     */
+    private void frame(String... titles) {
+        mNowMs += FRAME_MS;
+        mScheduler.onDetections(Arrays.asList(titles));
+    }
+
+    /**
+     * Passes the same detections in every frame for the given time.
+     */
+    private void frames(long durationMs, String... titles) {
+        for (long elapsed = 0; elapsed < durationMs; elapsed += FRAME_MS) {
+            frame(titles);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the manager against an in-process echo server. The in-process transport has no
+ * keepalive pings of its own, so these tests cover what the manager does on top of them:
+ * connecting ahead of the first call, reconnecting when the channel drops to IDLE, and leaving
+ * calls alone while it does.
+ */
+public class AssistantChannelManagerTest {
+    private static final String SERVICE = "test.Echo";
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private static final MethodDescriptor.Marshaller<byte[]> BYTES =
+            new MethodDescriptor.Marshaller<byte[]>() {
+                @Override
+                public InputStream stream(byte[] value) {
+                    return new ByteArrayInputStream(value);
+                }
+
+                @Override
+                public byte[] parse(InputStream stream) {
+                    try {
+                        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        final byte[] buffer = new byte[256];
+                        int read;
+                        while ((read = stream.read(buffer)) > 0) {
+                            out.write(buffer, 0, read);
+                        }
+                        return out.toByteArray();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+    private static final MethodDescriptor<byte[], byte[]> UNARY =
+            MethodDescriptor.<byte[], byte[]>newBuilder()
+                    .setType(MethodDescriptor.MethodType.UNARY)
+                    .setFullMethodName(MethodDescriptor.generateFullMethodName(SERVICE, "Unary"))
+                    .setRequestMarshaller(BYTES)
+                    .setResponseMarshaller(BYTES)
+                    .build();
+    // Shaped like Assist: a long-lived call answering every request message.
+    private static final MethodDescriptor<byte[], byte[]> STREAM =
+            MethodDescriptor.<byte[], byte[]>newBuilder()
+                    .setType(MethodDescriptor.MethodType.BIDI_STREAMING)
+                    .setFullMethodName(MethodDescriptor.generateFullMethodName(SERVICE, "Stream"))
+                    .setRequestMarshaller(BYTES)
+                    .setResponseMarshaller(BYTES)
+                    .build();
+
+    private Server mServer;
+    private ManagedChannel mChannel;
+    private AssistantChannelManager mManager;
+
+    @Before
+    public void setUp() throws IOException {
+        final String name = getClass().getName() + "-" + UUID.randomUUID();
+        final ServerServiceDefinition service = ServerServiceDefinition.builder(SERVICE)
+                .addMethod(UNARY, ServerCalls.asyncUnaryCall(
+                        (request, responseObserver) -> {
+                            responseObserver.onNext(request);
+                            responseObserver.onCompleted();
+                        }))
+                .addMethod(STREAM, ServerCalls.asyncBidiStreamingCall(
+                        responseObserver -> new StreamObserver<byte[]>() {
+                            @Override
+                            public void onNext(byte[] value) {
+                                responseObserver.onNext(value);
+                            }
+
+                            @Override
+                            public void onError(Throwable t) {
+                            }
+
+                            @Override
+                            public void onCompleted() {
+                                responseObserver.onCompleted();
+                            }
+                        }))
+                .build();
+        mServer = InProcessServerBuilder.forName(name).addService(service).build().start();
+        mChannel = InProcessChannelBuilder.forName(name).build();
+        mManager = new AssistantChannelManager(mChannel, null);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mManager.shutdown();
+        mChannel.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        mServer.shutdownNow();
+        mServer.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void connectsBeforeTheFirstCall() throws InterruptedException {
+        assertEquals(ConnectivityState.IDLE, mManager.getState());
+        mManager.connect();
+        awaitState(ConnectivityState.READY);
+    }
+
+    @Test
+    public void reconnectsWhenTheChannelGoesIdle() throws InterruptedException {
+        mManager.connect();
+        awaitState(ConnectivityState.READY);
+
+        // What the channel does when the server or the network drops the connection. Left
+        // alone it would stay IDLE until the next call paid for the reconnect.
+        for (int i = 0; i < 3; i++) {
+            mChannel.enterIdle();
+            awaitState(ConnectivityState.READY);
+        }
+    }
+
+    @Test
+    public void callMadeDuringReconnectGoesThrough() throws InterruptedException {
+        mManager.connect();
+        awaitState(ConnectivityState.READY);
+
+        mChannel.enterIdle();
+        final byte[] request = {1, 2, 3};
+        assertArrayEquals(request, ClientCalls.blockingUnaryCall(
+                mChannel.newCall(UNARY, CallOptions.DEFAULT.withDeadlineAfter(
+                        TIMEOUT_SECONDS, TimeUnit.SECONDS)), request));
+    }
+
+    @Test
+    public void streamingCallKeepsFlowingWhileConnectionIsHeldOpen() throws InterruptedException {
+        mManager.connect();
+        awaitState(ConnectivityState.READY);
+
+        final BlockingQueue<byte[]> responses = new LinkedBlockingQueue<>();
+        final CountDownLatch completed = new CountDownLatch(1);
+        final Throwable[] error = new Throwable[1];
+        final ClientCall<byte[], byte[]> call = mChannel.newCall(STREAM, CallOptions.DEFAULT);
+        final StreamObserver<byte[]> requests = ClientCalls.asyncBidiStreamingCall(call,
+                new StreamObserver<byte[]>() {
+                    @Override
+                    public void onNext(byte[] value) {
+                        responses.add(value);
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        error[0] = t;
+                        completed.countDown();
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        completed.countDown();
+                    }
+                });
+
+        // Every message is answered right away while the manager holds the connection, with
+        // no state change in between.
+        for (byte i = 0; i < 20; i++) {
+            requests.onNext(new byte[] {i});
+            final byte[] response = responses.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertArrayEquals(new byte[] {i}, response);
+            assertEquals(ConnectivityState.READY, mManager.getState());
+        }
+        requests.onCompleted();
+        assertTrue(completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNull(error[0]);
+    }
+
+    /**
+     * Waits for the channel to reach a state without asking it to connect, so only the manager
+     * can have moved it there.
+     */
+    private void awaitState(ConnectivityState expected) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        ConnectivityState state = mChannel.getState(false);
+        while (state != expected) {
+            final CountDownLatch changed = new CountDownLatch(1);
+            mChannel.notifyWhenStateChanged(state, changed::countDown);
+            assertTrue("expected " + expected + ", stuck in " + state,
+                    changed.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+            state = mChannel.getState(false);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Feeds the reader hand-built Ogg pages, with valid CRCs, shaped like an Assistant response:
+ * OpusHead alone on the first page, OpusTags starting on the second, then the audio packets.
+ */
+public class OggPacketReaderTest {
+    private static final int FLAG_CONTINUED = 0x01;
+    private static final int FLAG_BEGIN_OF_STREAM = 0x02;
+    private static final int FLAG_END_OF_STREAM = 0x04;
+
+    private static final byte[] OPUS_HEAD = opusHead();
+    private static final byte[] OPUS_TAGS = opusTags(40);
+
+    private final List<byte[]> mPackets = new ArrayList<>();
+    private final OggOpusDecoder.OggPacketReader.Listener mListener =
+            (packet, length) -> mPackets.add(Arrays.copyOf(packet, length));
+    private OggOpusDecoder.OggPacketReader mReader;
+    private int mSequence;
+
+    @Before
+    public void setUp() {
+        mReader = new OggOpusDecoder.OggPacketReader();
+    }
+
+    @Test
+    public void headersComeFirstAndAudioFollows() {
+        final byte[] audio1 = bytes(1, 60);
+        final byte[] audio2 = bytes(2, 80);
+        final byte[] audio3 = bytes(3, 1);
+        feed(concat(
+                page(FLAG_BEGIN_OF_STREAM, lacing(OPUS_HEAD), OPUS_HEAD),
+                page(0, lacing(OPUS_TAGS), OPUS_TAGS),
+                page(FLAG_END_OF_STREAM, lacing(audio1, audio2, audio3),
+                        concat(audio1, audio2, audio3))));
+        // The decoder opens the codec with packet 0 and skips packet 1.
+        assertPackets(OPUS_HEAD, OPUS_TAGS, audio1, audio2, audio3);
+    }
+
+    @Test
+    public void packetOfWholeSegmentsEndsWithAZeroLacingValue() {
+        final byte[] exact = bytes(4, 255);
+        final byte[] twice = bytes(5, 510);
+        final byte[] empty = new byte[0];
+        assertArrayEquals(new int[] {255, 0, 255, 255, 0, 0}, lacing(exact, twice, empty));
+        feed(page(0, lacing(exact, twice, empty), concat(exact, twice, empty)));
+        assertPackets(exact, twice, empty);
+    }
+
+    @Test
+    public void lacing255ContinuesThePacketOnTheNextPage() {
+        // OpusTags with a long vendor string, split after two full segments.
+        final byte[] tags = opusTags(700);
+        final byte[] audio = bytes(6, 30);
+        feed(concat(
+                page(FLAG_BEGIN_OF_STREAM, lacing(OPUS_HEAD), OPUS_HEAD),
+                page(0, new int[] {255, 255}, Arrays.copyOf(tags, 510)),
+                page(FLAG_CONTINUED, new int[] {190, 30},
+                        concat(Arrays.copyOfRange(tags, 510, 700), audio))));
+        assertPackets(OPUS_HEAD, tags, audio);
+    }
+
+    @Test
+    public void packetCanSpanSeveralPages() {
+        final byte[] big = bytes(7, 255 * 3 + 10);
+        feed(concat(
+                page(0, new int[] {255}, Arrays.copyOfRange(big, 0, 255)),
+                page(FLAG_CONTINUED, new int[] {255}, Arrays.copyOfRange(big, 255, 510)),
+                page(FLAG_CONTINUED, new int[] {255, 10}, Arrays.copyOfRange(big, 510, 775))));
+        assertPackets(big);
+    }
+
+    @Test
+    public void packetIsDeliveredOnlyOnceItsLastPageIsComplete() {
+        final byte[] big = bytes(8, 300);
+        final byte[] first = page(0, new int[] {255}, Arrays.copyOf(big, 255));
+        final byte[] second = page(FLAG_CONTINUED, new int[] {45},
+                Arrays.copyOfRange(big, 255, 300));
+        feed(first);
+        feed(Arrays.copyOf(second, second.length - 1));
+        assertPackets();
+        feed(Arrays.copyOfRange(second, second.length - 1, second.length));
+        assertPackets(big);
+    }
+
+    @Test
+    public void bytesSplitAnywhereGiveTheSamePackets() {
+        final byte[] tags = opusTags(600);
+        final byte[] audio1 = bytes(9, 120);
+        final byte[] audio2 = bytes(10, 255);
+        final byte[] stream = concat(
+                page(FLAG_BEGIN_OF_STREAM, lacing(OPUS_HEAD), OPUS_HEAD),
+                page(0, new int[] {255, 255}, Arrays.copyOf(tags, 510)),
+                page(FLAG_CONTINUED, concat(new int[] {90}, lacing(audio1, audio2)),
+                        concat(Arrays.copyOfRange(tags, 510, 600), audio1, audio2)));
+
+        // One byte at a time, which cuts every header, lacing table and body.
+        for (byte b : stream) {
+            feed(new byte[] {b});
+        }
+        assertPackets(OPUS_HEAD, tags, audio1, audio2);
+
+        final Random random = new Random(2018);
+        for (int run = 0; run < 20; run++) {
+            mPackets.clear();
+            mReader.reset();
+            for (int offset = 0; offset < stream.length; ) {
+                final int length = Math.min(stream.length - offset, 1 + random.nextInt(100));
+                feed(Arrays.copyOfRange(stream, offset, offset + length));
+                offset += length;
+            }
+            assertPackets(OPUS_HEAD, tags, audio1, audio2);
+        }
+    }
+
+    @Test
+    public void truncatedResponseIsDroppedOnReset() {
+        final byte[] audio = bytes(11, 50);
+        final byte[] lastPage = page(0, lacing(audio, audio), concat(audio, audio));
+        feed(concat(
+                page(FLAG_BEGIN_OF_STREAM, lacing(OPUS_HEAD), OPUS_HEAD),
+                page(0, lacing(OPUS_TAGS), OPUS_TAGS),
+                // Cut inside the body, then inside the header of a page that never arrives.
+                Arrays.copyOf(lastPage, lastPage.length - 20)));
+        assertPackets(OPUS_HEAD, OPUS_TAGS);
+
+        // The next response starts with its own OpusHead, not with the leftovers.
+        mPackets.clear();
+        mReader.reset();
+        feed(concat(
+                page(FLAG_BEGIN_OF_STREAM, lacing(OPUS_HEAD), OPUS_HEAD),
+                page(0, lacing(OPUS_TAGS), OPUS_TAGS),
+                Arrays.copyOf(page(0, lacing(audio), audio), 10)));
+        assertPackets(OPUS_HEAD, OPUS_TAGS);
+        mPackets.clear();
+        mReader.reset();
+        feed(page(FLAG_BEGIN_OF_STREAM, lacing(OPUS_HEAD), OPUS_HEAD));
+        assertPackets(OPUS_HEAD);
+    }
+
+    @Test
+    public void packetLeftOpenByALostPageIsDropped() {
+        final byte[] audio = bytes(12, 40);
+        feed(page(0, new int[] {255}, bytes(13, 255)));
+        // The page that would have finished the packet is lost; the next one starts afresh.
+        feed(page(0, lacing(audio), audio));
+        assertPackets(audio);
+    }
+
+    @Test
+    public void bytesBeforeAPageAreSkipped() {
+        final byte[] audio = bytes(14, 20);
+        feed(concat("Ogg junk OggOgg".getBytes(),
+                page(FLAG_BEGIN_OF_STREAM, lacing(OPUS_HEAD), OPUS_HEAD),
+                "xx".getBytes(),
+                page(0, lacing(audio), audio)));
+        assertPackets(OPUS_HEAD, audio);
+    }
+
+    private void feed(byte[] data) {
+        mReader.feed(data, 0, data.length, mListener);
+    }
+
+    private void assertPackets(byte[]... expected) {
+        assertEquals(expected.length, mPackets.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals("packet " + i, expected[i], mPackets.get(i));
+        }
+    }
+
+    /** Lacing values for whole packets, each ended by a value below 255. */
+    private static int[] lacing(byte[]... packets) {
+        final List<Integer> values = new ArrayList<>();
+        for (byte[] packet : packets) {
+            int left = packet.length;
+            while (left >= 255) {
+                values.add(255);
+                left -= 255;
+            }
+            values.add(left);
+        }
+        final int[] lacing = new int[values.size()];
+        for (int i = 0; i < lacing.length; i++) {
+            lacing[i] = values.get(i);
+        }
+        return lacing;
+    }
+
+    /** One Ogg page of stream 0x1234 with the given lacing values and body. */
+    private byte[] page(int flags, int[] lacing, byte[] body) {
+        int bodyLength = 0;
+        for (int value : lacing) {
+            bodyLength += value;
+        }
+        assertEquals("lacing does not match the body", body.length, bodyLength);
+
+        final ByteArrayOutputStream page = new ByteArrayOutputStream();
+        page.write('O');
+        page.write('g');
+        page.write('g');
+        page.write('S');
+        page.write(0);
+        page.write(flags);
+        writeLittleEndian(page, 0, 8);
+        writeLittleEndian(page, 0x1234, 4);
+        writeLittleEndian(page, mSequence++, 4);
+        writeLittleEndian(page, 0, 4);
+        page.write(lacing.length);
+        for (int value : lacing) {
+            page.write(value);
+        }
+        page.write(body, 0, body.length);
+
+        final byte[] bytes = page.toByteArray();
+        final int crc = crc(bytes);
+        for (int i = 0; i < 4; i++) {
+            bytes[22 + i] = (byte) (crc >>> (8 * i));
+        }
+        return bytes;
+    }
+
+    /** The Ogg CRC-32: polynomial 0x04c11db7, not reflected, over the page with a zero CRC. */
+    private static int crc(byte[] page) {
+        int crc = 0;
+        for (byte b : page) {
+            crc ^= (b & 0xff) << 24;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = crc < 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+            }
+        }
+        return crc;
+    }
+
+    private static void writeLittleEndian(ByteArrayOutputStream out, long value, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            out.write((int) (value >>> (8 * i)));
+        }
+    }
+
+    /** OpusHead for a mono 24 kHz stream, as in RFC 7845 section 5.1. */
+    private static byte[] opusHead() {
+        final ByteArrayOutputStream head = new ByteArrayOutputStream();
+        head.write("OpusHead".getBytes(), 0, 8);
+        head.write(1);
+        head.write(1);
+        writeLittleEndian(head, 312, 2);
+        writeLittleEndian(head, 24000, 4);
+        writeLittleEndian(head, 0, 2);
+        head.write(0);
+        return head.toByteArray();
+    }
+
+    /** OpusTags with a vendor string that makes the packet the given length, and no comments. */
+    private static byte[] opusTags(int length) {
+        final ByteArrayOutputStream tags = new ByteArrayOutputStream();
+        tags.write("OpusTags".getBytes(), 0, 8);
+        final int vendorLength = length - 8 - 4 - 4;
+        writeLittleEndian(tags, vendorLength, 4);
+        for (int i = 0; i < vendorLength; i++) {
+            tags.write('a' + i % 26);
+        }
+        writeLittleEndian(tags, 0, 4);
+        return tags.toByteArray();
+    }
+
+    /** Bytes that differ from packet to packet and from one position to the next. */
+    private static byte[] bytes(int seed, int length) {
+        final byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            out.write(array, 0, array.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        final int[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
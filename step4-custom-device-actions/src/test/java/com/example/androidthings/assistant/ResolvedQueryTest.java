@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Resolves queries against a label list laid out like the TFLite model's.
+ */
+public class ResolvedQueryTest {
+    // Background first, which the TFLite model skips with a label offset of 1.
+    private static final List<String> LABELS = Arrays.asList("???", "person", "chair", "dog");
+
+    @Test
+    public void unfilteredQueryHasNoMask() {
+        final ResolvedQuery resolved = new ResolvedQuery(Classifier.Query.ALL, LABELS, 1, 3);
+        assertNull(resolved.classMask);
+        assertEquals(Integer.MAX_VALUE, resolved.maxResults);
+    }
+
+    @Test
+    public void floorIsRaisedToMinimumConfidence() {
+        assertEquals(ResolvedQuery.MINIMUM_CONFIDENCE,
+                new ResolvedQuery(Classifier.Query.ALL, LABELS, 1, 3).minConfidence, 0f);
+        assertEquals(0.6f, new ResolvedQuery(new Classifier.Query(0.6f, 5, null, null),
+                LABELS, 1, 3).minConfidence, 0f);
+    }
+
+    @Test
+    public void maskIsIndexedByRawClass() {
+        final Classifier.Query onlyChairs =
+                new Classifier.Query(0f, 5, Collections.singleton("chair"), null);
+        assertArrayEquals(new boolean[] {false, true, false},
+                new ResolvedQuery(onlyChairs, LABELS, 1, 3).classMask);
+        assertArrayEquals(new boolean[] {false, false, true, false},
+                new ResolvedQuery(onlyChairs, LABELS, 0, 4).classMask);
+    }
+
+    @Test
+    public void blockedTitlesAndClassesWithoutLabelAreMasked() {
+        final Classifier.Query noDogs =
+                new Classifier.Query(0f, 5, null, Collections.singleton("dog"));
+        // Raw class 3 has no label at offset 1.
+        assertArrayEquals(new boolean[] {true, true, false, false},
+                new ResolvedQuery(noDogs, LABELS, 1, 4).classMask);
+    }
+}
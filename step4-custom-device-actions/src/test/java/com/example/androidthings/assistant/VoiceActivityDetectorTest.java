@@ -0,0 +1,185 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives the detector and the pre-roll gate from utterance_16k.wav, 3.2 s of 16 kHz mono PCM:
+ * room noise throughout, a burst of hiss from 0.3 s to 0.6 s, and a voiced utterance from
+ * 1.0 s to 2.0 s whose 4 Hz syllable envelope is at its peak at both ends.
+ */
+public class VoiceActivityDetectorTest {
+    private static final int SAMPLE_RATE = 16000;
+    // The uplink's chunking: 512 samples, 32 ms.
+    private static final int CHUNK_BYTES = 1024;
+    private static final int PRE_ROLL_CHUNKS = 8;
+    private static final int SPEECH_START_BYTE = 2 * SAMPLE_RATE;
+    private static final int SPEECH_END_BYTE = 2 * 2 * SAMPLE_RATE;
+
+    private byte[] mPcm;
+    private VoiceActivityDetector mDetector;
+    private SpeechGate mGate;
+    private ByteArrayOutputStream mSent;
+    private int mSentChunks;
+    private final SpeechGate.Sink mSink = (chunk, length) -> {
+        mSent.write(chunk, 0, length);
+        mSentChunks++;
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        mPcm = readWavData("/utterance_16k.wav");
+        mDetector = new VoiceActivityDetector(SAMPLE_RATE);
+        mGate = new SpeechGate(mDetector, CHUNK_BYTES, PRE_ROLL_CHUNKS);
+        mGate.reset();
+        mSent = new ByteArrayOutputStream();
+    }
+
+    @Test
+    public void leadingSilenceAndHissAreHeldBack() {
+        for (int offset = 0; offset + CHUNK_BYTES <= SPEECH_START_BYTE; offset += CHUNK_BYTES) {
+            assertEquals("state at byte " + offset,
+                    VoiceActivityDetector.STATE_SILENCE, submit(offset));
+        }
+        assertEquals(0, mSentChunks);
+    }
+
+    @Test
+    public void onsetReleasesPreRollAheadOfSpeech() {
+        int offset = 0;
+        while (submit(offset) == VoiceActivityDetector.STATE_SILENCE) {
+            offset += CHUNK_BYTES;
+        }
+        final int onsetEnd = offset + CHUNK_BYTES;
+        // Speech has to last for the onset time; allow one chunk for a partly silent first one.
+        final int onsetBytes = 2 * SAMPLE_RATE * VoiceActivityDetector.DEFAULT_ONSET_MS / 1000;
+        assertTrue("onset at byte " + onsetEnd,
+                onsetEnd >= SPEECH_START_BYTE + onsetBytes - CHUNK_BYTES);
+        assertTrue("onset at byte " + onsetEnd,
+                onsetEnd <= SPEECH_START_BYTE + onsetBytes + 2 * CHUNK_BYTES);
+
+        // The pre-roll and the onset chunk went out, in order and without gaps.
+        assertEquals(PRE_ROLL_CHUNKS + 1, mSentChunks);
+        final int firstSent = onsetEnd - mSent.size();
+        assertTrue("audio sent from byte " + firstSent, firstSent < SPEECH_START_BYTE);
+        assertArrayEquals(Arrays.copyOfRange(mPcm, firstSent, onsetEnd), mSent.toByteArray());
+    }
+
+    @Test
+    public void endOfSpeechFollowsTrailingSilence() {
+        int offset = 0;
+        int state;
+        do {
+            state = submit(offset);
+            offset += CHUNK_BYTES;
+        } while (state != VoiceActivityDetector.STATE_END_OF_SPEECH
+                && offset + CHUNK_BYTES <= mPcm.length);
+        assertEquals(VoiceActivityDetector.STATE_END_OF_SPEECH, state);
+
+        // The dips of the syllable envelope do not end the utterance early.
+        final int trailingBytes =
+                2 * SAMPLE_RATE * VoiceActivityDetector.DEFAULT_TRAILING_SILENCE_MS / 1000;
+        assertTrue("end of speech at byte " + offset,
+                offset >= SPEECH_END_BYTE + trailingBytes);
+        assertTrue("end of speech at byte " + offset,
+                offset <= SPEECH_END_BYTE + trailingBytes + 2 * CHUNK_BYTES);
+        // Everything from the first pre-roll chunk to the end of speech was sent once.
+        final int firstSent = offset - mSent.size();
+        assertArrayEquals(Arrays.copyOfRange(mPcm, firstSent, offset), mSent.toByteArray());
+    }
+
+    @Test
+    public void resetStartsANewUtterance() {
+        int offset = 0;
+        while (submit(offset) != VoiceActivityDetector.STATE_END_OF_SPEECH) {
+            offset += CHUNK_BYTES;
+        }
+        // The detector stays at the end of speech until it is reset.
+        assertEquals(VoiceActivityDetector.STATE_END_OF_SPEECH, submit(0));
+
+        mGate.reset();
+        mSent.reset();
+        mSentChunks = 0;
+        assertEquals(VoiceActivityDetector.STATE_SILENCE, submit(0));
+        assertEquals(0, mSentChunks);
+    }
+
+    @Test
+    public void burstShorterThanOnsetIsIgnored() {
+        final byte[] chunk = new byte[CHUNK_BYTES];
+        for (int i = 0; i < 10; i++) {
+            assertEquals(VoiceActivityDetector.STATE_SILENCE,
+                    mDetector.process(chunk, 0, chunk.length));
+        }
+        // One 32 ms chunk of a loud 200 Hz tone, under the 60 ms onset, then silence again.
+        for (int i = 0; i < CHUNK_BYTES / 2; i++) {
+            final int sample = (int) (8000 * Math.sin(2 * Math.PI * 200 * i / SAMPLE_RATE));
+            chunk[2 * i] = (byte) sample;
+            chunk[2 * i + 1] = (byte) (sample >> 8);
+        }
+        assertEquals(VoiceActivityDetector.STATE_SILENCE,
+                mDetector.process(chunk, 0, chunk.length));
+        Arrays.fill(chunk, (byte) 0);
+        assertEquals(VoiceActivityDetector.STATE_SILENCE,
+                mDetector.process(chunk, 0, chunk.length));
+    }
+
+    /**
+     * Copies a chunk of the fixture into the gate, as a read would, and submits it.
+     */
+    private int submit(int offset) {
+        final byte[] chunk = mGate.nextChunk();
+        System.arraycopy(mPcm, offset, chunk, 0, CHUNK_BYTES);
+        return mGate.submit(CHUNK_BYTES, mSink);
+    }
+
+    /**
+     * @return the PCM of the data chunk of a RIFF WAVE resource.
+     */
+    private static byte[] readWavData(String resource) throws IOException {
+        try (InputStream stream = VoiceActivityDetectorTest.class.getResourceAsStream(resource)) {
+            final DataInputStream input = new DataInputStream(stream);
+            final byte[] header = new byte[12];
+            input.readFully(header);
+            assertEquals("RIFF", new String(header, 0, 4, "US-ASCII"));
+            assertEquals("WAVE", new String(header, 8, 4, "US-ASCII"));
+            final byte[] chunkId = new byte[4];
+            while (true) {
+                input.readFully(chunkId);
+                final int size = Integer.reverseBytes(input.readInt());
+                if ("data".equals(new String(chunkId, "US-ASCII"))) {
+                    final byte[] data = new byte[size];
+                    input.readFully(data);
+                    return data;
+                }
+                input.skipBytes(size + (size & 1));
+            }
+        }
+    }
+}
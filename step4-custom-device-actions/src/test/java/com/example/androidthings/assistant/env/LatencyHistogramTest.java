@@ -0,0 +1,183 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.androidthings.assistant.env;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the bucket layout against the 1/32 error bound and the percentiles against the exact
+ * ranks of the recorded values.
+ */
+public class LatencyHistogramTest {
+    // Each power of two is split into 32 buckets, so a bucket is at most 1/32 of its values wide.
+    private static final int SUB_BUCKET_COUNT = 32;
+
+    @Test
+    public void smallValuesHaveABucketEach() {
+        for (int value = 0; value < 2 * SUB_BUCKET_COUNT; value++) {
+            assertEquals(value, LatencyHistogram.bucketIndex(value));
+            assertEquals(value, LatencyHistogram.highestValueInBucket(value));
+        }
+    }
+
+    @Test
+    public void bucketsTileTheTrackableRange() {
+        final int last = LatencyHistogram.bucketIndex(LatencyHistogram.MAX_TRACKABLE_NANOS);
+        assertEquals(LatencyHistogram.MAX_TRACKABLE_NANOS,
+                LatencyHistogram.highestValueInBucket(last));
+        long lowest = 0;
+        for (int index = 0; index <= last; index++) {
+            final long highest = LatencyHistogram.highestValueInBucket(index);
+            assertEquals("lowest value of bucket " + index,
+                    index, LatencyHistogram.bucketIndex(lowest));
+            assertEquals("highest value of bucket " + index,
+                    index, LatencyHistogram.bucketIndex(highest));
+            assertTrue("bucket " + index + " is " + (highest - lowest + 1) + " wide",
+                    (highest - lowest) * SUB_BUCKET_COUNT <= lowest);
+            lowest = highest + 1;
+        }
+    }
+
+    @Test
+    public void powersOfTwoStartABucket() {
+        for (int bit = 6; bit < 40; bit++) {
+            final long power = 1L << bit;
+            assertEquals(LatencyHistogram.bucketIndex(power - 1) + 1,
+                    LatencyHistogram.bucketIndex(power));
+            assertEquals(power - 1, LatencyHistogram.highestValueInBucket(
+                    LatencyHistogram.bucketIndex(power - 1)));
+        }
+    }
+
+    @Test
+    public void emptySnapshotReportsZero() {
+        final LatencyHistogram.Snapshot snapshot = new LatencyHistogram("empty").snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMeanNanos());
+        assertEquals(0, snapshot.getMaxNanos());
+        assertEquals(0, snapshot.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void percentilesAreWithinTheBucketError() {
+        final LatencyHistogram histogram = new LatencyHistogram("random");
+        final Random random = new Random(2018);
+        // Spread over six orders of magnitude, from a microsecond to a second.
+        final long[] values = new long[10000];
+        long total = 0;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.pow(10, 3 + 6 * random.nextDouble());
+            histogram.record(values[i]);
+            total += values[i];
+        }
+        Arrays.sort(values);
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(values.length, snapshot.getCount());
+        assertEquals(values[values.length - 1], snapshot.getMaxNanos());
+        assertEquals(total / values.length, snapshot.getMeanNanos());
+        for (double percentile : new double[] {0, 1, 10, 50, 90, 99, 99.9, 100}) {
+            final int rank = Math.max(1, (int) Math.ceil(percentile / 100 * values.length));
+            final long exact = values[rank - 1];
+            final long reported = snapshot.getValueAtPercentile(percentile);
+            assertTrue("p" + percentile + " is " + reported + ", below " + exact,
+                    reported >= exact);
+            assertTrue("p" + percentile + " is " + reported + ", too far above " + exact,
+                    (reported - exact) * SUB_BUCKET_COUNT <= exact);
+        }
+        assertEquals(snapshot.getMaxNanos(), snapshot.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void percentileNeverExceedsTheMaximum() {
+        final LatencyHistogram histogram = new LatencyHistogram("one");
+        // The middle of a bucket that ends at 1,015,807.
+        histogram.record(1_000_000);
+        assertEquals(1_000_000, histogram.snapshot().getValueAtPercentile(50));
+    }
+
+    @Test
+    public void negativeValuesAreRecordedAsZero() {
+        final LatencyHistogram histogram = new LatencyHistogram("clock went back");
+        histogram.record(-5);
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1, snapshot.getCount());
+        assertEquals(0, snapshot.getMaxNanos());
+        assertEquals(0, snapshot.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void valuesBeyondTheTrackableRangeShareTheLastBucket() {
+        final LatencyHistogram histogram = new LatencyHistogram("overflow");
+        final long huge = LatencyHistogram.MAX_TRACKABLE_NANOS * 4;
+        histogram.record(1000);
+        histogram.record(LatencyHistogram.MAX_TRACKABLE_NANOS + 1);
+        histogram.record(huge);
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(3, snapshot.getCount());
+        // The maximum and the mean keep the exact values; percentiles stop at the range.
+        assertEquals(huge, snapshot.getMaxNanos());
+        assertEquals((1000 + LatencyHistogram.MAX_TRACKABLE_NANOS + 1 + huge) / 3,
+                snapshot.getMeanNanos());
+        assertEquals(LatencyHistogram.MAX_TRACKABLE_NANOS, snapshot.getValueAtPercentile(100));
+        assertEquals(LatencyHistogram.MAX_TRACKABLE_NANOS, snapshot.getValueAtPercentile(50));
+        assertEquals(LatencyHistogram.highestValueInBucket(LatencyHistogram.bucketIndex(1000)),
+                snapshot.getValueAtPercentile(10));
+    }
+
+    @Test
+    public void snapshotIsACopy() {
+        final LatencyHistogram histogram = new LatencyHistogram("copy");
+        histogram.record(10);
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        histogram.record(20);
+        assertEquals(1, snapshot.getCount());
+        assertEquals(10, snapshot.getMaxNanos());
+        assertEquals(2, histogram.snapshot().getCount());
+    }
+
+    @Test
+    public void concurrentRecordingLosesNothing() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram("threads");
+        final int threads = 4;
+        final int perThread = 50000;
+        final Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final long offset = t;
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    histogram.record(1000 * offset + i % 1000);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(threads * perThread, snapshot.getCount());
+        assertEquals(1000 * (threads - 1) + 999, snapshot.getMaxNanos());
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant.env;
+
+import static org.junit.Assert.assertTrue;
+
+import android.util.Log;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+/**
+ * Per-call cost of the logger with android.util.Log stubbed out, as in the unit tests. Logger
+ * depends on Log, so it cannot join the JMH suites; this runs with the unit tests instead and
+ * prints nanoseconds and bytes allocated per call:
+ *     ./gradlew :step4-custom-device-actions:testDebugUnitTest --tests '*LoggerBenchmark' -i
+ *
+ * <p>The timings are indicative only. The one thing asserted is that disabled calls through the
+ * fixed-arity overloads allocate nothing, since that is what keeps them off the GC.
+ */
+public class LoggerBenchmark {
+  private static final int WARMUP_CALLS = 200_000;
+  private static final int DISABLED_CALLS = 2_000_000;
+  private static final int ENABLED_CALLS = 100_000;
+
+  /** One logging call; the argument changes between calls so nothing is hoisted. */
+  private interface Call {
+    void run(int i);
+  }
+
+  @Test
+  public void disabledCallsAllocateNothing() {
+    final Logger logger = new Logger(LoggerBenchmark.class);
+    logger.setMinLogLevel(Log.INFO);
+
+    // What the harness itself costs per call; subtract it from the rows below.
+    measure("empty call", DISABLED_CALLS, i -> { });
+    assertAllocationFree("disabled d(String)",
+        i -> logger.d("frame processed"));
+    assertAllocationFree("disabled d(String, long)",
+        i -> logger.d("frame %d processed", i));
+    assertAllocationFree("disabled d(String, long, long)",
+        i -> logger.d("frame %d took %d ms", i, 7));
+    assertAllocationFree("disabled d(String, double)",
+        i -> logger.d("score %.2f", i * 0.5));
+    assertAllocationFree("disabled d(String, Object)",
+        i -> logger.d("label %s", "chair"));
+    assertAllocationFree("disabled d(String, Object, Object)",
+        i -> logger.d("label %s at %s", "chair", "left"));
+    // The caller builds the array before the level check; escape analysis may remove it.
+    measure("disabled d(String, Object...)", DISABLED_CALLS,
+        i -> logger.d("%s %s %s", "a", "b", "c"));
+  }
+
+  @Test
+  public void enabledCalls() {
+    final Logger sync = new Logger(LoggerBenchmark.class);
+    sync.setMinLogLevel(Log.VERBOSE);
+    measure("enabled d(String)", ENABLED_CALLS, i -> sync.d("frame processed"));
+    measure("enabled d(String, long)", ENABLED_CALLS, i -> sync.d("frame %d processed", i));
+    measure("enabled d(String, Object...)", ENABLED_CALLS,
+        i -> sync.d("%s %d %s", "a", i, "c"));
+
+    // Formats on the calling thread and queues the message; drops it if the writer is behind.
+    final Logger async = new Logger(LoggerBenchmark.class, true);
+    async.setMinLogLevel(Log.VERBOSE);
+    measure("async d(String, long)", ENABLED_CALLS, i -> async.d("frame %d processed", i));
+  }
+
+  private static void assertAllocationFree(String name, Call call) {
+    final double bytesPerCall = measure(name, DISABLED_CALLS, call);
+    if (!Double.isNaN(bytesPerCall)) {
+      assertTrue(name + " allocated " + bytesPerCall + " bytes per call", bytesPerCall < 0.01);
+    }
+  }
+
+  /**
+   * Runs the call after a warm-up and prints its cost.
+   *
+   * @return bytes allocated per call, or NaN when the JVM cannot tell.
+   */
+  private static double measure(String name, int calls, Call call) {
+    for (int i = 0; i < WARMUP_CALLS; i++) {
+      call.run(i);
+    }
+    final long bytesBefore = allocatedBytes();
+    final long start = System.nanoTime();
+    for (int i = 0; i < calls; i++) {
+      call.run(i);
+    }
+    final long elapsed = System.nanoTime() - start;
+    final long bytesAfter = allocatedBytes();
+    final double bytesPerCall = bytesBefore < 0 ? Double.NaN
+        : (bytesAfter - bytesBefore) / (double) calls;
+    System.out.printf("%-36s %9.1f ns/call %9.2f B/call%n",
+        name, elapsed / (double) calls, bytesPerCall);
+    return bytesPerCall;
+  }
+
+  private static long allocatedBytes() {
+    final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+    return ((com.sun.management.ThreadMXBean) bean)
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.vision;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Detection post-processing. 100 candidates is what the exported SSD graph emits, 1917 is the
+ * number of anchors of SSD MobileNet at 300x300, for models without the NMS op built in.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PostprocessBenchmark {
+  private static final int MAX_RESULTS = 100;
+  private static final float MIN_SCORE = 0.1f;
+  private static final float MAX_IOU = 0.6f;
+  private static final int NUM_CLASSES = 90;
+  // A narrow query, e.g. obstacles only.
+  private static final int NUM_ACCEPTED_CLASSES = 8;
+
+  @Param({"100", "1917"})
+  public int numDetections;
+
+  private float[] scores;
+  private float[] boxes;
+  private float[] classes;
+  private int[] rankedIndices;
+  private int numRanked;
+  private int[] kept;
+  private boolean[] acceptedClasses;
+
+  @Setup
+  public void setUp() {
+    final Random random = new Random(42);
+    scores = new float[numDetections];
+    boxes = new float[numDetections * 4];
+    classes = new float[numDetections];
+    for (int i = 0; i < numDetections; ++i) {
+      // Most anchors score low, as they do on real frames.
+      scores[i] = random.nextFloat() * random.nextFloat();
+      final float top = random.nextFloat() * 0.8f;
+      final float left = random.nextFloat() * 0.8f;
+      boxes[4 * i] = top;
+      boxes[4 * i + 1] = left;
+      boxes[4 * i + 2] = top + 0.05f + random.nextFloat() * 0.15f;
+      boxes[4 * i + 3] = left + 0.05f + random.nextFloat() * 0.15f;
+      classes[i] = random.nextInt(NUM_CLASSES);
+    }
+    rankedIndices = new int[MAX_RESULTS];
+    kept = new int[MAX_RESULTS];
+    numRanked = TopK.select(scores, numDetections, MIN_SCORE, rankedIndices);
+    acceptedClasses = new boolean[NUM_CLASSES];
+    for (int i = 0; i < NUM_ACCEPTED_CLASSES; ++i) {
+      acceptedClasses[i] = true;
+    }
+  }
+
+  @Benchmark
+  public int topK() {
+    return TopK.select(scores, numDetections, MIN_SCORE, rankedIndices);
+  }
+
+  @Benchmark
+  public int topKAcceptedClasses() {
+    return TopK.select(scores, classes, acceptedClasses, numDetections, MIN_SCORE, rankedIndices,
+        MAX_RESULTS);
+  }
+
+  @Benchmark
+  public int nonMaxSuppressionPerClass() {
+    return NonMaxSuppression.suppress(boxes, classes, rankedIndices, numRanked, MAX_IOU, kept);
+  }
+
+  @Benchmark
+  public int nonMaxSuppressionAcrossClasses() {
+    return NonMaxSuppression.suppress(boxes, null, rankedIndices, numRanked, MAX_IOU, kept);
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.vision;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Frame conversions at the camera resolutions the app runs with. The planes are laid out the
+ * way an ImageReader delivers YUV_420_888 with interleaved chroma.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class YuvToRgbBenchmark {
+  private static final int MODEL_INPUT_SIZE = 300;
+  private static final int UV_PIXEL_STRIDE = 2;
+
+  @Param({"640x480", "1280x720"})
+  public String frameSize;
+
+  private int width;
+  private int height;
+  private byte[] yData;
+  private byte[] uData;
+  private byte[] vData;
+  private byte[] nv21;
+  private int uvRowStride;
+  private int[] argb;
+  private byte[] modelInput;
+
+  @Setup
+  public void setUp() {
+    final String[] components = frameSize.split("x");
+    width = Integer.parseInt(components[0]);
+    height = Integer.parseInt(components[1]);
+
+    final Random random = new Random(42);
+    yData = new byte[width * height];
+    random.nextBytes(yData);
+    uvRowStride = width;
+    uData = new byte[uvRowStride * (height / 2)];
+    vData = new byte[uData.length];
+    random.nextBytes(uData);
+    random.nextBytes(vData);
+    nv21 = new byte[width * height * 3 / 2];
+    random.nextBytes(nv21);
+
+    argb = new int[width * height];
+    modelInput = new byte[MODEL_INPUT_SIZE * MODEL_INPUT_SIZE * 3];
+  }
+
+  @Benchmark
+  public int[] yuv420ToArgb8888() {
+    YuvToRgb.convertYUV420ToARGB8888(yData, uData, vData, width, height, width, uvRowStride,
+        UV_PIXEL_STRIDE, argb);
+    return argb;
+  }
+
+  @Benchmark
+  public int[] yuv420SpToArgb8888() {
+    YuvToRgb.convertYUV420SPToARGB8888(nv21, width, height, argb);
+    return argb;
+  }
+
+  /** The conversion the detector runs on every frame. */
+  @Benchmark
+  public byte[] modelInputRotated() {
+    YuvToRgb.convertYUV420ToRGB888(yData, uData, vData, width, height, width, uvRowStride,
+        UV_PIXEL_STRIDE, MODEL_INPUT_SIZE, MODEL_INPUT_SIZE, 90, modelInput);
+    return modelInput;
+  }
+
+  @Benchmark
+  public byte[] modelInputUpright() {
+    YuvToRgb.convertYUV420ToRGB888(yData, uData, vData, width, height, width, uvRowStride,
+        UV_PIXEL_STRIDE, MODEL_INPUT_SIZE, MODEL_INPUT_SIZE, 0, modelInput);
+    return modelInput;
+  }
+
+  /** Square center crop, which keeps the aspect ratio of the model input. */
+  @Benchmark
+  public byte[] modelInputCenterCrop() {
+    final int side = Math.min(width, height) & ~1;
+    YuvToRgb.convertYUV420ToRGB888(yData, uData, vData, width, uvRowStride, UV_PIXEL_STRIDE,
+        ((width - side) / 2) & ~1, ((height - side) / 2) & ~1, side, side,
+        MODEL_INPUT_SIZE, MODEL_INPUT_SIZE, 90, modelInput);
+    return modelInput;
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.vision;
+
+import java.util.Arrays;
+
+/**
+ * Carries detections across the frames the detector skips.
+ *
+ * <p>This is a velocity extrapolator, not a visual tracker: it never looks at the image.
+ * Detections are associated with existing tracks by intersection-over-union within the same
+ * class, which gives every track a constant-velocity estimate. On frames without a detector run
+ * every track moves by that estimate, and its confidence is multiplied by a fixed decay that only
+ * expresses how stale the last measurement is. {@link #needsDetection()} asks for the detector
+ * again after a fixed number of frames, or earlier once a track has become too stale.
+ *
+ * <p>Boxes are packed four floats per box as (left, top, right, bottom). Every track keeps the
+ * id it was given when it started for as long as detections continue it. Track state lives in
+ * parallel arrays that only grow, so a steady scene allocates nothing per frame.
+ *
+ * <p>Not thread safe; use it from the inference thread only.
+ */
+public final class BoxTracker {
+  // Overlap needed for a detection to continue an existing track.
+  static final float MIN_IOU = 0.3f;
+  // Weight of the newest measurement in the velocity estimate.
+  static final float VELOCITY_SMOOTHING = 0.5f;
+
+  private final int detectionInterval;
+  private final float confidenceDecay;
+  private final float minTrackConfidence;
+
+  // One entry per track, in the order the tracks started.
+  private int trackCount;
+  private float[] boxes = new float[0];
+  private String[] ids = new String[0];
+  private String[] titles = new String[0];
+  private float[] confidences = new float[0];
+  // Centre of the box at the last detection.
+  private float[] measuredX = new float[0];
+  private float[] measuredY = new float[0];
+  // Displacement of the centre per frame.
+  private float[] velocityX = new float[0];
+  private float[] velocityY = new float[0];
+  private boolean[] matched = new boolean[0];
+
+  private int nextId;
+  private int framesSinceDetection;
+
+  /**
+   * @param detectionInterval run the detector on one frame in this many.
+   * @param confidenceDecay factor applied to a track's confidence on every predicted frame.
+   * @param minTrackConfidence run the detector early before any track falls below this.
+   */
+  public BoxTracker(int detectionInterval, float confidenceDecay, float minTrackConfidence) {
+    this.detectionInterval = detectionInterval;
+    this.confidenceDecay = confidenceDecay;
+    this.minTrackConfidence = minTrackConfidence;
+    // The first frame has nothing to extrapolate from.
+    framesSinceDetection = detectionInterval;
+  }
+
+  /**
+   * @return true if the next frame should go through the detector.
+   */
+  public boolean needsDetection() {
+    if (framesSinceDetection + 1 >= detectionInterval) {
+      return true;
+    }
+    for (int t = 0; t < trackCount; ++t) {
+      if (confidences[t] * confidenceDecay < minTrackConfidence) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Corrects the tracks with a fresh set of detections. Tracks that no detection continues are
+   * dropped, detections that continue no track start new ones.
+   *
+   * @param detectionBoxes four coordinates per detection.
+   * @param detectionTitles class of each detection; only tracks of the same class continue.
+   * @param detectionConfidences confidence of each detection.
+   * @param count number of detections.
+   */
+  public void update(final float[] detectionBoxes, final String[] detectionTitles,
+      final float[] detectionConfidences, final int count) {
+    final int staleFrames = framesSinceDetection + 1;
+    framesSinceDetection = 0;
+    Arrays.fill(matched, 0, trackCount, false);
+
+    for (int d = 0; d < count; ++d) {
+      int best = -1;
+      float bestIou = MIN_IOU;
+      for (int t = 0; t < trackCount; ++t) {
+        if (matched[t] || !titles[t].equals(detectionTitles[d])) {
+          continue;
+        }
+        final float iou =
+            NonMaxSuppression.intersectionOverUnion(boxes, t, detectionBoxes, d);
+        if (iou >= bestIou) {
+          bestIou = iou;
+          best = t;
+        }
+      }
+      final int p = 4 * d;
+      final float centerX = (detectionBoxes[p] + detectionBoxes[p + 2]) / 2;
+      final float centerY = (detectionBoxes[p + 1] + detectionBoxes[p + 3]) / 2;
+      if (best < 0) {
+        best = startTrack();
+      } else {
+        // Blend the displacement since the last measurement into the velocity.
+        final float vx = (centerX - measuredX[best]) / staleFrames;
+        final float vy = (centerY - measuredY[best]) / staleFrames;
+        velocityX[best] += VELOCITY_SMOOTHING * (vx - velocityX[best]);
+        velocityY[best] += VELOCITY_SMOOTHING * (vy - velocityY[best]);
+      }
+      matched[best] = true;
+      titles[best] = detectionTitles[d];
+      confidences[best] = detectionConfidences[d];
+      System.arraycopy(detectionBoxes, p, boxes, 4 * best, 4);
+      measuredX[best] = centerX;
+      measuredY[best] = centerY;
+    }
+
+    // Drop the tracks nothing continued, keeping the rest in order.
+    int kept = 0;
+    for (int t = 0; t < trackCount; ++t) {
+      if (matched[t]) {
+        if (kept != t) {
+          moveTrack(t, kept);
+        }
+        ++kept;
+      }
+    }
+    trackCount = kept;
+  }
+
+  /**
+   * Moves every track one frame forward without a detector run.
+   */
+  public void predict() {
+    ++framesSinceDetection;
+    for (int t = 0; t < trackCount; ++t) {
+      final int p = 4 * t;
+      boxes[p] += velocityX[t];
+      boxes[p + 1] += velocityY[t];
+      boxes[p + 2] += velocityX[t];
+      boxes[p + 3] += velocityY[t];
+      confidences[t] *= confidenceDecay;
+    }
+  }
+
+  /**
+   * Drops all tracks, for example when the camera stops.
+   */
+  public void reset() {
+    trackCount = 0;
+    // Nothing is left to extrapolate, so the next frame goes through the detector.
+    framesSinceDetection = detectionInterval;
+  }
+
+  public int getTrackCount() {
+    return trackCount;
+  }
+
+  /**
+   * @return the tracks' boxes, four coordinates per track. Valid until the next update,
+   *     prediction or reset.
+   */
+  public float[] getBoxes() {
+    return boxes;
+  }
+
+  public String getId(final int track) {
+    return ids[track];
+  }
+
+  public String getTitle(final int track) {
+    return titles[track];
+  }
+
+  public float getConfidence(final int track) {
+    return confidences[track];
+  }
+
+  private int startTrack() {
+    if (trackCount == ids.length) {
+      final int capacity = Math.max(8, 2 * trackCount);
+      boxes = Arrays.copyOf(boxes, 4 * capacity);
+      ids = Arrays.copyOf(ids, capacity);
+      titles = Arrays.copyOf(titles, capacity);
+      confidences = Arrays.copyOf(confidences, capacity);
+      measuredX = Arrays.copyOf(measuredX, capacity);
+      measuredY = Arrays.copyOf(measuredY, capacity);
+      velocityX = Arrays.copyOf(velocityX, capacity);
+      velocityY = Arrays.copyOf(velocityY, capacity);
+      matched = Arrays.copyOf(matched, capacity);
+    }
+    final int track = trackCount++;
+    ids[track] = Integer.toString(nextId++);
+    velocityX[track] = 0;
+    velocityY[track] = 0;
+    return track;
+  }
+
+  private void moveTrack(final int from, final int to) {
+    System.arraycopy(boxes, 4 * from, boxes, 4 * to, 4);
+    ids[to] = ids[from];
+    titles[to] = titles[from];
+    confidences[to] = confidences[from];
+    measuredX[to] = measuredX[from];
+    measuredY[to] = measuredY[from];
+    velocityX[to] = velocityX[from];
+    velocityY[to] = velocityY[from];
+    matched[to] = matched[from];
+  }
+}
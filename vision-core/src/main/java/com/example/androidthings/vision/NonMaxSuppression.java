@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.vision;
+
+/**
+ * Greedy non-maximum suppression over boxes packed four floats per detection.
+ *
+ * <p>Boxes may be packed as (top, left, bottom, right), as SSD models emit them, or as
+ * (left, top, right, bottom): intersection-over-union does not depend on which pair of
+ * coordinates is the horizontal one, as long as every box uses the same layout.
+ */
+public final class NonMaxSuppression {
+  private NonMaxSuppression() {}
+
+  /**
+   * Walks the candidates in ranked order and keeps each one that does not overlap an already
+   * kept box by more than {@code maxIou}.
+   *
+   * @param boxes four coordinates per detection.
+   * @param classes class of each detection, or null to suppress across classes. When given,
+   *     boxes only suppress boxes of the same class.
+   * @param rankedIndices candidate indices, best first, for example from {@link TopK#select}.
+   * @param count number of candidates in {@code rankedIndices}.
+   * @param maxIou largest overlap a kept box may have with a better kept box.
+   * @param kept receives the indices that survive, best first; must hold {@code count}.
+   * @return the number of indices written to {@code kept}.
+   */
+  public static int suppress(
+      final float[] boxes,
+      final float[] classes,
+      final int[] rankedIndices,
+      final int count,
+      final float maxIou,
+      final int[] kept) {
+    int numKept = 0;
+    for (int c = 0; c < count; ++c) {
+      final int candidate = rankedIndices[c];
+      boolean suppressed = false;
+      for (int k = 0; k < numKept; ++k) {
+        final int other = kept[k];
+        if (classes != null && classes[other] != classes[candidate]) {
+          continue;
+        }
+        if (intersectionOverUnion(boxes, candidate, other) > maxIou) {
+          suppressed = true;
+          break;
+        }
+      }
+      if (!suppressed) {
+        kept[numKept++] = candidate;
+      }
+    }
+    return numKept;
+  }
+
+  /**
+   * @return the intersection-over-union of boxes {@code a} and {@code b}, 0 for disjoint or
+   *     empty boxes.
+   */
+  public static float intersectionOverUnion(final float[] boxes, final int a, final int b) {
+    return intersectionOverUnion(boxes, a, boxes, b);
+  }
+
+  /**
+   * Like {@link #intersectionOverUnion(float[], int, int)} for boxes packed in two arrays, which
+   * must use the same layout.
+   */
+  public static float intersectionOverUnion(
+      final float[] boxesA, final int a, final float[] boxesB, final int b) {
+    final int pa = 4 * a;
+    final int pb = 4 * b;
+    final float extent0 =
+        Math.min(boxesA[pa + 2], boxesB[pb + 2]) - Math.max(boxesA[pa], boxesB[pb]);
+    final float extent1 =
+        Math.min(boxesA[pa + 3], boxesB[pb + 3]) - Math.max(boxesA[pa + 1], boxesB[pb + 1]);
+    if (extent0 <= 0 || extent1 <= 0) {
+      return 0;
+    }
+    final float intersection = extent0 * extent1;
+    final float areaA = (boxesA[pa + 2] - boxesA[pa]) * (boxesA[pa + 3] - boxesA[pa + 1]);
+    final float areaB = (boxesB[pb + 2] - boxesB[pb]) * (boxesB[pb + 3] - boxesB[pb + 1]);
+    final float union = areaA + areaB - intersection;
+    return union > 0 ? intersection / union : 0;
+  }
+}
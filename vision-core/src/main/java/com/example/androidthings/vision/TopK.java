@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.vision;
+
+/**
+ * Selection of the best scores of a detector output without sorting or allocating.
+ */
+public final class TopK {
+  private TopK() {}
+
+  /**
+   * Ranks the first {@code count} scores that reach {@code minScore}, highest first, and keeps
+   * as many as {@code rankedIndices} holds. Ties keep their original order. NaN scores are
+   * skipped.
+   *
+   * @param rankedIndices receives indices into {@code scores}; its length is K.
+   * @return the number of indices written.
+   */
+  public static int select(
+      final float[] scores, final int count, final float minScore, final int[] rankedIndices) {
+    return select(scores, null, null, count, minScore, rankedIndices, rankedIndices.length);
+  }
+
+  /**
+   * Ranks like {@link #select(float[], int, float, int[])}, keeping only detections whose class
+   * is accepted and at most {@code maxResults} of them. Rejected detections are skipped before
+   * they are compared, so a narrow class set also makes the ranking cheaper.
+   *
+   * @param classes class of each detection, as the detector outputs it.
+   * @param acceptedClasses indexed by class; classes outside it are rejected. If null, every
+   *     class is accepted.
+   * @param rankedIndices receives indices into {@code scores}.
+   * @return the number of indices written.
+   */
+  public static int select(final float[] scores, final float[] classes,
+      final boolean[] acceptedClasses, final int count, final float minScore,
+      final int[] rankedIndices, final int maxResults) {
+    final int capacity = Math.max(0, Math.min(maxResults, rankedIndices.length));
+    int numRanked = 0;
+    for (int i = 0; i < count; ++i) {
+      final float score = scores[i];
+      if (!(score >= minScore)) {
+        continue;
+      }
+      if (acceptedClasses != null) {
+        final int detectedClass = (int) classes[i];
+        if (detectedClass < 0 || detectedClass >= acceptedClasses.length
+            || !acceptedClasses[detectedClass]) {
+          continue;
+        }
+      }
+      if (numRanked == capacity) {
+        // Full: the new score has to beat the current last place, which drops out.
+        if (capacity == 0 || scores[rankedIndices[capacity - 1]] >= score) {
+          continue;
+        }
+        --numRanked;
+      }
+      // Insertion into the ranked prefix, highest score first.
+      int position = numRanked;
+      while (position > 0 && scores[rankedIndices[position - 1]] < score) {
+        rankedIndices[position] = rankedIndices[position - 1];
+        --position;
+      }
+      rankedIndices[position] = i;
+      ++numRanked;
+    }
+    return numRanked;
+  }
+}
@@ -0,0 +1,401 @@
+/* Copyright 2015 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.androidthings.vision;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Java YUV 4:2:0 to RGB conversions. These are the fallbacks used when the native
+ * implementation is not available, and the only ones that can be benchmarked off-device.
+ */
+public final class YuvToRgb {
+  // This value is 2 ^ 18 - 1, and is used to clamp the RGB values before their ranges
+  // are normalized to eight bits.
+  static final int kMaxChannelValue = 262143;
+
+  private YuvToRgb() {}
+
+  /**
+   * Converts YUV420 semi-planar (NV21) data to ARGB 8888 data using the supplied width and
+   * height. The input and output must already be allocated and non-null. For efficiency, no
+   * error checking is performed.
+   */
+  public static void convertYUV420SPToARGB8888(
+      byte[] input,
+      int width,
+      int height,
+      int[] output) {
+    convertRows(width, height, (startRow, endRow) ->
+        convertYUV420SPRowsToARGB8888(input, width, height, output, startRow, endRow));
+  }
+
+  static void convertYUV420SPRowsToARGB8888(
+      byte[] input, int width, int height, int[] output, int startRow, int endRow) {
+    final int frameSize = width * height;
+    // Rows are handled in pairs so each V/U sample is looked up once for its 2x2 block.
+    for (int j = startRow; j < endRow; j += 2) {
+      final int uvp = frameSize + (j >> 1) * width;
+      final int yp0 = j * width;
+      final int yp1 = yp0 + width;
+      final boolean hasSecondRow = j + 1 < endRow;
+
+      for (int i = 0; i < width; i += 2) {
+        final int v = 0xff & input[uvp + i];
+        final int u = 0xff & input[uvp + i + 1];
+        final int r = V_TO_R[v] + (CLAMP_OFFSET << 10);
+        final int g = -V_TO_G[v] - U_TO_G[u] + (CLAMP_OFFSET << 10);
+        final int b = U_TO_B[u] + (CLAMP_OFFSET << 10);
+        final boolean hasSecondColumn = i + 1 < width;
+
+        int y = Y_TABLE[0xff & input[yp0 + i]];
+        output[yp0 + i] = R_CLAMP[(y + r) >> 10] | G_CLAMP[(y + g) >> 10] | B_CLAMP[(y + b) >> 10];
+        if (hasSecondColumn) {
+          y = Y_TABLE[0xff & input[yp0 + i + 1]];
+          output[yp0 + i + 1] =
+              R_CLAMP[(y + r) >> 10] | G_CLAMP[(y + g) >> 10] | B_CLAMP[(y + b) >> 10];
+        }
+        if (hasSecondRow) {
+          y = Y_TABLE[0xff & input[yp1 + i]];
+          output[yp1 + i] = R_CLAMP[(y + r) >> 10] | G_CLAMP[(y + g) >> 10] | B_CLAMP[(y + b) >> 10];
+          if (hasSecondColumn) {
+            y = Y_TABLE[0xff & input[yp1 + i + 1]];
+            output[yp1 + i + 1] =
+                R_CLAMP[(y + r) >> 10] | G_CLAMP[(y + g) >> 10] | B_CLAMP[(y + b) >> 10];
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Reference per-pixel conversion. The kernels use the lookup tables below instead, which
+   * reproduce this function exactly for every (y, u, v).
+   */
+  static int YUV2RGB(int y, int u, int v) {
+    // Adjust and check YUV values
+    y = (y - 16) < 0 ? 0 : (y - 16);
+    u -= 128;
+    v -= 128;
+
+    // This is the floating point equivalent. We do the conversion in integer
+    // because some Android devices do not have floating point in hardware.
+    // nR = (int)(1.164 * nY + 2.018 * nU);
+    // nG = (int)(1.164 * nY - 0.813 * nV - 0.391 * nU);
+    // nB = (int)(1.164 * nY + 1.596 * nV);
+    int y1192 = 1192 * y;
+    int r = (y1192 + 1634 * v);
+    int g = (y1192 - 833 * v - 400 * u);
+    int b = (y1192 + 2066 * u);
+
+    // Clipping RGB values to be inside boundaries [ 0 , kMaxChannelValue ]
+    r = r > kMaxChannelValue ? kMaxChannelValue : (r < 0 ? 0 : r);
+    g = g > kMaxChannelValue ? kMaxChannelValue : (g < 0 ? 0 : g);
+    b = b > kMaxChannelValue ? kMaxChannelValue : (b < 0 ? 0 : b);
+
+    return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+  }
+
+  // Lookup tables for the integer conversion above. The luma and chroma contributions are
+  // precomputed per byte value, so a pixel costs a few loads and adds instead of three
+  // multiplies and three clamps, and the chroma terms of a 2x2 block are computed once.
+  private static final int[] Y_TABLE = new int[256];
+  private static final int[] V_TO_R = new int[256];
+  private static final int[] V_TO_G = new int[256];
+  private static final int[] U_TO_G = new int[256];
+  private static final int[] U_TO_B = new int[256];
+
+  // Clamping to [0, kMaxChannelValue] followed by the shift down to eight bits is the same as
+  // saturating (value >> 10) to [0, 255]. The tables below do that for every reachable value of
+  // (value >> 10) and already hold the channel at its final position in the ARGB word.
+  private static final int CLAMP_OFFSET;
+  private static final int[] R_CLAMP;
+  private static final int[] G_CLAMP;
+  private static final int[] B_CLAMP;
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      Y_TABLE[i] = 1192 * Math.max(i - 16, 0);
+      V_TO_R[i] = 1634 * (i - 128);
+      V_TO_G[i] = 833 * (i - 128);
+      U_TO_G[i] = 400 * (i - 128);
+      U_TO_B[i] = 2066 * (i - 128);
+    }
+    final int minValue = Math.min(V_TO_R[0], Math.min(-V_TO_G[255] - U_TO_G[255], U_TO_B[0]));
+    final int maxValue = Y_TABLE[255]
+        + Math.max(V_TO_R[255], Math.max(-V_TO_G[0] - U_TO_G[0], U_TO_B[255]));
+    CLAMP_OFFSET = -(minValue >> 10);
+    final int size = (maxValue >> 10) + CLAMP_OFFSET + 1;
+    R_CLAMP = new int[size];
+    G_CLAMP = new int[size];
+    B_CLAMP = new int[size];
+    for (int i = 0; i < size; i++) {
+      final int channel = Math.max(0, Math.min(255, i - CLAMP_OFFSET));
+      R_CLAMP[i] = 0xff000000 | (channel << 16);
+      G_CLAMP[i] = channel << 8;
+      B_CLAMP[i] = channel;
+    }
+  }
+
+  /** Table-driven equivalent of {@link #YUV2RGB}. */
+  static int yuvToArgb(int y, int u, int v) {
+    final int luma = Y_TABLE[y] + (CLAMP_OFFSET << 10);
+    return R_CLAMP[(luma + V_TO_R[v]) >> 10]
+        | G_CLAMP[(luma - V_TO_G[v] - U_TO_G[u]) >> 10]
+        | B_CLAMP[(luma + U_TO_B[u]) >> 10];
+  }
+
+  /**
+   * Converts a YUV420 frame with separate planes, as delivered by an ImageReader, to ARGB 8888
+   * data. The input and output must already be allocated and non-null. For efficiency, no error
+   * checking is performed.
+   */
+  public static void convertYUV420ToARGB8888(
+      byte[] yData,
+      byte[] uData,
+      byte[] vData,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out) {
+    convertRows(width, height, (startRow, endRow) ->
+        convertYUV420RowsToARGB8888(yData, uData, vData, width, yRowStride, uvRowStride,
+            uvPixelStride, out, startRow, endRow));
+  }
+
+  static void convertYUV420RowsToARGB8888(
+      byte[] yData,
+      byte[] uData,
+      byte[] vData,
+      int width,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out,
+      int startRow,
+      int endRow) {
+    // Rows are handled in pairs so each U/V sample is looked up once for its 2x2 block.
+    for (int j = startRow; j < endRow; j += 2) {
+      final int pY0 = yRowStride * j;
+      final int pY1 = pY0 + yRowStride;
+      final int pUV = uvRowStride * (j >> 1);
+      final int yp0 = j * width;
+      final int yp1 = yp0 + width;
+      final boolean hasSecondRow = j + 1 < endRow;
+
+      for (int i = 0, uv_offset = pUV; i < width; i += 2, uv_offset += uvPixelStride) {
+        final int u = 0xff & uData[uv_offset];
+        final int v = 0xff & vData[uv_offset];
+        final int r = V_TO_R[v] + (CLAMP_OFFSET << 10);
+        final int g = -V_TO_G[v] - U_TO_G[u] + (CLAMP_OFFSET << 10);
+        final int b = U_TO_B[u] + (CLAMP_OFFSET << 10);
+        final boolean hasSecondColumn = i + 1 < width;
+
+        int y = Y_TABLE[0xff & yData[pY0 + i]];
+        out[yp0 + i] = R_CLAMP[(y + r) >> 10] | G_CLAMP[(y + g) >> 10] | B_CLAMP[(y + b) >> 10];
+        if (hasSecondColumn) {
+          y = Y_TABLE[0xff & yData[pY0 + i + 1]];
+          out[yp0 + i + 1] = R_CLAMP[(y + r) >> 10] | G_CLAMP[(y + g) >> 10] | B_CLAMP[(y + b) >> 10];
+        }
+        if (hasSecondRow) {
+          y = Y_TABLE[0xff & yData[pY1 + i]];
+          out[yp1 + i] = R_CLAMP[(y + r) >> 10] | G_CLAMP[(y + g) >> 10] | B_CLAMP[(y + b) >> 10];
+          if (hasSecondColumn) {
+            y = Y_TABLE[0xff & yData[pY1 + i + 1]];
+            out[yp1 + i + 1] =
+                R_CLAMP[(y + r) >> 10] | G_CLAMP[(y + g) >> 10] | B_CLAMP[(y + b) >> 10];
+          }
+        }
+      }
+    }
+  }
+
+  // Frames with fewer pixels than this are converted on the calling thread; below it the cost
+  // of waking the pool outweighs the per-row work.
+  static final int PARALLEL_MIN_PIXELS = 160 * 120;
+
+  /** Converts a range of rows [startRow, endRow) of a frame. */
+  interface RowConverter {
+    void convertRows(int startRow, int endRow);
+  }
+
+  /** Worker pool shared by all Java conversions, sized to the board's cores. */
+  private static class ConversionPool {
+    private static final ForkJoinPool POOL =
+        new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Runs the row converter over the whole frame, either serially or split into bands of rows
+   * on the {@link ConversionPool}. Band boundaries fall on even rows so that each 2x2 chroma
+   * block is handled by a single band, which keeps the output identical to the serial path.
+   */
+  static void convertRows(final int width, final int height, final RowConverter converter) {
+    convertRows(width, height, Runtime.getRuntime().availableProcessors(), converter);
+  }
+
+  static void convertRows(
+      final int width, final int height, final int parallelism, final RowConverter converter) {
+    if (parallelism < 2 || width * height < PARALLEL_MIN_PIXELS) {
+      converter.convertRows(0, height);
+      return;
+    }
+    // A couple of bands per worker evens out rows that take longer than others.
+    final int bandRows = (Math.max(2, height / (parallelism * 2)) + 1) & ~1;
+    ConversionPool.POOL.invoke(new RowBandTask(converter, 0, height, bandRows));
+  }
+
+  private static class RowBandTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final RowConverter converter;
+    private final int startRow;
+    private final int endRow;
+    private final int bandRows;
+
+    RowBandTask(RowConverter converter, int startRow, int endRow, int bandRows) {
+      this.converter = converter;
+      this.startRow = startRow;
+      this.endRow = endRow;
+      this.bandRows = bandRows;
+    }
+
+    @Override
+    protected void compute() {
+      if (endRow - startRow <= bandRows) {
+        converter.convertRows(startRow, endRow);
+        return;
+      }
+      // Bands always start on an even row, so an even offset keeps the split aligned.
+      final int middle = startRow + (((endRow - startRow) / 2 + 1) & ~1);
+      invokeAll(
+          new RowBandTask(converter, startRow, middle, bandRows),
+          new RowBandTask(converter, middle, endRow, bandRows));
+    }
+  }
+
+  /**
+   * Converts a whole YUV420 frame directly into the packed RGB888 input of a detection model.
+   *
+   * @see #convertYUV420ToRGB888(byte[], byte[], byte[], int, int, int, int, int, int, int, int,
+   *     int, int, int, int, byte[])
+   */
+  public static void convertYUV420ToRGB888(
+      byte[] yData,
+      byte[] uData,
+      byte[] vData,
+      int srcWidth,
+      int srcHeight,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int dstWidth,
+      int dstHeight,
+      int applyRotation,
+      byte[] output) {
+    convertYUV420ToRGB888(yData, uData, vData, yRowStride, uvRowStride, uvPixelStride,
+        0, 0, srcWidth, srcHeight, dstWidth, dstHeight, applyRotation, output);
+  }
+
+  /**
+   * Converts a rectangle of a YUV420 frame directly into the packed RGB888 input of a detection
+   * model, cropping, rotating and scaling (without maintaining the aspect ratio) on the fly.
+   * This replaces the YUV -> ARGB, Bitmap draw and unpacking passes with a single pass that only
+   * touches the source pixels that are actually sampled.
+   *
+   * <p>Sampling is nearest neighbour at pixel centers, which is what drawing through a
+   * transformation matrix onto a Canvas without a filtering Paint does. The input and output
+   * must already be allocated and non-null, and the crop must lie inside the frame. For
+   * efficiency, no error checking is performed.
+   *
+   * @param cropLeft The first column of the frame that is converted.
+   * @param cropTop The first row of the frame that is converted.
+   * @param cropWidth The number of columns converted.
+   * @param cropHeight The number of rows converted.
+   * @param dstWidth The width of the model input.
+   * @param dstHeight The height of the model input.
+   * @param applyRotation Rotation from the frame to the model input. Must be a multiple of 90.
+   * @param output A pre-allocated array of dstWidth * dstHeight * 3 bytes, written as R, G, B.
+   */
+  public static void convertYUV420ToRGB888(
+      byte[] yData,
+      byte[] uData,
+      byte[] vData,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int cropLeft,
+      int cropTop,
+      int cropWidth,
+      int cropHeight,
+      int dstWidth,
+      int dstHeight,
+      int applyRotation,
+      byte[] output) {
+    final int rotation = ((applyRotation % 360) + 360) % 360;
+    final boolean transpose = rotation == 90 || rotation == 270;
+
+    // Inverting the transformation matrix, every source coordinate is either t or (size - t)
+    // for t = (2k + 1) * size / (2 * dstDim), where k is the destination column or row it
+    // depends on. After a quarter turn the destination column selects the source row and the
+    // destination row selects the source column. The "inner" coordinate follows dx and the
+    // "outer" one follows dy; both are stepped in exact integer arithmetic so samples that land
+    // exactly on a pixel edge round the same way every time.
+    final int innerSize = transpose ? cropHeight : cropWidth;
+    final int outerSize = transpose ? cropWidth : cropHeight;
+    final boolean innerFlip = rotation == 90 || rotation == 180;
+    final boolean outerFlip = rotation == 180 || rotation == 270;
+    final int innerDenominator = 2 * dstWidth;
+    final int innerStepQuotient = (2 * innerSize) / innerDenominator;
+    final int innerStepRemainder = (2 * innerSize) % innerDenominator;
+    final int innerStartQuotient = innerSize / innerDenominator;
+    final int innerStartRemainder = innerSize % innerDenominator;
+
+    int out = 0;
+    for (int dy = 0; dy < dstHeight; dy++) {
+      final int outerNumerator = (2 * dy + 1) * outerSize;
+      final int outerDenominator = 2 * dstHeight;
+      final int outer = outerFlip
+          ? outerSize - (outerNumerator + outerDenominator - 1) / outerDenominator
+          : outerNumerator / outerDenominator;
+
+      int quotient = innerStartQuotient;
+      int remainder = innerStartRemainder;
+      for (int dx = 0; dx < dstWidth; dx++) {
+        final int inner = innerFlip ? innerSize - quotient - (remainder > 0 ? 1 : 0) : quotient;
+        quotient += innerStepQuotient;
+        remainder += innerStepRemainder;
+        if (remainder >= innerDenominator) {
+          remainder -= innerDenominator;
+          quotient++;
+        }
+
+        final int x = cropLeft + (transpose ? outer : inner);
+        final int y = cropTop + (transpose ? inner : outer);
+        final int uvOffset = uvRowStride * (y >> 1) + (x >> 1) * uvPixelStride;
+        final int rgb = yuvToArgb(
+            0xff & yData[yRowStride * y + x],
+            0xff & uData[uvOffset],
+            0xff & vData[uvOffset]);
+        output[out++] = (byte) (rgb >> 16);
+        output[out++] = (byte) (rgb >> 8);
+        output[out++] = (byte) rgb;
+      }
+    }
+  }
+}
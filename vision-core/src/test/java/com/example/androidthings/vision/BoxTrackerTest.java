@@ -0,0 +1,231 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.vision;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the tracker with the detector on every third frame, as the app does.
+ */
+public class BoxTrackerTest {
+  private static final int DETECTION_INTERVAL = 3;
+  private static final float DECAY = 0.5f;
+  private static final float MIN_CONFIDENCE = 0.2f;
+
+  private BoxTracker tracker;
+
+  @Before
+  public void setUp() {
+    tracker = new BoxTracker(DETECTION_INTERVAL, DECAY, MIN_CONFIDENCE);
+  }
+
+  @Test
+  public void firstFrameNeedsDetection() {
+    assertTrue(tracker.needsDetection());
+    tracker.update(new float[0], new String[0], new float[0], 0);
+    assertEquals(0, tracker.getTrackCount());
+  }
+
+  @Test
+  public void overlappingDetectionContinuesTheTrack() {
+    detect(box("chair", 0.9f, 10, 10, 50, 50));
+    final String id = tracker.getId(0);
+    // Moved by a quarter of its size: well over the IoU needed.
+    detect(box("chair", 0.8f, 20, 10, 60, 50));
+    assertEquals(1, tracker.getTrackCount());
+    assertEquals(id, tracker.getId(0));
+    assertEquals(0.8f, tracker.getConfidence(0), 0f);
+    assertBox(0, 20, 10, 60, 50);
+  }
+
+  @Test
+  public void distantDetectionStartsANewTrack() {
+    detect(box("chair", 0.9f, 10, 10, 50, 50));
+    final String id = tracker.getId(0);
+    detect(box("chair", 0.9f, 200, 200, 240, 240));
+    assertEquals(1, tracker.getTrackCount());
+    assertNotEquals(id, tracker.getId(0));
+  }
+
+  @Test
+  public void otherClassDoesNotContinueTheTrack() {
+    detect(box("chair", 0.9f, 10, 10, 50, 50));
+    final String id = tracker.getId(0);
+    detect(box("dog", 0.9f, 10, 10, 50, 50));
+    assertEquals("dog", tracker.getTitle(0));
+    assertNotEquals(id, tracker.getId(0));
+  }
+
+  @Test
+  public void idsFollowTheirBoxesWhateverTheDetectionOrder() {
+    detect(box("cup", 0.9f, 0, 0, 20, 20), box("cup", 0.8f, 100, 0, 120, 20));
+    final String left = tracker.getId(0);
+    final String right = tracker.getId(1);
+    assertNotEquals(left, right);
+
+    // The detector reports them the other way round, both moved a little.
+    detect(box("cup", 0.9f, 102, 0, 122, 20), box("cup", 0.8f, 2, 0, 22, 20));
+    assertEquals(2, tracker.getTrackCount());
+    for (int t = 0; t < 2; t++) {
+      final float x = tracker.getBoxes()[4 * t];
+      assertEquals(x < 50 ? left : right, tracker.getId(t));
+    }
+
+    // A third object gets an id of its own, the others keep theirs.
+    detect(box("cup", 0.9f, 104, 0, 124, 20), box("cup", 0.8f, 4, 0, 24, 20),
+        box("cup", 0.7f, 50, 50, 70, 70));
+    assertEquals(3, tracker.getTrackCount());
+    assertEquals(left, tracker.getId(0));
+    assertEquals(right, tracker.getId(1));
+    assertNotEquals(left, tracker.getId(2));
+    assertNotEquals(right, tracker.getId(2));
+  }
+
+  @Test
+  public void predictionExtrapolatesTheVelocity() {
+    detect(box("dog", 0.9f, 0, 0, 40, 40));
+    predict();
+    predict();
+    // Three frames later it has moved 12 to the right and 6 down.
+    detect(box("dog", 0.9f, 12, 6, 52, 46));
+    // The first estimate is blended halfway from rest: (4, 2) per frame, smoothed to (2, 1).
+    predict();
+    assertBox(0, 14, 7, 54, 47);
+    predict();
+    assertBox(0, 16, 8, 56, 48);
+  }
+
+  @Test
+  public void newTrackStandsStill() {
+    detect(box("dog", 0.9f, 0, 0, 40, 40));
+    predict();
+    assertBox(0, 0, 0, 40, 40);
+  }
+
+  @Test
+  public void confidenceDecaysOnPredictedFrames() {
+    detect(box("dog", 0.8f, 0, 0, 40, 40));
+    predict();
+    assertEquals(0.4f, tracker.getConfidence(0), 1e-6f);
+    predict();
+    assertEquals(0.2f, tracker.getConfidence(0), 1e-6f);
+  }
+
+  @Test
+  public void detectionRunsEveryIntervalOrWhenATrackGetsStale() {
+    detect(box("dog", 0.9f, 0, 0, 40, 40));
+    assertFalse(tracker.needsDetection());
+    predict();
+    assertFalse(tracker.needsDetection());
+    predict();
+    // The next frame is the third since the detector ran.
+    assertTrue(tracker.needsDetection());
+
+    detect(box("dog", 0.3f, 0, 0, 40, 40));
+    // One more decay would take it under the minimum.
+    assertTrue(tracker.needsDetection());
+  }
+
+  @Test
+  public void unmatchedTracksAreDropped() {
+    detect(box("cup", 0.9f, 0, 0, 20, 20), box("cup", 0.8f, 100, 0, 120, 20),
+        box("cup", 0.7f, 200, 0, 220, 20));
+    final String last = tracker.getId(2);
+    detect(box("cup", 0.7f, 200, 0, 220, 20));
+    assertEquals(1, tracker.getTrackCount());
+    assertEquals(last, tracker.getId(0));
+    detect();
+    assertEquals(0, tracker.getTrackCount());
+  }
+
+  @Test
+  public void resetDropsEverythingAndAsksForTheDetector() {
+    detect(box("dog", 0.9f, 0, 0, 40, 40));
+    final String id = tracker.getId(0);
+    tracker.reset();
+    assertEquals(0, tracker.getTrackCount());
+    assertTrue(tracker.needsDetection());
+    detect(box("dog", 0.9f, 0, 0, 40, 40));
+    assertNotEquals(id, tracker.getId(0));
+  }
+
+  @Test
+  public void manyTracksGrowTheState() {
+    final Detection[] detections = new Detection[20];
+    for (int i = 0; i < detections.length; i++) {
+      detections[i] = box("cup", 0.9f, 30 * i, 0, 30 * i + 20, 20);
+    }
+    detect(detections);
+    detect(detections);
+    assertEquals(20, tracker.getTrackCount());
+    for (int i = 0; i < detections.length; i++) {
+      assertBox(i, 30 * i, 0, 30 * i + 20, 20);
+    }
+  }
+
+  /** One detection, boxed as (left, top, right, bottom). */
+  private static final class Detection {
+    final String title;
+    final float confidence;
+    final float[] box;
+
+    Detection(String title, float confidence, float[] box) {
+      this.title = title;
+      this.confidence = confidence;
+      this.box = box;
+    }
+  }
+
+  private static Detection box(String title, float confidence, float left, float top,
+      float right, float bottom) {
+    return new Detection(title, confidence, new float[] {left, top, right, bottom});
+  }
+
+  /** Runs one frame through the detector. */
+  private void detect(Detection... detections) {
+    final float[] boxes = new float[4 * detections.length];
+    final String[] titles = new String[detections.length];
+    final float[] confidences = new float[detections.length];
+    for (int i = 0; i < detections.length; i++) {
+      System.arraycopy(detections[i].box, 0, boxes, 4 * i, 4);
+      titles[i] = detections[i].title;
+      confidences[i] = detections[i].confidence;
+    }
+    tracker.update(boxes, titles, confidences, detections.length);
+  }
+
+  private void predict() {
+    tracker.predict();
+  }
+
+  private void assertBox(int track, float left, float top, float right, float bottom) {
+    final float[] actual = Arrays.copyOfRange(tracker.getBoxes(), 4 * track, 4 * track + 4);
+    final float[] expected = {left, top, right, bottom};
+    for (int i = 0; i < 4; i++) {
+      assertEquals("track " + track + " is " + Arrays.toString(actual),
+          expected[i], actual[i], 1e-4f);
+    }
+  }
+}
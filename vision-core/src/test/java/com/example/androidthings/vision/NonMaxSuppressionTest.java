@@ -0,0 +1,157 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.vision;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/** Boxes are packed (top, left, bottom, right) throughout, as the detectors emit them. */
+public class NonMaxSuppressionTest {
+  @Test
+  public void iouOfIdenticalDisjointAndTouchingBoxes() {
+    final float[] boxes = {
+        0, 0, 2, 2,
+        0, 0, 2, 2,
+        5, 5, 6, 6,
+        0, 2, 2, 4,
+    };
+    assertEquals(1f, NonMaxSuppression.intersectionOverUnion(boxes, 0, 1), 0f);
+    assertEquals(0f, NonMaxSuppression.intersectionOverUnion(boxes, 0, 2), 0f);
+    // Sharing an edge is no overlap.
+    assertEquals(0f, NonMaxSuppression.intersectionOverUnion(boxes, 0, 3), 0f);
+  }
+
+  @Test
+  public void iouOfPartialAndNestedBoxes() {
+    final float[] boxes = {
+        0, 0, 1, 3,
+        0, 1, 1, 4,
+        0, 0, 4, 4,
+        1, 1, 3, 3,
+    };
+    // Overlap 2, union 4.
+    assertEquals(0.5f, NonMaxSuppression.intersectionOverUnion(boxes, 0, 1), 0f);
+    assertEquals(0.5f, NonMaxSuppression.intersectionOverUnion(boxes, 1, 0), 0f);
+    // The inner box is a quarter of the outer one.
+    assertEquals(0.25f, NonMaxSuppression.intersectionOverUnion(boxes, 2, 3), 0f);
+  }
+
+  @Test
+  public void iouAcrossTwoArraysMatchesOneArray() {
+    final float[] tracks = {9, 9, 9, 9, 0, 0, 1, 3};
+    final float[] detections = {0, 1, 1, 4};
+    assertEquals(0.5f, NonMaxSuppression.intersectionOverUnion(tracks, 1, detections, 0), 0f);
+    assertEquals(0.5f, NonMaxSuppression.intersectionOverUnion(detections, 0, tracks, 1), 0f);
+  }
+
+  @Test
+  public void emptyBoxesHaveNoOverlap() {
+    final float[] boxes = {
+        1, 1, 1, 1,
+        1, 1, 1, 1,
+        0, 0, 2, 2,
+    };
+    assertEquals(0f, NonMaxSuppression.intersectionOverUnion(boxes, 0, 1), 0f);
+    assertEquals(0f, NonMaxSuppression.intersectionOverUnion(boxes, 0, 2), 0f);
+  }
+
+  @Test
+  public void overlapExactlyAtThresholdIsKept() {
+    final float[] boxes = {
+        0, 0, 1, 3,
+        0, 1, 1, 4,
+    };
+    assertArrayEquals(new int[] {0, 1}, suppress(boxes, null, new int[] {0, 1}, 0.5f));
+    assertArrayEquals(new int[] {0}, suppress(boxes, null, new int[] {0, 1}, 0.49f));
+  }
+
+  @Test
+  public void betterRankedBoxWins() {
+    final float[] boxes = {
+        0, 0, 2, 2,
+        0, 0, 2, 2.2f,
+    };
+    assertArrayEquals(new int[] {1}, suppress(boxes, null, new int[] {1, 0}, 0.5f));
+    assertArrayEquals(new int[] {0}, suppress(boxes, null, new int[] {0, 1}, 0.5f));
+  }
+
+  @Test
+  public void disjointBoxesAreAllKept() {
+    final float[] boxes = {
+        0, 0, 1, 1,
+        2, 2, 3, 3,
+        0, 2, 1, 3,
+    };
+    assertArrayEquals(new int[] {2, 0, 1}, suppress(boxes, null, new int[] {2, 0, 1}, 0f));
+  }
+
+  @Test
+  public void nestedBoxIsKeptUnlessThresholdIsBelowItsIou() {
+    final float[] boxes = {
+        0, 0, 4, 4,
+        1, 1, 3, 3,
+    };
+    assertArrayEquals(new int[] {0, 1}, suppress(boxes, null, new int[] {0, 1}, 0.5f));
+    assertArrayEquals(new int[] {0}, suppress(boxes, null, new int[] {0, 1}, 0.2f));
+  }
+
+  @Test
+  public void suppressedBoxDoesNotSuppressOthers() {
+    // 1 overlaps both 0 and 2, which do not overlap each other. Only kept boxes suppress, so 2
+    // survives even though the box that would have covered it is gone.
+    final float[] boxes = {
+        0, 0, 2, 2,
+        0, 1, 2, 3,
+        0, 2, 2, 4,
+    };
+    assertArrayEquals(new int[] {0, 2}, suppress(boxes, null, new int[] {0, 1, 2}, 0.3f));
+  }
+
+  @Test
+  public void classesOnlySuppressTheirOwnClass() {
+    final float[] boxes = {
+        0, 0, 2, 2,
+        0, 0, 2, 2,
+        0, 0, 2, 2,
+    };
+    final float[] classes = {1, 2, 1};
+    assertArrayEquals(new int[] {0, 1}, suppress(boxes, classes, new int[] {0, 1, 2}, 0.5f));
+    // Without classes the same boxes collapse into one.
+    assertArrayEquals(new int[] {0}, suppress(boxes, null, new int[] {0, 1, 2}, 0.5f));
+  }
+
+  @Test
+  public void onlyTheFirstCountCandidatesAreConsidered() {
+    final float[] boxes = {
+        0, 0, 1, 1,
+        2, 2, 3, 3,
+    };
+    final int[] kept = new int[2];
+    assertEquals(1, NonMaxSuppression.suppress(boxes, null, new int[] {0, 1}, 1, 0.5f, kept));
+    assertEquals(0, kept[0]);
+  }
+
+  private static int[] suppress(float[] boxes, float[] classes, int[] ranked, float maxIou) {
+    final int[] kept = new int[ranked.length];
+    final int n = NonMaxSuppression.suppress(boxes, classes, ranked, ranked.length, maxIou, kept);
+    return Arrays.copyOf(kept, n);
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.vision;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TopKTest {
+  @Test
+  public void ranksHighestFirstAndDropsScoresUnderMinimum() {
+    final float[] scores = {0.2f, 0.9f, 0.05f, 0.6f, 0.7f};
+    assertArrayEquals(new int[] {1, 4, 3, 0}, select(scores, scores.length, 0.1f, 5));
+  }
+
+  @Test
+  public void keepsOnlyTheBestK() {
+    final float[] scores = {0.2f, 0.9f, 0.3f, 0.6f, 0.7f, 0.1f, 0.8f};
+    assertArrayEquals(new int[] {1, 6, 4}, select(scores, scores.length, 0f, 3));
+  }
+
+  @Test
+  public void tiesKeepTheirOriginalOrder() {
+    final float[] scores = {0.5f, 0.7f, 0.5f, 0.7f, 0.5f};
+    assertArrayEquals(new int[] {1, 3, 0, 2, 4}, select(scores, scores.length, 0f, 5));
+    // Once full, a later tie does not displace the earlier one in last place.
+    assertArrayEquals(new int[] {1, 3, 0}, select(scores, scores.length, 0f, 3));
+  }
+
+  @Test
+  public void minimumIsInclusive() {
+    final float[] scores = {0.5f, 0.4f};
+    assertArrayEquals(new int[] {0}, select(scores, scores.length, 0.5f, 2));
+  }
+
+  @Test
+  public void nanScoresAreSkipped() {
+    final float[] scores = {Float.NaN, 0.3f, Float.NaN, 0.8f, Float.NaN};
+    assertArrayEquals(new int[] {3, 1}, select(scores, scores.length, 0f, 5));
+    // Even with no minimum at all.
+    assertArrayEquals(new int[] {3, 1},
+        select(scores, scores.length, Float.NEGATIVE_INFINITY, 5));
+  }
+
+  @Test
+  public void onlyTheFirstCountScoresAreRanked() {
+    final float[] scores = {0.2f, 0.4f, 0.9f};
+    assertArrayEquals(new int[] {1, 0}, select(scores, 2, 0f, 3));
+    assertArrayEquals(new int[0], select(scores, 0, 0f, 3));
+  }
+
+  @Test
+  public void maxResultsLargerThanCountReturnsEverything() {
+    final float[] scores = {0.2f, 0.4f, 0.3f};
+    final int[] ranked = new int[10];
+    assertEquals(3, TopK.select(scores, null, null, scores.length, 0f, ranked, 100));
+    assertArrayEquals(new int[] {1, 2, 0}, Arrays.copyOf(ranked, 3));
+  }
+
+  @Test
+  public void maxResultsLimitsBelowCapacity() {
+    final float[] scores = {0.2f, 0.4f, 0.3f};
+    final int[] ranked = new int[10];
+    assertEquals(2, TopK.select(scores, null, null, scores.length, 0f, ranked, 2));
+    assertArrayEquals(new int[] {1, 2}, Arrays.copyOf(ranked, 2));
+    assertEquals(0, TopK.select(scores, null, null, scores.length, 0f, ranked, 0));
+    assertEquals(0, TopK.select(scores, null, null, scores.length, 0f, ranked, -1));
+  }
+
+  @Test
+  public void classMaskRejectsBeforeRanking() {
+    final float[] scores = {0.9f, 0.8f, 0.7f, 0.6f, 0.5f, 0.4f};
+    final float[] classes = {2, 0, 1, 2, 5, -1};
+    final boolean[] accepted = {true, false, true};
+    final int[] ranked = new int[6];
+    // Class 1 is masked out, class 5 is past the mask and -1 is before it.
+    final int n = TopK.select(scores, classes, accepted, scores.length, 0f, ranked, 6);
+    assertArrayEquals(new int[] {0, 1, 3}, Arrays.copyOf(ranked, n));
+    // Rejected detections do not take up any of the K places.
+    final int top2 = TopK.select(scores, classes, accepted, scores.length, 0f, ranked, 2);
+    assertArrayEquals(new int[] {0, 1}, Arrays.copyOf(ranked, top2));
+  }
+
+  @Test
+  public void nullMaskAcceptsEveryClass() {
+    final float[] scores = {0.1f, 0.3f};
+    final int[] ranked = new int[2];
+    assertEquals(2, TopK.select(scores, new float[] {7, -3}, null, 2, 0f, ranked, 2));
+  }
+
+  @Test
+  public void matchesSortingOnRandomScores() {
+    final Random random = new Random(21);
+    for (int trial = 0; trial < 200; trial++) {
+      final int n = 1 + random.nextInt(50);
+      final float[] scores = new float[n];
+      for (int i = 0; i < n; i++) {
+        // Coarse scores so ties are common.
+        scores[i] = random.nextInt(10) / 10f;
+      }
+      final int k = 1 + random.nextInt(12);
+      final Integer[] order = new Integer[n];
+      for (int i = 0; i < n; i++) {
+        order[i] = i;
+      }
+      // Stable, so ties stay in index order.
+      Arrays.sort(order, (a, b) -> Float.compare(scores[b], scores[a]));
+      int expectedCount = 0;
+      final int[] expected = new int[Math.min(k, n)];
+      for (int i = 0; i < n && expectedCount < expected.length; i++) {
+        if (scores[order[i]] >= 0.3f) {
+          expected[expectedCount++] = order[i];
+        }
+      }
+      assertArrayEquals("trial " + trial, Arrays.copyOf(expected, expectedCount),
+          select(scores, n, 0.3f, k));
+    }
+  }
+
+  private static int[] select(float[] scores, int count, float minScore, int k) {
+    final int[] ranked = new int[k];
+    final int n = TopK.select(scores, count, minScore, ranked);
+    return Arrays.copyOf(ranked, n);
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2018, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.vision;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class YuvToRgbTest {
+  private static final int UV_PIXEL_STRIDE = 2;
+
+  @Test
+  public void tablesMatchReferenceForEveryInput() {
+    for (int y = 0; y < 256; y++) {
+      for (int u = 0; u < 256; u++) {
+        for (int v = 0; v < 256; v++) {
+          final int expected = YuvToRgb.YUV2RGB(y, u, v);
+          final int actual = YuvToRgb.yuvToArgb(y, u, v);
+          if (actual != expected) {
+            fail(String.format("yuv (%d, %d, %d): expected %08x, got %08x",
+                y, u, v, expected, actual));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void planarKernelMatchesReference() {
+    // Odd sizes exercise the last unpaired row and column.
+    for (int[] size : new int[][] {{64, 48}, {65, 49}, {1, 1}, {3, 2}}) {
+      final Frame frame = new Frame(size[0], size[1], 7);
+      final int[] out = new int[frame.width * frame.height];
+      YuvToRgb.convertYUV420ToARGB8888(frame.y, frame.u, frame.v, frame.width, frame.height,
+          frame.yRowStride, frame.uvRowStride, UV_PIXEL_STRIDE, out);
+      for (int j = 0; j < frame.height; j++) {
+        for (int i = 0; i < frame.width; i++) {
+          final int uv = frame.uvRowStride * (j >> 1) + (i >> 1) * UV_PIXEL_STRIDE;
+          assertEquals("pixel " + i + "," + j + " of " + size[0] + "x" + size[1],
+              YuvToRgb.YUV2RGB(
+                  0xff & frame.y[frame.yRowStride * j + i], 0xff & frame.u[uv], 0xff & frame.v[uv]),
+              out[j * frame.width + i]);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void semiPlanarKernelMatchesReference() {
+    final int width = 65;
+    final int height = 49;
+    final byte[] nv21 = new byte[width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2)];
+    new Random(11).nextBytes(nv21);
+    final int[] out = new int[width * height];
+    YuvToRgb.convertYUV420SPToARGB8888(nv21, width, height, out);
+    for (int j = 0; j < height; j++) {
+      for (int i = 0; i < width; i += 2) {
+        final int uvp = width * height + (j >> 1) * width + i;
+        for (int k = i; k < Math.min(i + 2, width); k++) {
+          assertEquals("pixel " + k + "," + j,
+              YuvToRgb.YUV2RGB(0xff & nv21[j * width + k], 0xff & nv21[uvp + 1], 0xff & nv21[uvp]),
+              out[j * width + k]);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void bandedConversionMatchesSerial() {
+    for (int[] size : new int[][] {{640, 480}, {322, 241}, {1280, 720}}) {
+      final Frame frame = new Frame(size[0], size[1], 3);
+      final int[] serial = new int[frame.width * frame.height];
+      YuvToRgb.convertYUV420RowsToARGB8888(frame.y, frame.u, frame.v, frame.width,
+          frame.yRowStride, frame.uvRowStride, UV_PIXEL_STRIDE, serial, 0, frame.height);
+
+      for (int parallelism : new int[] {2, 3, 4, 8}) {
+        final int[] banded = new int[serial.length];
+        YuvToRgb.convertRows(frame.width, frame.height, parallelism, (startRow, endRow) ->
+            YuvToRgb.convertYUV420RowsToARGB8888(frame.y, frame.u, frame.v, frame.width,
+                frame.yRowStride, frame.uvRowStride, UV_PIXEL_STRIDE, banded, startRow, endRow));
+        assertArrayEquals(size[0] + "x" + size[1] + " on " + parallelism + " workers",
+            serial, banded);
+      }
+    }
+  }
+
+  @Test
+  public void bandsCoverEveryRowOnceAndStartOnEvenRows() {
+    for (int height : new int[] {120, 241, 480, 719}) {
+      for (int parallelism : new int[] {2, 4, 8}) {
+        final int[] visits = new int[height];
+        YuvToRgb.convertRows(640, height, parallelism, (startRow, endRow) -> {
+          assertTrue("band starts on odd row " + startRow, startRow % 2 == 0);
+          synchronized (visits) {
+            for (int row = startRow; row < endRow; row++) {
+              visits[row]++;
+            }
+          }
+        });
+        for (int row = 0; row < height; row++) {
+          assertEquals("row " + row + " of " + height, 1, visits[row]);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void fusedKernelSamplesThroughInverseTransform() {
+    final Frame frame = new Frame(80, 60, 5);
+    // {cropLeft, cropTop, cropWidth, cropHeight, dstWidth, dstHeight}: the whole frame, odd
+    // crops that split chroma blocks, and downscaling, upscaling and exact multiples.
+    final int[][] cases = {
+        {0, 0, 80, 60, 30, 30},
+        {0, 0, 80, 60, 40, 30},
+        {7, 5, 64, 48, 30, 20},
+        {3, 0, 50, 60, 70, 110},
+        {1, 1, 33, 17, 66, 51},
+    };
+    for (int[] c : cases) {
+      for (int rotation : new int[] {0, 90, 180, 270, -90}) {
+        final String name = String.format("crop %d,%d %dx%d to %dx%d rotated %d",
+            c[0], c[1], c[2], c[3], c[4], c[5], rotation);
+        final byte[] out = new byte[c[4] * c[5] * 3];
+        YuvToRgb.convertYUV420ToRGB888(frame.y, frame.u, frame.v, frame.yRowStride,
+            frame.uvRowStride, UV_PIXEL_STRIDE, c[0], c[1], c[2], c[3], c[4], c[5], rotation,
+            out);
+        for (int dy = 0; dy < c[5]; dy++) {
+          for (int dx = 0; dx < c[4]; dx++) {
+            final int i = 3 * (dy * c[4] + dx);
+            final int actual = 0xff000000
+                | (0xff & out[i]) << 16 | (0xff & out[i + 1]) << 8 | (0xff & out[i + 2]);
+            assertSampledThroughInverse(name + ", pixel " + dx + "," + dy, frame, c, rotation,
+                dx, dy, actual);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Maps the center of a destination pixel back through the inverse of
+   * ImageUtils.getTransformationMatrix(cropWidth, cropHeight, dstWidth, dstHeight, rotation,
+   * false): translate the destination center to the origin, undo the scale, undo the rotation
+   * and translate back to the crop's center. The pixel under that point is the one a Canvas
+   * draw without filtering samples. A point that lands on a pixel edge may go either way.
+   */
+  private static void assertSampledThroughInverse(String name, Frame frame, int[] crop,
+      int rotation, int dx, int dy, int actual) {
+    final int cropWidth = crop[2];
+    final int cropHeight = crop[3];
+    final int dstWidth = crop[4];
+    final int dstHeight = crop[5];
+    final boolean transpose = rotation % 180 != 0;
+    final double scaleX = dstWidth / (double) (transpose ? cropHeight : cropWidth);
+    final double scaleY = dstHeight / (double) (transpose ? cropWidth : cropHeight);
+    // Exact for quarter turns; android.graphics.Matrix rotates clockwise with y pointing down.
+    final int cos = (int) Math.round(Math.cos(Math.toRadians(rotation)));
+    final int sin = (int) Math.round(Math.sin(Math.toRadians(rotation)));
+
+    final double u = (dx + 0.5 - dstWidth / 2.0) / scaleX;
+    final double v = (dy + 0.5 - dstHeight / 2.0) / scaleY;
+    final double sx = cos * u + sin * v + cropWidth / 2.0;
+    final double sy = -sin * u + cos * v + cropHeight / 2.0;
+
+    for (int x : candidates(sx, cropWidth)) {
+      for (int y : candidates(sy, cropHeight)) {
+        if (actual == frame.argbAt(crop[0] + x, crop[1] + y)) {
+          return;
+        }
+      }
+    }
+    fail(String.format("%s: maps to %.3f,%.3f, expected %08x, got %08x", name, sx, sy,
+        frame.argbAt(crop[0] + (int) Math.floor(sx), crop[1] + (int) Math.floor(sy)), actual));
+  }
+
+  /** The pixel containing the coordinate, or both pixels when it lies on their shared edge. */
+  private static int[] candidates(double coordinate, int size) {
+    final long nearest = Math.round(coordinate);
+    if (Math.abs(coordinate - nearest) < 1e-9 && nearest > 0 && nearest < size) {
+      return new int[] {(int) nearest - 1, (int) nearest};
+    }
+    return new int[] {(int) Math.floor(coordinate)};
+  }
+
+  /** Random planes laid out like an ImageReader frame, with padded rows. */
+  private static final class Frame {
+    final int width;
+    final int height;
+    final int yRowStride;
+    final int uvRowStride;
+    final byte[] y;
+    final byte[] u;
+    final byte[] v;
+
+    Frame(int width, int height, long seed) {
+      this.width = width;
+      this.height = height;
+      yRowStride = width + 16;
+      uvRowStride = ((width + 1) / 2) * UV_PIXEL_STRIDE + 16;
+      final Random random = new Random(seed);
+      y = new byte[yRowStride * height];
+      u = new byte[uvRowStride * ((height + 1) / 2)];
+      v = new byte[u.length];
+      random.nextBytes(y);
+      random.nextBytes(u);
+      random.nextBytes(v);
+    }
+
+    int argbAt(int x, int y) {
+      final int uv = uvRowStride * (y >> 1) + (x >> 1) * UV_PIXEL_STRIDE;
+      return YuvToRgb.YUV2RGB(0xff & this.y[yRowStride * y + x], 0xff & u[uv], 0xff & v[uv]);
+    }
+  }
+}